@@ -17,15 +17,20 @@
 package gong;
 
 import gong.audio.AudioData;
+import gong.audio.AudioDataException;
 import gong.audio.AudioHandler;
 import gong.audio.AudioHandlerException;
+import gong.audio.DownloadCache;
+import gong.audio.FormUpload;
 import gong.audio.OlaBuffer;
+import gong.audio.ProgressiveUpload;
 import gong.audio.data.FlvPCMData;
 import gong.audio.data.ImaADPCMData;
 import gong.audio.data.SpeexData;
 import gong.audio.data.WavePCMAudioData;
 import gong.event.AudioDataListener;
 import gong.event.AudioHandlerListener;
+import gong.event.UploadListener;
 import gong.ui.plaf.NanoAmplitudeUI;
 import gong.ui.plaf.NanoButtonUI;
 import gong.ui.plaf.NanoSpeedButtonUI;
@@ -37,21 +42,14 @@ import gong.xml.gasi.Request;
 import gong.xml.gasi.Response;
 
 import java.awt.FontMetrics;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
-import java.util.Date;
 import java.util.ResourceBundle;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -74,7 +72,7 @@ import netscape.javascript.JSObject;
  * @version 4.1, 24/02/2011
  * @version 4.2, 13/05/2011
  */
-public class NanoGong extends javax.swing.JApplet implements AudioDataListener, AudioHandlerListener, TimeListener  {
+public class NanoGong extends javax.swing.JApplet implements AudioDataListener, AudioHandlerListener, UploadListener, TimeListener  {
 
     // The version number of the NanoGong applet
     static final String VERSION_NUMBER = "4.2";
@@ -101,8 +99,16 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
     private boolean showTime = false;
     private long startTime = -1;
     private long endTime = -1;
+    private int uploadPercentage = -1;
+    private ProgressiveUpload progressiveUpload = null;
     
     private Lock handlerLock = new ReentrantLock();
+    
+    // The number of samples converted at a time in whole-file operations
+    private static final int CONVERSION_BUFFER_SIZE = 262144;
+    
+    // The directory of the download cache in the temporary directory
+    private static final String CACHE_DIRECTORY = "nanogong-cache";
 
     /**
      * Gets a new URL loader
@@ -213,9 +219,16 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
                     
                     source.reset();
                     if (startTime > 0) source.setTime(startTime);
-                    while (source.isAvailable()) {
-                        target.write(source.read());
-                        if (endTime > 0 && source.getTime() > endTime) break;
+                    
+                    // Stop after the first sample beyond the end time
+                    int end = source.getLength();
+                    if (endTime > 0) end = Math.min(end, (int) Math.ceil((double) (endTime + 1) / 1000D * source.getFormat().getSampleRate()));
+                    
+                    short[] buffer = new short[CONVERSION_BUFFER_SIZE];
+                    while (source.getPosition() < end) {
+                        int count = readSamples(source, buffer, Math.min(buffer.length, end - source.getPosition()));
+                        if (count <= 0) break;
+                        target.write(buffer, 0, count);
                     }
                     handler.setData(target);
                 }
@@ -236,6 +249,19 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
 
     }
     
+    /**
+     * Reads a set of samples for a whole-file operation, decoding ADPCM data in parallel
+     * @param data the audio data
+     * @param buffer the sample buffer
+     * @param length the length of the samples to be read
+     * @return the number of samples read
+     * @throws Exception failed to read the samples
+     */
+    private static int readSamples(AudioData data, short[] buffer, int length) throws Exception {
+        if (data instanceof ImaADPCMData) return ((ImaADPCMData) data).readParallel(buffer, 0, length);
+        return data.read(buffer, 0, length);
+    }
+    
     /**
      * Initializes the NanoGong applet
      */
@@ -361,6 +387,24 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
         if (startTime > 0 && endTime > 0 && endTime <= startTime) {
             endTime = -1;
         }
+        value = getParameter("CacheSize");
+        if (value != null) {
+            try {
+                long size = Long.parseLong(value);
+                if (size > 0) {
+                    File directory = new File(System.getProperty("java.io.tmpdir"), CACHE_DIRECTORY);
+                    handler.setDownloadCache(DownloadCache.getInstance(directory, size * 1024 * 1024));
+                }
+            } catch (NumberFormatException nfe) {
+            } catch (SecurityException se) {}
+        }
+        value = getParameter("DownloadConnections");
+        if (value != null) {
+            try {
+                int connections = Integer.parseInt(value);
+                if (connections > 0) handler.setDownloadConnections(connections);
+            } catch (NumberFormatException nfe) {}
+        }
         
         // Preload the sound file from the parameter
         String url = getParameter("SoundFileURL");
@@ -418,6 +462,10 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
      * @param status the updated status
      */
     public void statusUpdate(final AudioHandler handler, final int status) {
+        // Check for the end of the recording being uploaded, which is posted once the recorder has closed the data
+        ProgressiveUpload upload = progressiveUpload;
+        if (status == AudioHandler.STOPPED && upload != null) upload.finish();
+        
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 btnPlay.setEnabled(handler.hasData() &&
@@ -533,6 +581,32 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
     public void finish(AudioData audioData, long duration) {
     }
 
+    /**
+     * Sent part of the upload to the server
+     * @param upload the upload
+     * @param bytes the number of bytes sent
+     * @param total the total number of bytes, -1 if it is unknown
+     */
+    public void uploaded(FormUpload upload, long bytes, long total) {
+        if (total <= 0) return;
+
+        final int percentage = (int) (100.0 * bytes / total);
+        if (percentage == uploadPercentage) return;
+        uploadPercentage = percentage;
+        final String message = MessageFormat.format(getMessageString("MESSAGE_SENDING_WITH_PROGRESS"), new Object[] { new Integer(percentage) });
+
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (pbrWait.isIndeterminate()) {
+                    pbrWait.setMaximum(100);
+                    pbrWait.setIndeterminate(false);
+                }
+                pbrWait.setValue(percentage);
+                if (panWait.isVisible()) lblMessage.setText(message);
+            }
+        });
+    }
+
     /**
      * Gets the applet information
      * @return The applet information
@@ -808,12 +882,7 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
             // Start the recording
             AudioFormat format = new AudioFormat(samplingRate, 16, 1, true, true);
             handler.setDataFormat(format);
-            if (audioFormat.equals(IMA_ADPCM))
-                handler.setRecordData(new ImaADPCMData(format));
-            else if(audioFormat.equals(PCM))
-                handler.setRecordData(new WavePCMAudioData(format));
-            else
-                handler.setRecordData(new SpeexData(format, true, speexQuality));
+            handler.setRecordData(createRecordData(format));
             handler.record(duration);
             modified = true;
             
@@ -826,6 +895,94 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
                 setResponse(String.valueOf(duration));
         }
         
+        protected void recordToForm() throws Exception {
+            // Check handler status
+            if (handler.getStatus() != AudioHandler.CLOSED &&
+                handler.getStatus() != AudioHandler.STOPPED)
+                throw new Exception("You are not allowed to record a message at the moment.");
+            
+            // Get the parameters
+            String url = getParameter("URL", 0);
+            String parameter = getParameter("Parameter", 1);
+            String cookies = getParameter("Cookies", 2);
+            String filename = getParameter("Filename", 3);
+            long duration;
+            String param = getParameter("Duration", 4);
+            try {
+                duration = Long.parseLong(param);
+            } catch (NumberFormatException nfe) {
+                duration = AudioHandler.MAX_DURATION;
+            }
+            String progressive = getParameter("Progressive", 5);
+            
+            if (url == null || url.trim().length() == 0)
+                throw new Exception("You must provide a valid url.");
+            
+            if (parameter == null || parameter.trim().length() == 0)
+                throw new Exception("You must provide a parameter name for the message.");
+            
+            if (filename == null || filename.trim().length() == 0)
+                throw new Exception("You must provide a filename.");
+            
+            // Create the upload of the recording
+            AudioFormat format = new AudioFormat(samplingRate, 16, 1, true, true);
+            AudioData audioData = createRecordData(format);
+            
+            String ext = "";
+            int len = filename.length();
+            if (len > 4) ext = filename.substring(len - 4, len);
+            if (!ext.equalsIgnoreCase(audioData.getFileExtension())) {
+                filename += audioData.getFileExtension();
+            }
+            
+            // The parts are only posted to a server which supports them,
+            // otherwise the whole recording is posted by PostToForm
+            ProgressiveUpload upload = null;
+            if (progressive != null && progressive.equalsIgnoreCase("true")) {
+                try {
+                    upload = new ProgressiveUpload(new URL(resolveURL(url)), parameter, filename, audioData);
+                } catch (MalformedURLException e) {
+                    throw new Exception("URL is not a valid URL.");
+                } catch (AudioDataException e) {
+                    throw new Exception("The audio format cannot be posted while it is being recorded.");
+                }
+                upload.setCookies(cookies);
+            }
+            
+            // Start the recording and the upload
+            handler.setDuration(duration);
+            handler.setDataFormat(format);
+            handler.setRecordData(audioData);
+            handler.record(duration);
+            modified = true;
+            
+            if (progressiveUpload != null) progressiveUpload.cancel();
+            progressiveUpload = upload;
+            if (upload != null) upload.start();
+            
+            // Construct the response
+            if (isXML()) {
+                Response response = Response.newResponse("RecordToFormResponse");
+                response.setParameter("Duration", String.valueOf(duration), false);
+                setResponse(response);
+            } else
+                setResponse(String.valueOf(duration));
+        }
+        
+        /**
+         * Creates the audio data of a new recording in the audio format of the applet
+         * @param format the format of the recorded samples
+         * @return the audio data
+         */
+        private AudioData createRecordData(AudioFormat format) {
+            if (audioFormat.equals(IMA_ADPCM))
+                return new ImaADPCMData(format);
+            else if(audioFormat.equals(PCM))
+                return new WavePCMAudioData(format);
+            else
+                return new SpeexData(format, true, speexQuality);
+        }
+        
         protected void pauseMedia() throws Exception {
             // Check handler status
             if (handler.getStatus() != AudioHandler.PLAYING && handler.getStatus() != AudioHandler.RECORDING)
@@ -1004,6 +1161,18 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
                 setResponse(status);
         }
         
+        protected void getMediaBandwidth() throws Exception {
+            String bandwidth = String.valueOf(Math.round(handler.getBandwidth()));
+            
+            // Construct the response
+            if (isXML()) {
+                Response response = Response.newResponse("GetMediaBandwidthResponse");
+                response.setParameter("Bandwidth", bandwidth, false);
+                setResponse(response);
+            } else
+                setResponse(bandwidth);
+        }
+        
         protected void getAudioLevel() throws Exception {
             float value = handler.getAmplitude();
             String amplitude = new DecimalFormat("0.00").format(value);
@@ -1086,15 +1255,22 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
                 throw new Exception("Invalid file format.");
 
             OlaBuffer olaBuffer = new OlaBuffer(data.getFormat(), rate);
+            short[] buffer = new short[CONVERSION_BUFFER_SIZE];
+            short[] output = new short[olaBuffer.getOutputLength(CONVERSION_BUFFER_SIZE)];
             
             data.reset();
-            while (data.isAvailable()) {
-                olaBuffer.write(data.read());
-                while (olaBuffer.isAvailable()) target.write(olaBuffer.read());
+            int count;
+            while ((count = readSamples(data, buffer, buffer.length)) > 0) {
+                if (olaBuffer.isPassThrough()) {
+                    target.write(buffer, 0, count);
+                    continue;
+                }
+                if (olaBuffer.getOutputLength(count) > output.length) output = new short[olaBuffer.getOutputLength(count)];
+                target.write(output, 0, olaBuffer.processParallel(buffer, count, output));
             }
             
             olaBuffer.drain();
-            while (olaBuffer.isAvailable()) target.write(olaBuffer.read());
+            target.write(output, 0, olaBuffer.read(output, 0, output.length));
             
             FileOutputStream stream = new FileOutputStream(file);
             target.sendToStream(stream);
@@ -1272,8 +1448,9 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
                 }
             });
 
+            URL formURL;
             URLConnection connection = null;
-            String boundary;
+            FormUpload upload;
             try {
                 String ext = "";
                 int len = filename.length();
@@ -1282,22 +1459,10 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
                     filename += handler.getData().getFileExtension();
                 }
                 
-                // Create boundary
-                MessageDigest md5 = null;
-                try {
-                    md5 = MessageDigest.getInstance("MD5");
-                } catch (NoSuchAlgorithmException e) {
-                    throw new Exception("Failed to create the request boundary.");
-                }
-                String time = String.valueOf(new Date().getTime());
-                md5.update(time.getBytes(), 0, time.length());
-                boundary = new BigInteger(1, md5.digest()).toString(16);
-                
                 // Create connection
                 try {
-                    connection = new URL(resolveURL(url)).openConnection();
-                    connection.setDoOutput(true);
-                    connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+                    formURL = new URL(resolveURL(url));
+                    connection = formURL.openConnection();
                 } catch (MalformedURLException e) {
                     throw new Exception("URL is not a valid URL.");
                 } catch (IOException e) {
@@ -1305,6 +1470,7 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
                 } catch (Exception e) {
                     throw new Exception("Unknown error.");
                 }
+                upload = new FormUpload(connection, parameter, filename);
             } catch (Exception e) {
                 SwingUtilities.invokeLater(new Runnable() {
                     public void run() {
@@ -1321,37 +1487,40 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
                 }
             });
             
-            StringBuffer ret = new StringBuffer();
+            String ret = null;
             try {
-                // Post cookies
-                if (cookies != null && cookies.length() > 0)
-                    connection.setRequestProperty("Cookie", cookies);
-                
-                // Post file parameter
-                OutputStream out = connection.getOutputStream();
-                out.write(("--" + boundary + "\r\n").getBytes());
-                out.write(("Content-Disposition: form-data; name=\"" + parameter + "\"; filename=\"" + filename + "\"\r\n").getBytes());
-                out.write(("Content-Type: application/octet-stream\r\n\r\n").getBytes());
-                
-                // Post the file content
-                handler.downloadData(null, true);
-                handler.getData().setListener(NanoGong.this);
-                handler.getData().sendToStream(out);
-                handler.getData().setListener(null);
-                
-                // End of transfer
-                out.write(("\r\n").getBytes());
-                out.write(("--" + boundary + "--").getBytes());
-                out.close();
+                // Complete the upload started with the recording to the same form, which only posts the end of the data
+                ProgressiveUpload progressive = progressiveUpload;
+                progressiveUpload = null;
+                if (progressive != null && progressive.getData() == handler.getData() &&
+                    progressive.matches(formURL, parameter, filename)) {
+                    progressive.finish();
+                    try {
+                        ret = progressive.waitForResponse();
+                    } catch (Exception e) {
+                        // Post the whole recording instead
+                    }
+                } else if (progressive != null)
+                    progressive.cancel();
                 
-                // Get the return value
-                try {
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                    String line;
-                    while ((line = reader.readLine()) != null) ret.append(line);
-                    reader.close();
-                } catch (IOException e) {
-                    throw new Exception("Failed to connect to the destination.");
+                if (ret == null) {
+                    // Post cookies
+                    if (cookies != null && cookies.length() > 0)
+                        connection.setRequestProperty("Cookie", cookies);
+                    
+                    // Post the file content, streamed with its length if it is known
+                    handler.downloadData(null, true);
+                    AudioData audioData = handler.getData();
+                    if (audioData.getStreamLength() < 0) audioData.setListener(NanoGong.this);
+                    uploadPercentage = -1;
+                    upload.setListener(NanoGong.this);
+                    try {
+                        ret = upload.send(audioData);
+                    } catch (IOException e) {
+                        throw new Exception("Failed to connect to the destination.");
+                    } finally {
+                        audioData.setListener(null);
+                    }
                 }
             } catch (Exception e) {
                 throw e;
@@ -1367,10 +1536,10 @@ public class NanoGong extends javax.swing.JApplet implements AudioDataListener,
             // Construct the response
             if (isXML()) {
                 Response response = Response.newResponse("PostToFormResponse");
-                response.setParameter("Return", ret.toString(), false);
+                response.setParameter("Return", ret, false);
                 setResponse(response);
             } else
-                setResponse(ret.toString());
+                setResponse(ret);
         }
         
         protected void loadFromURL() throws Exception {
@@ -21,13 +21,20 @@ import gong.audio.data.SpeexData;
 import gong.audio.data.WavePCMAudioData;
 import gong.event.AudioDataListener;
 
+import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 
 import javax.sound.sampled.AudioFileFormat;
@@ -55,11 +62,46 @@ public abstract class AudioData implements Cloneable {
      */
     protected static final int STREAM_TIMEOUT = 60000;
     
+    /**
+     * The maximum number of attempts to resume an interrupted download
+     */
+    protected static final int MAX_RESUME_ATTEMPTS = 3;
+    
+    /**
+     * The delay before resuming an interrupted download, in milliseconds
+     */
+    private static final int RESUME_DELAY = 1000;
+    
+    /**
+     * The interval of the bandwidth measurement, in milliseconds
+     */
+    protected static final int BANDWIDTH_INTERVAL = 250;
+    
+    /**
+     * The weight of the latest interval in the bandwidth estimate
+     */
+    protected static final double BANDWIDTH_WEIGHT = 0.2D;
+    
+    /**
+     * The buffering policy shared by the audio data without their own policy
+     */
+    private static BufferingPolicy defaultBufferingPolicy = new BandwidthBufferingPolicy();
+    
     /**
      * The default interval for listener update
      */
     protected static final int UPDATE_INTERVAL = 500;
 
+    /**
+     * The status returned by the bulk read functions when the end of data is reached
+     */
+    public static final int END_OF_DATA = -1;
+    
+    /**
+     * The size of the intermediate buffer used by bulk transfers
+     */
+    protected static final int BULK_BUFFER_SIZE = 4096;
+
     /**
      * The features of an audio data - sent progress
      */
@@ -70,6 +112,11 @@ public abstract class AudioData implements Cloneable {
      */
     public static final String FEATURE_RECEIVED_PROGRESS = "received-progress";
     
+    /**
+     * The features of an audio data - progressive send while recording
+     */
+    public static final String FEATURE_PROGRESSIVE_SEND = "progressive-send";
+    
     /**
      * The audio format of the data
      */
@@ -81,9 +128,43 @@ public abstract class AudioData implements Cloneable {
     protected int position = 0;
     
     /**
-     * The asynchronous download thread
+     * The asynchronous download task
      */
-    protected TransferThread transferThread = null;
+    protected TransferTask transferTask = null;
+    
+    /**
+     * The last finished download task, kept for its statistics
+     */
+    private TransferTask finishedTask = null;
+    
+    /**
+     * The priority of the asynchronous download
+     */
+    private int transferPriority = TransferScheduler.NORM_PRIORITY;
+    
+    /**
+     * The scheduler running the asynchronous download
+     */
+    private TransferScheduler transferScheduler = null;
+    
+    /**
+     * The maximum number of connections of the asynchronous download
+     */
+    private int maximumConnections = 1;
+    /**
+     * True if a seek may fetch the data from the seek position
+     */
+    private boolean fetchEnabled = true;
+    
+    /**
+     * The buffering policy of progressive playback, null for the shared policy
+     */
+    private BufferingPolicy bufferingPolicy = null;
+    
+    /**
+     * The source of byte ranges of the download, null if ranges are not supported
+     */
+    protected RangeSource rangeSource = null;
     
     /**
      * The audio data listner
@@ -95,6 +176,11 @@ public abstract class AudioData implements Cloneable {
      */
     protected File cache = null;
     
+    /**
+     * True if the data has been closed after it is written, e.g. at the end of a recording
+     */
+    protected volatile boolean closed = false;
+    
     /**
      * The cache reader
      */
@@ -142,6 +228,88 @@ public abstract class AudioData implements Cloneable {
         }
     }
     
+    /**
+     * Sets the source of byte ranges of the download, which is used to
+     * resume the download and to fetch the data from a seek position
+     * @param source the range source, null if ranges are not supported
+     */
+    public void setRangeSource(RangeSource source) {
+        rangeSource = source;
+    }
+    
+    /**
+     * Gets the source of byte ranges of the download
+     * @return the range source, null if ranges are not supported
+     */
+    public RangeSource getRangeSource() {
+        return rangeSource;
+    }
+    
+    /**
+     * Requests the data of the given media time to be downloaded before the
+     * data in front of it, if the format allows it
+     * @param time the media time
+     * @return true if the data is being fetched from the time
+     */
+    public boolean fetch(long time) {
+        return false;
+    }
+    
+    /**
+     * Gets the media time up to which the data can be read from the current
+     * position without waiting for the download
+     * @return the buffered time
+     */
+    public long getBufferedTime() {
+        return getAvailable();
+    }
+    
+    /**
+     * Reopens an interrupted download at the given byte offset
+     * @param offset the byte offset of the data to be received next
+     * @param cause the exception which has interrupted the download
+     * @param attempt the number of the attempt, starting from 1
+     * @return the input stream from the offset
+     * @throws java.io.IOException the download cannot be resumed
+     */
+    protected InputStream resumeStream(long offset, IOException cause, int attempt) throws IOException {
+        return resumeStream(offset, cause, attempt, null);
+    }
+    
+    /**
+     * Reopens an interrupted download at the given byte offset
+     * @param offset the byte offset of the data to be received next
+     * @param cause the exception which has interrupted the download
+     * @param attempt the number of the attempt, starting from 1
+     * @param task the transfer, which is not resumed once it is cancelled, or null
+     * @return the input stream from the offset
+     * @throws java.io.IOException the download cannot be resumed
+     */
+    private InputStream resumeStream(long offset, IOException cause, int attempt, TransferTask task) throws IOException {
+        if (rangeSource == null || attempt > MAX_RESUME_ATTEMPTS) throw cause;
+        
+        // The end of the file is not an interruption
+        if (cause instanceof EOFException && (rangeSource.getLength() < 0 || offset >= rangeSource.getLength())) throw cause;
+        
+        while (true) {
+            try {
+                Thread.sleep(RESUME_DELAY * (attempt - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw cause;
+            }
+            
+            // A cancelled transfer is not resumed
+            if (task != null && !task.inProgress) throw cause;
+            
+            try {
+                return new BufferedInputStream(rangeSource.open(offset));
+            } catch (IOException e) {
+                if (++attempt > MAX_RESUME_ATTEMPTS) throw e;
+            }
+        }
+    }
+    
     /**
      * Sets the file cache
      * @param file the file
@@ -183,23 +351,89 @@ public abstract class AudioData implements Cloneable {
      * @param buffer the sample buffer
      * @param offset the offset in the buffer
      * @param length the length of the samples to be read
-     * @return the number of samples read
+     * @return the number of samples read, which is 0 if the data is not yet
+     * available or END_OF_DATA if the end of the data has been reached
      * @throws java.io.IOException failed to read sample
      * @throws gong.audio.AudioDataException invalid data/request
      */
     public synchronized int read(int[] buffer, int offset, int length) throws IOException, AudioDataException {
+        int readable = getReadableLength();
+        if (readable <= 0) return getReadStatus();
+        if (length > readable) length = readable;
+        
+        for (int index = offset; index < offset + length; index++) buffer[index] = read();
+        return length;
+    }
+    
+    /**
+     * Reads a block of samples from the audio data
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the length of the samples to be read
+     * @return the number of samples read, which is 0 if the data is not yet
+     * available or END_OF_DATA if the end of the data has been reached
+     * @throws java.io.IOException failed to read sample
+     * @throws gong.audio.AudioDataException invalid data/request
+     */
+    public synchronized int read(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+        int readable = getReadableLength();
+        if (readable <= 0) return getReadStatus();
+        if (length > readable) length = readable;
+        
+        for (int index = offset; index < offset + length; index++) buffer[index] = (short) read();
+        return length;
+    }
+    
+    /**
+     * Reads a block of samples from the audio data into the remaining space of a buffer
+     * @param buffer the sample buffer
+     * @return the number of samples read, which is 0 if the data is not yet
+     * available or END_OF_DATA if the end of the data has been reached
+     * @throws java.io.IOException failed to read sample
+     * @throws gong.audio.AudioDataException invalid data/request
+     */
+    public synchronized int read(ShortBuffer buffer) throws IOException, AudioDataException {
+        if (buffer.hasArray()) {
+            int sampleRead = read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (sampleRead > 0) buffer.position(buffer.position() + sampleRead);
+            return sampleRead;
+        }
+        
+        short[] block = new short[Math.min(buffer.remaining(), BULK_BUFFER_SIZE)];
         int sampleRead = 0;
-        for (int index = offset; index < offset + length; index++) {
-            try {
-                buffer[index] = read();
-                sampleRead++;
-            } catch (Throwable t) {
+        while (buffer.hasRemaining()) {
+            int count = read(block, 0, Math.min(buffer.remaining(), block.length));
+            if (count <= 0) {
+                if (sampleRead == 0) return count;
                 break;
             }
+            buffer.put(block, 0, count);
+            sampleRead += count;
         }
         return sampleRead;
     }
     
+    /**
+     * Gets the number of samples that can be read from the current position
+     * without waiting for more data
+     * @return the number of readable samples
+     */
+    public synchronized int getReadableLength() {
+        int available = (int) ((double) getAvailable() / 1000D * format.getSampleRate());
+        if (available > getLength()) available = getLength();
+        return Math.max(0, available - position);
+    }
+    
+    /**
+     * Gets the status of a read request when no sample is readable
+     * @return END_OF_DATA if the end of the data has been reached; 0 if more
+     * data is expected
+     */
+    protected int getReadStatus() {
+        if (position >= getLength() && !isTransferInProgress()) return END_OF_DATA;
+        return 0;
+    }
+    
     /**
      * Writes a sample to the audio data
      * @param sample the sample value
@@ -208,6 +442,39 @@ public abstract class AudioData implements Cloneable {
      */
     abstract public void write(int sample) throws IOException, AudioDataException;
     
+    /**
+     * Writes a block of samples to the audio data
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the length of the samples to be written
+     * @throws java.io.IOException failed to write sample
+     * @throws gong.audio.AudioDataException invalid data/request
+     */
+    public synchronized void write(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+        for (int index = offset; index < offset + length; index++) write(buffer[index]);
+    }
+    
+    /**
+     * Writes the remaining samples of a buffer to the audio data
+     * @param buffer the sample buffer
+     * @throws java.io.IOException failed to write sample
+     * @throws gong.audio.AudioDataException invalid data/request
+     */
+    public synchronized void write(ShortBuffer buffer) throws IOException, AudioDataException {
+        if (buffer.hasArray()) {
+            write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        
+        short[] block = new short[Math.min(buffer.remaining(), BULK_BUFFER_SIZE)];
+        while (buffer.hasRemaining()) {
+            int count = Math.min(buffer.remaining(), block.length);
+            buffer.get(block, 0, count);
+            write(block, 0, count);
+        }
+    }
+    
     /**
      * Seeks to the given position in the audio data
      * @param position the position of the sample
@@ -353,6 +620,15 @@ public abstract class AudioData implements Cloneable {
      * @throws gong.audio.AudioDataException invalid request
      */
     public void close() throws IOException, AudioDataException {
+        closed = true;
+    }
+    
+    /**
+     * Checks whether the audio data has been closed after it is written
+     * @return true if the data has been closed
+     */
+    public boolean isClosed() {
+        return closed;
     }
     
     /**
@@ -363,6 +639,41 @@ public abstract class AudioData implements Cloneable {
      */
     abstract public void sendToStream(OutputStream stream) throws IOException, AudioDataException;
     
+    /**
+     * Gets the number of bytes sent by sendToStream, if it is known before the data is encoded
+     * @return the number of bytes, -1 if it is unknown
+     */
+    public long getStreamLength() {
+        return -1;
+    }
+    
+    /**
+     * Sends the data which has been recorded since the previous call to the
+     * output stream, so that the data can be uploaded while it is being
+     * recorded. The first call sends the header, and the same stream must be
+     * given to every call. Only the data which will not change any more is
+     * sent, until the last call after the recording has finished, which sends
+     * the end of the data.
+     * @param stream the output stream
+     * @param finished true if the recording has finished
+     * @throws java.io.IOException failed to send data to stream
+     * @throws gong.audio.AudioDataException progressive send is not supported
+     */
+    public void sendProgressiveToStream(OutputStream stream, boolean finished) throws IOException, AudioDataException {
+        throw new AudioDataException("Invalid send request.");
+    }
+    
+    /**
+     * Gets the header of the data sent by sendProgressiveToStream, which
+     * replaces the header sent at the start of the stream when the header
+     * depends on the length of the data
+     * @return the final header, or null if the header sent is not changed
+     * @throws java.io.IOException failed to create the header
+     */
+    public byte[] getProgressiveHeader() throws IOException {
+        return null;
+    }
+    
     /**
      * Receives the audio data from the input stream
      * @param stream the input stream
@@ -372,80 +683,6 @@ public abstract class AudioData implements Cloneable {
      */
     abstract public void receiveFromStream(InputStream stream, boolean synchronous) throws IOException, AudioDataException;
     
-    /**
-     * A custom thread for reading the socket */
-    protected class StreamReader extends Thread {
-        
-        private InputStream stream;
-        private byte[] buffer;
-        private int offset;
-        private int length;
-        private int bytesRead;
-        private boolean eof;
-        private boolean closed;
-        
-        /**
-         * Creates a new instance of StreamReader
-         * @param stream the input stream
-         * @param buffer the data buffer
-         * @param offset the offset in the buffer
-         * @param length the length of the data
-         */
-        public StreamReader(InputStream stream, byte[] buffer, int offset, int length) {
-            this.stream = stream;
-            this.buffer = buffer;
-            this.offset = offset;
-            this.length = length;
-            bytesRead = 0;
-            eof = false;
-            closed = false;
-        }
-        
-        /**
-         * Starts the stream reader
-         */
-        public synchronized void run() {
-            try {
-                while (!closed && bytesRead < length) {
-                    int bytes = stream.read(buffer, offset + bytesRead, length - bytesRead);
-                    if (bytes < 0) {
-                        eof = true;
-                        break;
-                    }
-
-                    bytesRead += bytes;
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            notifyAll();
-        }
-        
-        /**
-         * Closes the stream reader
-         */
-        public void close() {
-            closed = true;
-        }
-        
-        /**
-         * Returns the number of bytes available for reading
-         * @return the number of available bytes remaining
-         */
-        public int getBytesRemaining() {
-            return (length - bytesRead);
-        }
-        
-        /**
-         * Checks whether the current stream reaches EOF
-         * @return true if the current stream reaches EOF
-         */
-        public boolean isEOF() {
-            return eof;
-        }
-        
-    }
-    
     /**
      * Receives byte array from the input stream with timeout
      * @param stream the input stream
@@ -457,24 +694,37 @@ public abstract class AudioData implements Cloneable {
      * @throws java.net.ConnectException failed to connect to the stream
      */
     protected void receiveByteArrayFromStream(InputStream stream, byte[] buffer, int offset, int length) throws IOException, EOFException, ConnectException {
-        StreamReader reader = new StreamReader(stream, buffer, offset, length);
-        synchronized (reader) {
-            reader.start();
-            while (reader.getBytesRemaining() > 0) {
-                try {
-                    reader.wait(STREAM_TIMEOUT);
-                } catch (InterruptedException e) {}
-                if (reader.getBytesRemaining() > 0) {
-                    reader.close();
-                    if (reader.isEOF())
-                        throw new EOFException("Unexpected end of file reached.");
-                    else
-                        throw new ConnectException("Connection timeout.");
-                }
+        // The timeout is enforced by the connection of the stream, see setStreamTimeout
+        try {
+            while (length > 0) {
+                int bytes = stream.read(buffer, offset, length);
+                if (bytes < 0) throw new EOFException("Unexpected end of file reached.");
+                
+                offset += bytes;
+                length -= bytes;
             }
+        } catch (EOFException e) {
+            throw e;
+        } catch (SocketTimeoutException e) {
+            ConnectException ce = new ConnectException("Connection timeout.");
+            ce.initCause(e);
+            throw ce;
+        } catch (IOException e) {
+            ConnectException ce = new ConnectException("Connection failed.");
+            ce.initCause(e);
+            throw ce;
         }
     }
     
+    /**
+     * Sets the timeouts of a connection used for receiving audio data
+     * @param connection the connection
+     */
+    static public void setStreamTimeout(URLConnection connection) {
+        connection.setConnectTimeout(STREAM_TIMEOUT);
+        connection.setReadTimeout(STREAM_TIMEOUT);
+    }
+    
     /**
      * Creates a suitable audio data from the input stream
      * @param stream the input stream
@@ -520,11 +770,179 @@ public abstract class AudioData implements Cloneable {
     }
     
     /**
-     * Creates the transfer thread for data transfer
-     * @return the transfer thread to be used
+     * Creates the transfer task for data transfer
+     * @return the transfer task to be used
      */
-    protected TransferThread getTransferThread() {
-        return new TransferThread();
+    protected TransferTask getTransferTask() {
+        return new TransferTask();
+    }
+    
+    /**
+     * Starts the asynchronous transfer of the audio data, unless one is in progress
+     * @param in the input stream
+     * @param out the output stream
+     */
+    protected synchronized void startTransfer(InputStream in, OutputStream out) {
+        if (transferTask != null) return;
+        
+        transferTask = getTransferTask();
+        transferTask.setPriority(transferPriority);
+        transferTask.start(in, out);
+    }
+    
+    /**
+     * Gets the scheduler running the asynchronous transfer
+     * @return the transfer scheduler
+     */
+    public synchronized TransferScheduler getTransferScheduler() {
+        if (transferScheduler == null) return TransferScheduler.getDefault();
+        return transferScheduler;
+    }
+    
+    /**
+     * Sets the scheduler running the asynchronous transfer, null for the shared scheduler
+     * @param scheduler the transfer scheduler
+     */
+    public synchronized void setTransferScheduler(TransferScheduler scheduler) {
+        transferScheduler = scheduler;
+    }
+    
+    /**
+     * Gets the priority of the asynchronous transfer
+     * @return the transfer priority
+     */
+    public synchronized int getTransferPriority() {
+        return transferPriority;
+    }
+    
+    /**
+     * Sets the priority of the asynchronous transfer, which moves the
+     * transfer ahead of others if it is waiting to be started
+     * @param priority the transfer priority
+     */
+    public synchronized void setTransferPriority(int priority) {
+        transferPriority = priority;
+        if (transferTask != null) getTransferScheduler().setPriority(transferTask, priority);
+    }
+    
+    /**
+     * Gets the maximum number of connections of the asynchronous transfer
+     * @return the maximum number of connections
+     */
+    public synchronized int getMaximumConnections() {
+        return maximumConnections;
+    }
+    
+    /**
+     * Sets the maximum number of connections of the asynchronous transfer.
+     * More than one connection is only used by a format whose data can be
+     * downloaded in segments from a server supporting byte ranges.
+     * @param connections the maximum number of connections
+     */
+    public synchronized void setMaximumConnections(int connections) {
+        maximumConnections = Math.max(1, connections);
+    }
+    
+    /**
+     * Checks whether a seek may fetch the data from the seek position
+     * @return true if the data may be fetched
+     */
+    public synchronized boolean isFetchEnabled() {
+        return fetchEnabled;
+    }
+    
+    /**
+     * Sets whether a seek may fetch the data from the seek position, which
+     * leaves the input stream of the transfer for a range request
+     * @param enabled true if the data may be fetched
+     */
+    public synchronized void setFetchEnabled(boolean enabled) {
+        fetchEnabled = enabled;
+    }
+    
+    /**
+     * Gets the number of bytes received by the current or the last transfer
+     * @return the number of bytes
+     */
+    public synchronized long getTransferredBytes() {
+        TransferTask task = (transferTask != null)? transferTask : finishedTask;
+        if (task == null) return 0;
+        return task.getBytesTransferred();
+    }
+    
+    /**
+     * Gets the error which has ended the current or the last transfer
+     * @return the error, null if the transfer has not failed
+     */
+    public synchronized Throwable getTransferError() {
+        TransferTask task = (transferTask != null)? transferTask : finishedTask;
+        if (task == null) return null;
+        return task.getError();
+    }
+    
+    /**
+     * Gets the throughput of the current or the last transfer
+     * @return the number of bytes per second
+     */
+    public synchronized double getTransferRate() {
+        TransferTask task = (transferTask != null)? transferTask : finishedTask;
+        if (task == null) return 0;
+        return task.getThroughput();
+    }
+    
+    /**
+     * Gets the estimated bandwidth of the current or the last transfer,
+     * which follows the recent throughput more closely than the transfer rate
+     * @return the number of bytes per second, 0 if it is unknown
+     */
+    public synchronized double getBandwidth() {
+        TransferTask task = (transferTask != null)? transferTask : finishedTask;
+        if (task == null) return 0;
+        return task.getBandwidth();
+    }
+    
+    /**
+     * Gets the number of bytes of the received data for each second of audio
+     * @return the data rate in bytes per second, 0 if it is unknown
+     */
+    public synchronized double getDataRate() {
+        long available = getAvailable();
+        long bytes = getTransferredBytes();
+        if (available <= 0 || bytes <= 0) return 0;
+        return bytes * 1000D / available;
+    }
+    
+    /**
+     * Gets the duration of the data when it has been fully received
+     * @return the duration in milliseconds, -1 if it is unknown
+     */
+    public long getExpectedDuration() {
+        return getDuration();
+    }
+    
+    /**
+     * Gets the buffering policy of progressive playback
+     * @return the buffering policy
+     */
+    public synchronized BufferingPolicy getBufferingPolicy() {
+        if (bufferingPolicy == null) return defaultBufferingPolicy;
+        return bufferingPolicy;
+    }
+    
+    /**
+     * Sets the buffering policy of progressive playback, null for the shared policy
+     * @param policy the buffering policy
+     */
+    public synchronized void setBufferingPolicy(BufferingPolicy policy) {
+        bufferingPolicy = policy;
+    }
+    
+    /**
+     * Sets the buffering policy shared by the audio data without their own policy
+     * @param policy the buffering policy, null for the default policy
+     */
+    public static synchronized void setDefaultBufferingPolicy(BufferingPolicy policy) {
+        defaultBufferingPolicy = (policy != null)? policy : new BandwidthBufferingPolicy();
     }
     
     /**
@@ -532,18 +950,22 @@ public abstract class AudioData implements Cloneable {
      * @param rate the current playback rate
      * @return true if the transfer buffer is filled
      */
-    public synchronized boolean isTransferBuffered(float rate) {
-        if (!isAvailable()) return false;
+    public boolean isTransferBuffered(float rate) {
+        return isTransferBuffered(rate, 0);
+    }
+    
+    /**
+     * Checks whether the current transfer buffer is filled, as decided by the buffering policy
+     * @param rate the current playback rate
+     * @param decodeCost the time taken to decode the data relative to its duration, 0 if it is unknown
+     * @return true if the transfer buffer is filled
+     */
+    public synchronized boolean isTransferBuffered(float rate, double decodeCost) {
+        // No more data is received once the transfer has ended
         if (!isTransferInProgress()) return true;
+        if (!isAvailable()) return false;
         
-        // under or on 1 minute, wait for the whole buffer; otherwise download 30 sec only
-        if (getDuration() <= 60000) {
-            long transferTime = transferThread.getTime();
-            long remaining = getDuration() - getAvailable();
-            
-            return ((double) remaining * (transferTime + 1000D) / (double) getAvailable()) * rate * 1.1D <= (getDuration() - getTime());
-        } else
-            return ((getAvailable() - getTime()) * rate >= 30000 || getAvailable() == getDuration());
+        return getBufferingPolicy().isBuffered(this, rate, decodeCost);
     }
     
     /**
@@ -551,7 +973,7 @@ public abstract class AudioData implements Cloneable {
      * @return true if the audio data is being transferred
      */
     public synchronized boolean isTransferInProgress() {
-        return (transferThread != null);
+        return (transferTask != null);
     }
     
     /**
@@ -559,46 +981,156 @@ public abstract class AudioData implements Cloneable {
      */
     public synchronized void stopTransfer() {
         if (isTransferInProgress()) {
-            transferThread.kill();
-            transferThread = null;
+            transferTask.cancel();
+            transferTask = null;
         }
     }
     
     /**
-     * The class template for the transfer thread
+     * The class template for the transfer task, which is run by the transfer
+     * scheduler. The transfer checks inProgress between its reads so that it
+     * can be cancelled.
      */
-    protected class TransferThread extends Thread {
+    protected class TransferTask implements Runnable, Comparable {
         
         /**
          * The input stream
          */
-        protected InputStream in = null;
+        protected volatile InputStream in = null;
         /**
          * The output stream
          */
         protected OutputStream out = null;
-        private long startTime;
+        private long startTime = 0;
+        private long endTime = 0;
+        private volatile long bytesTransferred = 0;
+        private long intervalStart = 0;
+        private long intervalBytes = 0;
+        private double bandwidth = 0;
+        private boolean estimated = false;
+        private int priority = TransferScheduler.NORM_PRIORITY;
+        private long sequence = 0;
+        private volatile Throwable error = null;
         /**
-         * True if the thread is in progress
+         * True if the transfer is in progress
          */
-        protected boolean inProgress = true;
+        protected volatile boolean inProgress = true;
         
         /**
-         * Starts the transfer
+         * Schedules the transfer
          * @param in the input stream
          * @param out the output stream
          */
         public void start(InputStream in, OutputStream out) {
-            this.in = in;
+            setInputStream(in);
             this.out = out;
-            start();
+            getTransferScheduler().schedule(this);
+        }
+        
+        /**
+         * Sets the input stream of the transfer, e.g. when it is resumed,
+         * counting the bytes received from it
+         * @param in the input stream
+         */
+        protected void setInputStream(InputStream in) {
+            if (this.in != null) abortRead();
+            this.in = countStream(in);
+        }
+        
+        /**
+         * Reopens the interrupted input stream of the transfer at the given
+         * byte offset, unless the transfer has been cancelled
+         * @param offset the byte offset of the data to be received next
+         * @param cause the exception which has interrupted the download
+         * @param attempt the number of the attempt, starting from 1
+         * @return the input stream from the offset
+         * @throws java.io.IOException the download cannot be resumed
+         */
+        protected InputStream resumeStream(long offset, IOException cause, int attempt) throws IOException {
+            return AudioData.this.resumeStream(offset, cause, attempt, this);
+        }
+        
+        /**
+         * Wraps an input stream of the transfer to count the bytes received from it
+         * @param in the input stream
+         * @return the counting input stream
+         */
+        protected InputStream countStream(InputStream in) {
+            return new FilterInputStream(in) {
+                public int read() throws IOException {
+                    int data = super.read();
+                    if (data >= 0) addBytesTransferred(1);
+                    return data;
+                }
+                
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int bytes = super.read(buffer, offset, length);
+                    if (bytes > 0) addBytesTransferred(bytes);
+                    return bytes;
+                }
+            };
+        }
+        
+        /**
+         * Adds to the number of bytes received, which may be counted by several connections
+         * @param bytes the number of bytes
+         */
+        private synchronized void addBytesTransferred(long bytes) {
+            bytesTransferred += bytes;
+            intervalBytes += bytes;
+            updateBandwidth(new Date().getTime());
+        }
+        
+        /**
+         * Updates the bandwidth estimate with the intervals which have
+         * passed. A longer gap between the reads weighs as several intervals.
+         * @param time the current time
+         */
+        private void updateBandwidth(long time) {
+            if (intervalStart == 0 || endTime > 0) return;
+            
+            long elapsed = time - intervalStart;
+            if (elapsed < BANDWIDTH_INTERVAL) return;
+            
+            // The latency before the first bytes is not counted
+            double throughput = intervalBytes * 1000D / elapsed;
+            if (!estimated) {
+                bandwidth = throughput;
+                estimated = (intervalBytes > 0);
+            } else {
+                double weight = 1D - Math.pow(1D - BANDWIDTH_WEIGHT, (double) elapsed / BANDWIDTH_INTERVAL);
+                bandwidth += (throughput - bandwidth) * weight;
+            }
+            intervalStart = time;
+            intervalBytes = 0;
+        }
+        
+        /**
+         * Gets the estimated bandwidth, which is a moving average of the
+         * throughput of the recent intervals
+         * @return the number of bytes per second, 0 if it is unknown
+         */
+        public synchronized double getBandwidth() {
+            updateBandwidth(new Date().getTime());
+            return bandwidth;
+        }
+        
+        /**
+         * Aborts the current read of the transfer by closing its input stream
+         */
+        public void abortRead() {
+            try {
+                in.close();
+            } catch (Exception ex) {}
         }
         
         /**
          * Records the start time of the transfer
          */
-        protected void recordStartTime() {
+        protected synchronized void recordStartTime() {
             startTime = (new Date().getTime());
+            intervalStart = startTime;
+            intervalBytes = 0;
         }
         
         /**
@@ -606,27 +1138,126 @@ public abstract class AudioData implements Cloneable {
          * @return the elapsed time
          */
         public long getTime() {
+            if (startTime == 0) return 0;
+            if (endTime > 0) return endTime - startTime;
             return (new Date().getTime()) - startTime;
         }
         
         /**
-         * Starts the transfer
+         * Gets the number of bytes received
+         * @return the number of bytes
+         */
+        public long getBytesTransferred() {
+            return bytesTransferred;
+        }
+        
+        /**
+         * Gets the throughput of the transfer
+         * @return the number of bytes per second
+         */
+        public double getThroughput() {
+            long time = getTime();
+            if (time <= 0) return 0;
+            return bytesTransferred * 1000D / time;
+        }
+        
+        /**
+         * Gets the priority of the transfer
+         * @return the priority
+         */
+        public int getPriority() {
+            return priority;
+        }
+        
+        /**
+         * Sets the priority of the transfer, which is used when it is scheduled
+         * @param priority the priority
+         */
+        void setPriority(int priority) {
+            this.priority = priority;
+        }
+        
+        /**
+         * Sets the order of the transfer among those of the same priority
+         * @param sequence the sequence number
+         */
+        void setSequence(long sequence) {
+            this.sequence = sequence;
+        }
+        
+        /**
+         * Compares the transfer with another one, the one to be started first being smaller
+         * @param o the other transfer
+         * @return the comparison result
+         */
+        public int compareTo(Object o) {
+            TransferTask task = (TransferTask) o;
+            if (priority != task.priority) return (priority > task.priority)? -1 : 1;
+            if (sequence != task.sequence) return (sequence < task.sequence)? -1 : 1;
+            return 0;
+        }
+        
+        /**
+         * Runs the transfer
          */
         public void run() {
             recordStartTime();
+            try {
+                if (inProgress) transfer();
+            } catch (Throwable t) {
+                // A cancelled transfer is not a failure
+                if (inProgress) error = t;
+            }
+            finish();
+            
+            // The listener is told about a failed transfer as well
+            AudioDataListener listener = AudioData.this.listener;
+            if (error != null && listener != null) listener.finish(AudioData.this, getAvailable());
         }
         
         /**
-         * Kills the transfer
+         * Gets the error which has ended the transfer
+         * @return the error, null if the transfer has not failed
          */
-        public void kill() {
-            try {
-                in.close();
-            } catch (Exception ex) {}
+        public Throwable getError() {
+            return error;
+        }
+        
+        /**
+         * Transfers the data until the end of the stream or the transfer is cancelled
+         * @throws java.lang.Exception failed to transfer the data
+         */
+        protected void transfer() throws Exception {
+        }
+        
+        /**
+         * Closes the output stream and ends the transfer
+         */
+        private void finish() {
+            endTime = (new Date().getTime());
             try {
-                out.close();
-            } catch (Exception ex) {}
+                if (out != null) out.close();
+            } catch (IOException ex) {}
+            
+            synchronized (AudioData.this) {
+                finishedTask = this;
+                if (transferTask == this) transferTask = null;
+            }
+        }
+        
+        /**
+         * Cancels the transfer. A waiting transfer is not started and a
+         * running transfer stops at its next read.
+         */
+        public void cancel() {
             inProgress = false;
+            if (getTransferScheduler().remove(this)) {
+                finish();
+                return;
+            }
+            
+            // Unblock the current read
+            abortRead();
         }
         
     }
@@ -636,16 +1267,48 @@ public abstract class AudioData implements Cloneable {
      */
     protected class CacheInputStream {
         
-        private FileInputStream stream;
-        private long position;
-        private byte data;
+        /**
+         * The size of the window of bytes kept for single byte reads
+         */
+        private static final int WINDOW_SIZE = 4096;
+        
+        private File file;
+        private RandomAccessFile randomAccessFile;
+        private volatile FileChannel channel;
+        private byte[] window = new byte[WINDOW_SIZE];
+        private long windowPosition;
+        private int windowLength;
         
         /**
          * Creates a new instance of CacheInputStream
          */
         public CacheInputStream() {
-            stream = null;
-            position = -1;
+            file = null;
+            randomAccessFile = null;
+            channel = null;
+            windowPosition = -1;
+            windowLength = 0;
+        }
+        
+        /**
+         * Gets the channel of the cache file, opening it if necessary
+         * @return the file channel
+         * @throws java.io.IOException failed to open the cache
+         */
+        private FileChannel getChannel() throws IOException {
+            FileChannel channel = this.channel;
+            if (channel != null && channel.isOpen() && file == cache) return channel;
+            
+            synchronized (this) {
+                // The channel is closed if a thread is interrupted while reading it
+                if (this.channel == null || !this.channel.isOpen() || file != cache) {
+                    close();
+                    file = cache;
+                    randomAccessFile = new RandomAccessFile(file, "r");
+                    this.channel = randomAccessFile.getChannel();
+                }
+                return this.channel;
+            }
         }
         
         /**
@@ -655,7 +1318,27 @@ public abstract class AudioData implements Cloneable {
          * @throws java.io.IOException failed to read the cache
          */
         public void read(byte[] data, long pos) throws IOException {
-            for (int index = 0; index < data.length; index++) data[index] = read(index + pos);
+            read(data, 0, data.length, pos);
+        }
+        
+        /**
+         * Reads part of a buffer from the cache with positional reads, which
+         * can be done by several threads at the same time
+         * @param data the data buffer
+         * @param offset the offset in the buffer
+         * @param length the number of bytes to read
+         * @param pos the position to start reading
+         * @return the number of bytes read, less than the length if the end of the cache is reached
+         * @throws java.io.IOException failed to read the cache
+         */
+        public int read(byte[] data, int offset, int length, long pos) throws IOException {
+            FileChannel channel = getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (buffer.hasRemaining()) {
+                int bytes = channel.read(buffer, pos + buffer.position() - offset);
+                if (bytes < 0) break;
+            }
+            return buffer.position() - offset;
         }
         
         /**
@@ -664,28 +1347,35 @@ public abstract class AudioData implements Cloneable {
          * @return the sample
          * @throws java.io.IOException failed to read the sample
          */
-        public byte read(long pos) throws IOException {
-            if (pos == position) return data;
-            if (stream == null || pos < position) {
-                if (stream != null) stream.close();
-                stream = new FileInputStream(cache);
+        public synchronized byte read(long pos) throws IOException {
+            if (pos < windowPosition || pos >= windowPosition + windowLength) {
+                // The window is reset if the cache is reopened by the read
+                int length = read(window, 0, window.length, pos);
+                windowPosition = pos;
+                windowLength = length;
+                if (windowLength <= 0) {
+                    windowPosition = -1;
+                    windowLength = 0;
+                    return (byte) -1;
+                }
             }
-            if (position == -1 || pos < position)
-                stream.skip(pos);
-            else if (pos - position > 1)
-                stream.skip(pos - position - 1);
-            data = (byte) stream.read();
-            position = pos;
             
-            return data;
+            return window[(int) (pos - windowPosition)];
         }
         
         /**
          * Closes the cache input stream
          * @throws java.io.IOException failed to close the stream
          */
-        public void close() throws IOException {
-            if (stream != null) stream.close();
+        public synchronized void close() throws IOException {
+            windowPosition = -1;
+            windowLength = 0;
+            channel = null;
+            if (randomAccessFile != null) {
+                RandomAccessFile randomAccessFile = this.randomAccessFile;
+                this.randomAccessFile = null;
+                randomAccessFile.close();
+            }
         }
         
     }
@@ -28,6 +28,7 @@ import java.io.BufferedInputStream;
 import java.net.ConnectException;
 import gong.audio.data.ImaADPCMData;
 import java.io.File;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Vector;
 import javax.sound.sampled.AudioFormat;
@@ -188,6 +189,36 @@ public class AudioHandler {
      */
     protected float amplitude = 0;
     
+    /**
+     * The number of frames decoded ahead of the playback
+     */
+    protected int decodeAheadDepth = DecodeAheadBuffer.DEFAULT_DEPTH;
+    
+    /**
+     * Whether the time-stretching uses the fast similarity search
+     */
+    protected boolean fastTimeStretch = false;
+    
+    /**
+     * The number of underruns of the last playback
+     */
+    protected long underruns = 0;
+    
+    /**
+     * The priority of the download of the audio data
+     */
+    protected int transferPriority = TransferScheduler.NORM_PRIORITY;
+    
+    /**
+     * The maximum number of connections of the download
+     */
+    protected int downloadConnections = 1;
+    
+    /**
+     * The cache of the downloaded files, null if the files are not cached
+     */
+    protected DownloadCache downloadCache = null;
+    
     /**
      * Adds a listener
      * @param listener the audio handler listener
@@ -384,12 +415,20 @@ public class AudioHandler {
             }
         } else {
             BufferedInputStream stream;
+            RangeSource rangeSource;
             try {
                 URL url = new URL(Utility.encodeURL(getURL()));
                 URLConnection connection = url.openConnection();
                 connection.setUseCaches(false);
+                AudioData.setStreamTimeout(connection);
+                
+                if (downloadCache != null)
+                    stream = new BufferedInputStream(downloadCache.openStream(connection));
+                else
+                    stream = new BufferedInputStream(connection.getInputStream());
                 
-                stream = new BufferedInputStream(connection.getInputStream());
+                // Interrupted downloads are resumed with range requests
+                rangeSource = RangeSource.create(connection);
             } catch (Exception e) {
                 throw new AudioHandlerException("Failed to establish connection to the server.", e);
             }
@@ -398,6 +437,13 @@ public class AudioHandler {
                 AudioData audioData = AudioData.createFromStream(stream);
                 audioData.setCache(cache);
                 audioData.setListener(listener);
+                audioData.setTransferPriority(transferPriority);
+                
+                // The download cache stores the input stream of the transfer only
+                // when it is read to the end, so the data is received in order
+                audioData.setMaximumConnections((downloadCache != null)? 1 : downloadConnections);
+                audioData.setFetchEnabled(downloadCache == null);
+                audioData.setRangeSource(rangeSource);
                 audioData.receiveFromStream(stream, synchronous);
 
                 setURL(null);
@@ -427,6 +473,9 @@ public class AudioHandler {
     public void setTime(long time) {
         this.time = time;
         
+        // Fetch the data from the time if it is far from the downloaded data
+        if (audioData != null) audioData.fetch(time);
+        
         if (player != null) {
             player.setTime(time);
         } else if (listeners.size() > 0) {
@@ -469,6 +518,126 @@ public class AudioHandler {
         return amplitude;
     }
     
+    /**
+     * Sets the number of frames decoded ahead of the playback, which is
+     * used from the next playback
+     * @param depth the number of frames
+     */
+    public void setDecodeAheadDepth(int depth) {
+        if (depth < 1) depth = 1;
+        decodeAheadDepth = depth;
+    }
+    
+    /**
+     * Gets the number of frames decoded ahead of the playback
+     * @return the number of frames
+     */
+    public int getDecodeAheadDepth() {
+        return decodeAheadDepth;
+    }
+    
+    /**
+     * Sets whether the time-stretching at the adjusted playback rate uses
+     * the fast similarity search, which is used from the next playback
+     * @param fastTimeStretch true to use the fast search
+     */
+    public void setFastTimeStretch(boolean fastTimeStretch) {
+        this.fastTimeStretch = fastTimeStretch;
+    }
+    
+    /**
+     * Checks if the time-stretching uses the fast similarity search
+     * @return true if the fast search is used
+     */
+    public boolean isFastTimeStretch() {
+        return fastTimeStretch;
+    }
+    
+    /**
+     * Gets the number of times the current or the last playback has run out
+     * of decoded samples
+     * @return the number of underruns
+     */
+    public long getUnderruns() {
+        Player player = this.player;
+        if (player != null) return player.getUnderruns();
+        return underruns;
+    }
+    
+    /**
+     * Gets the estimated bandwidth of the current or the last download
+     * @return the number of bytes per second, 0 if it is unknown
+     */
+    public double getBandwidth() {
+        AudioData audioData = this.audioData;
+        if (audioData == null) return 0;
+        return audioData.getBandwidth();
+    }
+    
+    /**
+     * Sets the priority of the download, e.g. MAX_PRIORITY of the transfer
+     * scheduler for the visible item
+     * @param priority the transfer priority
+     */
+    public void setTransferPriority(int priority) {
+        transferPriority = priority;
+        
+        AudioData audioData = this.audioData;
+        if (audioData != null) audioData.setTransferPriority(priority);
+    }
+    
+    /**
+     * Gets the priority of the download
+     * @return the transfer priority
+     */
+    public int getTransferPriority() {
+        return transferPriority;
+    }
+    
+    /**
+     * Sets the maximum number of connections of the download, which are
+     * used to download large files in parallel segments if the format and
+     * the server allow it. A download stored by the download cache uses
+     * one connection.
+     * @param connections the maximum number of connections
+     */
+    public void setDownloadConnections(int connections) {
+        downloadConnections = Math.max(1, connections);
+    }
+    
+    /**
+     * Gets the maximum number of connections of the download
+     * @return the maximum number of connections
+     */
+    public int getDownloadConnections() {
+        return downloadConnections;
+    }
+    
+    /**
+     * Sets the cache of the downloaded files, a cached download is received
+     * in order using one connection and is not fetched from a seek position
+     * @param cache the download cache, null if the files are not cached
+     */
+    public void setDownloadCache(DownloadCache cache) {
+        downloadCache = cache;
+    }
+    
+    /**
+     * Gets the cache of the downloaded files
+     * @return the download cache, null if the files are not cached
+     */
+    public DownloadCache getDownloadCache() {
+        return downloadCache;
+    }
+    
+    /**
+     * Cancels the download of the audio data
+     */
+    public void cancelDownload() {
+        AudioData audioData = this.audioData;
+        if (audioData != null) audioData.stopTransfer();
+    }
+    
     /**
      * This class contains the audio recorder.
      */
@@ -488,7 +657,6 @@ public class AudioHandler {
         private boolean stopped = false;
         private float maxAmplitude = 0;
         private int amplSampleCount = 0;
-        private float sampleCount = 0;
         private long totalBufferBlock = 0;
         private long silenceBufferBlock = 0;
         private long timeToStop = 0;
@@ -542,6 +710,7 @@ public class AudioHandler {
             int bufferLengthInFrames = line.getBufferSize() / 8;
             int bufferLengthInBytes = bufferLengthInFrames * sourceFormat.getFrameSize();
             byte[] buffer = new byte[bufferLengthInBytes];
+            short[] captured = new short[bufferLengthInBytes / 2];
             
             int numBytesRead;
             long time = 0;
@@ -556,7 +725,8 @@ public class AudioHandler {
                 recordData = null;
             }
             
-            float step = sourceFormat.getSampleRate() / targetFormat.getSampleRate();
+            Resampler resampler = new Resampler(sourceFormat.getSampleRate(), targetFormat.getSampleRate());
+            short[] resampled = new short[resampler.getOutputLength(captured.length)];
             
             while (!stopped) {
                 numBytesRead = line.read(buffer, 0, bufferLengthInBytes);
@@ -566,39 +736,41 @@ public class AudioHandler {
                 if (paused) continue;
 
                 int silence = 0;
-                for (int index = 0; index < numBytesRead; index+= 2) {
-                    int sample = ((buffer[index] << 8) | (buffer[index + 1] & 0xFF));
+                for (int index = 0; index < numBytesRead / 2; index++) {
+                    int sample = ((buffer[2 * index] << 8) | (buffer[2 * index + 1] & 0xFF));
+                    captured[index] = (short) sample;
                     
-                    // Get the sample amplitude ratio and silence level
-                    float ratio = (float) sample / 32768f;
+                    // Get the silence level
+                    if (sample < 0) sample = -sample;
+                    if (sample < MIN_SILENCE_LEVEL * 32768f) silence++;
+                }
+                
+                // Convert the samples to the rate of the data
+                int count = resampler.process(captured, 0, numBytesRead / 2, resampled, 0);
+                try {
+                    audioData.write(resampled, 0, count);
+                } catch (Throwable t) {}
+                
+                for (int index = 0; index < count; index++) {
+                    // Get the max amplitude value
+                    float ratio = (float) resampled[index] / 32768f;
                     if (ratio < 0) ratio = -ratio;
-                    if (ratio < MIN_SILENCE_LEVEL) silence++;
+                    if (ratio > maxAmplitude) maxAmplitude = ratio;
                     
-                    if (sampleCount < 1) {
-                        try {
-                            audioData.write(sample);
-                        } catch (Throwable t) {}
-                        
-                        // Get the max amplitude value
-                        if (ratio > maxAmplitude) maxAmplitude = ratio;
-                        
-                        // Update display for every fifth of a second
-                        amplSampleCount++;
-                        if (amplSampleCount == (int) targetFormat.getSampleRate() / 5) {
-                            amplitude = maxAmplitude;
-                            if (listeners.size() > 0) {
-                                for (Enumeration e = listeners.elements(); e.hasMoreElements();) {
-                                    AudioHandlerListener listener = (AudioHandlerListener) e.nextElement();
-                                    listener.amplitudeUpdate(handler, maxAmplitude);
-                                }
+                    // Update display for every fifth of a second
+                    amplSampleCount++;
+                    if (amplSampleCount == (int) targetFormat.getSampleRate() / 5) {
+                        amplitude = maxAmplitude;
+                        if (listeners.size() > 0) {
+                            for (Enumeration e = listeners.elements(); e.hasMoreElements();) {
+                                AudioHandlerListener listener = (AudioHandlerListener) e.nextElement();
+                                listener.amplitudeUpdate(handler, maxAmplitude);
                             }
-                            
-                            amplSampleCount = 0;
-                            maxAmplitude = 0;
                         }
+                        
+                        amplSampleCount = 0;
+                        maxAmplitude = 0;
                     }
-                    sampleCount++;
-                    if (sampleCount >= step) sampleCount -= step;
                 }
                 
                 if ((float) silence / (float) (numBytesRead / 2f) > MIN_SILENCE_PERCENTAGE)
@@ -623,6 +795,7 @@ public class AudioHandler {
             line.close();
 
             try {
+                audioData.write(resampled, 0, resampler.drain(resampled, 0));
                 audioData.close();
             }
             catch (Exception e) {}
@@ -703,6 +876,9 @@ public class AudioHandler {
      */
     protected class Player extends Thread {
         
+        /** The number of decoded samples played in one batch */
+        private final static int BATCH_SIZE = 1024;
+        
         private AudioHandler handler;
         private SourceDataLine line;
         private AudioFormat sourceFormat;
@@ -713,8 +889,13 @@ public class AudioHandler {
         private int delay = 0;
         private float rate = 1.0f;
         private OlaBuffer olaBuffer;
+        private DecodeAheadBuffer decodeAhead;
+        private short[] decoded;
+        private short[] stretched;
+        private short[] resampled;
         private byte[] buffer;
-        private int position;
+        private Resampler resampler;
+        private int peak = 0;
         private float maxAmplitude = 0;
         
         /**
@@ -731,6 +912,7 @@ public class AudioHandler {
             this.timeToStop = timeToStop;
 
             olaBuffer = new OlaBuffer(sourceFormat, rate);
+            olaBuffer.setFastSearch(fastTimeStretch);
         }
         
         /**
@@ -750,12 +932,16 @@ public class AudioHandler {
 
             delay = (int) ((float) line.getBufferSize() / (targetFormat.getFrameRate() * targetFormat.getFrameSize()) * 1000f) + 15;
             
+            decodeAhead = new DecodeAheadBuffer(audioData, decodeAheadDepth);
             setTime(0);
             
             audioData.reset();
 
-            buffer = new byte[(int) (targetFormat.getFrameRate() * targetFormat.getFrameSize() / 4f)];
-            position = 0;
+            resampler = new Resampler(sourceFormat.getSampleRate(), targetFormat.getSampleRate());
+            decoded = new short[BATCH_SIZE];
+            stretched = new short[BATCH_SIZE];
+            resampled = new short[resampler.getOutputLength(BATCH_SIZE)];
+            buffer = new byte[2 * resampled.length];
         }
         
         /**
@@ -765,21 +951,63 @@ public class AudioHandler {
             stopped = true;
         }
         
-        private void write(int sample) {
-            buffer[2 * position] = (byte) ((sample >> 8) & 0xFF);
-            buffer[2 * position + 1] = (byte) (sample & 0xFF);
-            position++;
-            if (position >= buffer.length / 2) {
-                line.write(buffer, 0, 2 * position);
-                position = 0;
-            }
-
-            // Get the sample amplitude ratio
-            float ratio = (float) sample / 32768f;
-            if (ratio < 0) ratio = -ratio;
+        /**
+         * Gets the number of times the player has run out of decoded samples
+         * @return the number of underruns
+         */
+        public long getUnderruns() {
+            return decodeAhead.getUnderruns();
+        }
+        
+        /**
+         * Time-stretches a batch of decoded samples and converts the result
+         * to the bytes of the playback format. At the normal rate the decoded
+         * samples are converted as they are.
+         * @param length the number of decoded samples
+         * @return the number of bytes in the byte buffer
+         */
+        private int process(int length) {
+            if (olaBuffer.isPassThrough()) return convert(decoded, length, 0);
+            
+            if (olaBuffer.getOutputLength(length) > stretched.length) stretched = new short[olaBuffer.getOutputLength(length)];
+            return convert(stretched, olaBuffer.process(decoded, length, stretched), 0);
+        }
+        
+        /**
+         * Resamples the stretched samples to the playback rate and appends
+         * them to the byte buffer. The samples are appended as they are if the
+         * rates are the same.
+         * @param samples the stretched samples
+         * @param length the number of stretched samples
+         * @param bytes the number of bytes in the byte buffer
+         * @return the new number of bytes in the byte buffer
+         */
+        private int convert(short[] samples, int length, int bytes) {
+            if (resampler.isPassThrough()) return append(samples, length, bytes);
+            
+            if (resampler.getOutputLength(length) > resampled.length) resampled = new short[resampler.getOutputLength(length)];
+            return append(resampled, resampler.process(samples, 0, length, resampled, 0), bytes);
+        }
+        
+        /**
+         * Appends the resampled samples to the byte buffer
+         * @param samples the resampled samples
+         * @param length the number of resampled samples
+         * @param bytes the number of bytes in the byte buffer
+         * @return the new number of bytes in the byte buffer
+         */
+        private int append(short[] samples, int length, int bytes) {
+            if (bytes + 2 * length > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(bytes + 2 * length, 2 * buffer.length));
             
-            // Get the max amplitude value
-            if (ratio > maxAmplitude) maxAmplitude = ratio;
+            for (int index = 0; index < length; index++) {
+                int sample = samples[index];
+                if (sample > peak) peak = sample;
+                else if (-sample > peak) peak = -sample;
+                
+                buffer[bytes++] = (byte) ((sample >> 8) & 0xFF);
+                buffer[bytes++] = (byte) (sample & 0xFF);
+            }
+            return bytes;
         }
         
         /**
@@ -787,20 +1015,21 @@ public class AudioHandler {
          */
         public void run() {
             line.start();
+            decodeAhead.start();
             
             int updateInterval = (int) sourceFormat.getSampleRate() / 5;
             int updateSampleCount = 0;
-            float sampleCount = 0;
-            float step = targetFormat.getSampleRate() / sourceFormat.getSampleRate();
             
-            int sample;
+            // The first position after the time to stop, which ends the last batch
+            long stopPosition = (long) Math.ceil((timeToStop + 1) * sourceFormat.getSampleRate() / 1000D);
+            
             long time = 0, duration = audioData.getDuration();
             
             while (!stopped) {
                 // Buffer the data
-                if (audioData.getTime() == 0 || !audioData.isAvailable()) {
+                if (decodeAhead.getPosition() == 0 || !decodeAhead.isAvailable()) {
                     buffering = true;
-                    while (!audioData.isTransferBuffered(rate)) {
+                    while (!audioData.isTransferBuffered(rate, decodeAhead.getDecodeCost())) {
                         try {
                             sleep(100);
                         } catch (Exception e) {}
@@ -810,22 +1039,30 @@ public class AudioHandler {
                 }
                 if (stopped) break;
                 
+                // Wait for the decoded samples
+                if (!decodeAhead.isAvailable()) {
+                    if (decodeAhead.isEnded()) break;
+                    decodeAhead.waitAvailable(100);
+                    continue;
+                }
+                
                 try {
+                    int bytes = 0;
                     synchronized (this) {
-                        if (audioData.isAvailable()) {
-                            sample = audioData.read();
-
-                            while (sampleCount < step) {
-                                olaBuffer.write(sample);
-                                sampleCount++;
-
-                                while (olaBuffer.isAvailable()) write(olaBuffer.read());
-                            }
-                            sampleCount -= step;
+                        int length = BATCH_SIZE;
+                        if (timeToStop > 0) length = (int) Math.max(1, Math.min(length, stopPosition - decodeAhead.getPosition()));
+                        
+                        length = decodeAhead.read(decoded, 0, length);
+                        if (length > 0) {
+                            bytes = process(length);
+                            if (peak / 32768f > maxAmplitude) maxAmplitude = peak / 32768f;
+                            peak = 0;
                         
                             // Update the time
-                            time = audioData.getTime();
-                            if ((++updateSampleCount) % updateInterval == 0) {
+                            time = decodeAhead.getTime();
+                            updateSampleCount += length;
+                            if (updateSampleCount >= updateInterval) {
+                                updateSampleCount %= updateInterval;
                                 if (timeToStop <= 0 || time <= timeToStop) {
                                     if (time - delay > timeToStart) {
                                         listenerUpdate(time - delay, maxAmplitude);
@@ -840,6 +1077,7 @@ public class AudioHandler {
                             }
                         }
                     }
+                    if (bytes > 0) line.write(buffer, 0, bytes);
                 
                     // Time to stop
                     if (timeToStop > 0 && time > timeToStop) break;
@@ -851,9 +1089,14 @@ public class AudioHandler {
                 }
             }
             
+            decodeAhead.kill();
+            underruns = decodeAhead.getUnderruns();
+            
             olaBuffer.drain();
-            while (olaBuffer.isAvailable()) write(olaBuffer.read());
-            if (position > 0) line.write(buffer, 0, 2 * position);
+            int bytes = 0;
+            while (olaBuffer.isAvailable()) bytes = convert(stretched, olaBuffer.read(stretched, 0, stretched.length), bytes);
+            bytes = append(resampled, resampler.drain(resampled, 0), bytes);
+            if (bytes > 0) line.write(buffer, 0, bytes);
             
             if (stopped)
                 line.flush();
@@ -886,7 +1129,7 @@ public class AudioHandler {
         public void setTime(long time) {
             try {
                 synchronized (this) {
-                    audioData.setTime(time);
+                    decodeAhead.seek(time);
                     AudioHandler.this.time = time;
                     timeToStart = time;
                 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+/**
+ * This class is the default buffering policy of progressive playback. It
+ * compares the estimated bandwidth of the transfer, converted to media time
+ * by the data rate of the audio data, with the speed of the playback, and
+ * waits for the smallest lead which lets the playback reach the end of the
+ * data without stalling.
+ * <p>
+ * A link which is faster than the playback only needs the minimum lead. On
+ * a slower link, the lead covers the data which would be missing at the
+ * end of the playback, with a safety margin for bursty transfers. If the
+ * total duration is not known while the data is received, a fixed lead is
+ * used instead.
+ */
+public class BandwidthBufferingPolicy implements BufferingPolicy {
+
+    /**
+     * The default minimum lead of the playback, in milliseconds of playback time
+     */
+    public static final long DEFAULT_MINIMUM_LEAD = 2000;
+
+    /**
+     * The default lead used when the total duration is unknown, in milliseconds of media time
+     */
+    public static final long DEFAULT_UNKNOWN_LEAD = 30000;
+
+    /**
+     * The default factor applied to the missing data for bursty transfers
+     */
+    public static final double DEFAULT_SAFETY_FACTOR = 1.25D;
+
+    private long minimumLead;
+    private long unknownLead;
+    private double safetyFactor;
+
+    /**
+     * Creates a new instance of BandwidthBufferingPolicy with the default settings
+     */
+    public BandwidthBufferingPolicy() {
+        this(DEFAULT_MINIMUM_LEAD, DEFAULT_UNKNOWN_LEAD, DEFAULT_SAFETY_FACTOR);
+    }
+
+    /**
+     * Creates a new instance of BandwidthBufferingPolicy
+     * @param minimumLead the minimum lead in milliseconds of playback time
+     * @param unknownLead the lead used when the total duration is unknown
+     * @param safetyFactor the factor applied to the missing data
+     */
+    public BandwidthBufferingPolicy(long minimumLead, long unknownLead, double safetyFactor) {
+        this.minimumLead = minimumLead;
+        this.unknownLead = unknownLead;
+        this.safetyFactor = Math.max(1D, safetyFactor);
+    }
+
+    /**
+     * Checks whether the playback can start without running out of data
+     * @param audioData the audio data being received
+     * @param rate the playback rate
+     * @param decodeCost the time taken to decode the data relative to its
+     *        duration, 0 if it is unknown
+     * @return true if the playback can start
+     */
+    public boolean isBuffered(AudioData audioData, float rate, double decodeCost) {
+        long time = audioData.getTime();
+        long lead = audioData.getBufferedTime() - time;
+        long duration = audioData.getExpectedDuration();
+        if (duration >= 0 && time + lead >= duration) return true;
+
+        long requiredLead = getRequiredLead(audioData, rate, decodeCost, duration);
+        return (requiredLead >= 0 && lead >= requiredLead);
+    }
+
+    /**
+     * Gets the lead needed before the playback starts
+     * @param audioData the audio data being received
+     * @param rate the playback rate
+     * @param decodeCost the relative decoding time
+     * @param duration the expected duration, -1 if it is unknown
+     * @return the lead in milliseconds of media time, -1 if the data must be fully received
+     */
+    protected long getRequiredLead(AudioData audioData, float rate, double decodeCost, long duration) {
+        long lead = (long) (minimumLead * rate);
+
+        // The media time received in a second, slowed down by the decoding
+        double speed = getReceivingSpeed(audioData);
+        if (speed > 0 && decodeCost > 0) speed = 1D / (1D / speed + decodeCost);
+        if (speed >= rate * safetyFactor) return lead;
+
+        if (duration < 0) return Math.max(lead, unknownLead);
+        if (speed <= 0) return -1;
+
+        // The playback reaching the end must not overtake the data
+        double missing = (duration - audioData.getTime()) * (1D - speed / rate) * safetyFactor;
+        return Math.max(lead, (long) missing);
+    }
+
+    /**
+     * Gets the media time received in a second of the transfer
+     * @param audioData the audio data being received
+     * @return the receiving speed, 0 if it is unknown
+     */
+    protected double getReceivingSpeed(AudioData audioData) {
+        double bandwidth = audioData.getBandwidth();
+        double dataRate = audioData.getDataRate();
+        if (bandwidth <= 0 || dataRate <= 0) return 0;
+        return bandwidth / dataRate;
+    }
+
+}
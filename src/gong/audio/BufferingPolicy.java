@@ -0,0 +1,36 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+/**
+ * This interface decides when enough audio data has been received to start
+ * or resume a progressive playback. It is only asked while the data is
+ * being transferred and the data at the current position is available.
+ */
+public interface BufferingPolicy {
+
+    /**
+     * Checks whether the playback can start without running out of data
+     * @param audioData the audio data being received
+     * @param rate the playback rate
+     * @param decodeCost the time taken to decode the data relative to its
+     *        duration, 0 if it is unknown
+     * @return true if the playback can start
+     */
+    public boolean isBuffered(AudioData audioData, float rate, double decodeCost);
+
+}
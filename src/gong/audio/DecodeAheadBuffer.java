@@ -0,0 +1,324 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+import java.io.IOException;
+
+/**
+ * This class decodes audio data ahead of the playback. A worker thread
+ * reads the next frames of the audio data into a bounded ring of sample
+ * frames, which is consumed by the player.
+ * <p>
+ * The worker holds the lock of the audio data while it reads, and seeking
+ * is done under the same lock, so a frame is either read before a seek and
+ * then discarded, or read from the new position. The lock of the audio data
+ * is always taken before the lock of the buffer.
+ */
+public class DecodeAheadBuffer implements Runnable {
+
+    /**
+     * The default number of frames decoded ahead
+     */
+    public static final int DEFAULT_DEPTH = 8;
+
+    /**
+     * The default number of samples in each frame
+     */
+    public static final int DEFAULT_FRAME_SIZE = 1024;
+
+    /**
+     * The time to wait for the data to be received, in milliseconds
+     */
+    private static final int WAIT_INTERVAL = 50;
+
+    /**
+     * The weight of the latest frame in the decoding cost
+     */
+    private static final double COST_WEIGHT = 0.1D;
+
+    private AudioData audioData;
+    private Thread worker = null;
+    private boolean stopped = false;
+
+    private short[][] frames;
+    private int[] frameLengths;
+    private int[] framePositions;
+    private int head = 0;
+    private int tail = 0;
+    private int count = 0;
+    private int offset = 0;
+
+    private volatile int generation = 0;
+    private int position = 0;
+    private boolean ended = false;
+    private boolean started = false;
+    private long underruns = 0;
+    private double decodeCost = 0;
+
+    /**
+     * Creates a new instance of DecodeAheadBuffer
+     * @param audioData the audio data
+     * @param depth the number of frames decoded ahead
+     */
+    public DecodeAheadBuffer(AudioData audioData, int depth) {
+        this(audioData, depth, DEFAULT_FRAME_SIZE);
+    }
+
+    /**
+     * Creates a new instance of DecodeAheadBuffer
+     * @param audioData the audio data
+     * @param depth the number of frames decoded ahead
+     * @param frameSize the number of samples in each frame
+     */
+    public DecodeAheadBuffer(AudioData audioData, int depth, int frameSize) {
+        if (depth < 1) depth = 1;
+
+        this.audioData = audioData;
+        frames = new short[depth][frameSize];
+        frameLengths = new int[depth];
+        framePositions = new int[depth];
+        position = audioData.getPosition();
+    }
+
+    /**
+     * Starts decoding ahead
+     */
+    public synchronized void start() {
+        if (worker != null) return;
+
+        worker = new Thread(this, "DecodeAhead");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops decoding ahead
+     */
+    public synchronized void kill() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Gets the time taken to decode the data relative to its duration, as a
+     * moving average of the recent frames
+     * @return the decoding cost, 0 if it is unknown
+     */
+    public synchronized double getDecodeCost() {
+        return decodeCost;
+    }
+
+    /**
+     * Gets the number of frames decoded ahead
+     * @return the depth of the buffer
+     */
+    public int getDepth() {
+        return frames.length;
+    }
+
+    /**
+     * Seeks the audio data to the given media time and discards the decoded frames
+     * @param time the media time
+     * @throws java.io.IOException failed to seek to the given time
+     * @throws gong.audio.AudioDataException invalid seek request
+     */
+    public void seek(long time) throws IOException, AudioDataException {
+        synchronized (audioData) {
+            audioData.setTime(time);
+
+            synchronized (this) {
+                generation++;
+                head = tail = count = offset = 0;
+                position = audioData.getPosition();
+                ended = false;
+                started = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Checks whether there is a decoded sample to be read
+     * @return true if a sample is available
+     */
+    public synchronized boolean isAvailable() {
+        return (count > 0);
+    }
+
+    /**
+     * Checks whether all the audio data has been decoded and read
+     * @return true if the end of the data has been reached
+     */
+    public synchronized boolean isEnded() {
+        return (ended && count == 0);
+    }
+
+    /**
+     * Reads a decoded sample, which must be available
+     * @return the sample value
+     */
+    public synchronized int read() {
+        int sample = frames[head][offset++];
+        position = framePositions[head] + offset;
+        if (offset >= frameLengths[head]) nextFrame();
+        started = true;
+        return sample;
+    }
+
+    /**
+     * Reads a set of decoded samples
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the maximum number of samples to read
+     * @return the number of samples read
+     */
+    public synchronized int read(short[] buffer, int offset, int length) {
+        int sampleRead = 0;
+        while (count > 0 && sampleRead < length) {
+            int n = Math.min(length - sampleRead, frameLengths[head] - this.offset);
+            System.arraycopy(frames[head], this.offset, buffer, offset + sampleRead, n);
+            sampleRead += n;
+            this.offset += n;
+            position = framePositions[head] + this.offset;
+            if (this.offset >= frameLengths[head]) nextFrame();
+        }
+        if (sampleRead > 0) started = true;
+        return sampleRead;
+    }
+
+    /**
+     * Waits until a decoded sample is available. An underrun is counted if
+     * the buffer has run out of samples during the playback.
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if a sample is available
+     */
+    public synchronized boolean waitAvailable(long timeout) {
+        if (count == 0 && started && !ended) {
+            underruns++;
+            started = false;
+        }
+        if (count == 0 && !ended && !stopped) {
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {}
+        }
+        return (count > 0);
+    }
+
+    /**
+     * Gets the position of the next sample to be read
+     * @return the sample position
+     */
+    public synchronized int getPosition() {
+        return position;
+    }
+
+    /**
+     * Gets the media time of the next sample to be read
+     * @return the media time
+     */
+    public synchronized long getTime() {
+        long time = (long) ((double) position / audioData.getFormat().getSampleRate() * 1000D);
+        if (time < 0) time = 0;
+        return time;
+    }
+
+    /**
+     * Gets the number of times the buffer has run out of samples during the playback
+     * @return the number of underruns
+     */
+    public synchronized long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Moves to the next decoded frame
+     */
+    private void nextFrame() {
+        offset = 0;
+        head = (head + 1) % frames.length;
+        count--;
+        notifyAll();
+    }
+
+    /**
+     * Decodes the frames until the buffer is stopped
+     */
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                while (!stopped && (count == frames.length || ended)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {}
+                }
+                if (stopped) break;
+            }
+
+            int frameIndex;
+            int frameGeneration;
+            int framePosition;
+            int length;
+            long decodeTime;
+            synchronized (audioData) {
+                // A seek cannot happen between taking the slot and decoding into it
+                synchronized (this) {
+                    frameIndex = tail;
+                    frameGeneration = generation;
+                }
+                short[] frame = frames[frameIndex];
+                framePosition = audioData.getPosition();
+                decodeTime = System.nanoTime();
+                try {
+                    length = audioData.read(frame, 0, frame.length);
+                } catch (Exception e) {
+                    length = AudioData.END_OF_DATA;
+                }
+                decodeTime = System.nanoTime() - decodeTime;
+            }
+
+            synchronized (this) {
+                // The frame has been read before a seek
+                if (frameGeneration != generation) continue;
+
+                if (length == AudioData.END_OF_DATA) {
+                    ended = true;
+                    notifyAll();
+                } else if (length == 0) {
+                    // Wait for more data to be received
+                    try {
+                        wait(WAIT_INTERVAL);
+                    } catch (InterruptedException e) {}
+                } else {
+                    double cost = decodeTime / (length / (double) audioData.getFormat().getSampleRate() * 1000000000D);
+                    decodeCost = (decodeCost == 0)? cost : decodeCost + (cost - decodeCost) * COST_WEIGHT;
+
+                    frameLengths[frameIndex] = length;
+                    framePositions[frameIndex] = framePosition;
+                    tail = (frameIndex + 1) % frames.length;
+                    count++;
+                    notifyAll();
+                }
+            }
+        }
+
+        synchronized (this) {
+            worker = null;
+        }
+    }
+
+}
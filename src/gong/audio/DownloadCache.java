@@ -0,0 +1,825 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * This class keeps downloaded audio files in a directory so that they are
+ * not downloaded again. The files are named by the MD5 digest of their
+ * content, so the URLs giving the same content share one file, and an index
+ * file stores the URL, the file, the validators and the size of each entry,
+ * so the cache survives a restart. A cached file is revalidated with the
+ * server using its ETag and Last-Modified time before it is used, and the
+ * least recently used entries are removed when the size of the cache
+ * exceeds its maximum.
+ * <p>
+ * The directory is locked by the virtual machine using it. Another virtual
+ * machine, e.g. another applet, uses a numbered directory next to it. The
+ * index is saved when files are added or removed, while the access times of
+ * the hits are saved at most every few seconds and on exit.
+ */
+public class DownloadCache {
+
+    /**
+     * The name of the index file
+     */
+    private static final String INDEX_FILE = "index.dat";
+
+    /**
+     * The version of the index file
+     */
+    private static final int INDEX_VERSION = 2;
+
+    /**
+     * The name of the file locked by the virtual machine using the directory
+     */
+    private static final String LOCK_FILE = "cache.lock";
+
+    /**
+     * The number of directories tried when the directory is used by other virtual machines
+     */
+    private static final int MAX_DIRECTORIES = 8;
+
+    /**
+     * The minimum time between two saves of the index for the hits in milliseconds
+     */
+    private static final long INDEX_SAVE_INTERVAL = 10000;
+
+    /**
+     * The extension of the cached files
+     */
+    private static final String CACHE_EXTENSION = ".cache";
+
+    /**
+     * The extension of the files being downloaded
+     */
+    private static final String TEMP_EXTENSION = ".part";
+
+    /**
+     * The caches opened in this virtual machine, keyed by directory
+     */
+    private static Hashtable caches = new Hashtable();
+
+    private File directory;
+    private long maximumSize;
+    private long size = 0;
+    private FileChannel lockChannel = null;
+    private FileLock lock = null;
+
+    /**
+     * The entries in access order, keyed by URL
+     */
+    private LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+    /**
+     * The number of entries of each cached file, keyed by file name
+     */
+    private Hashtable references = new Hashtable();
+
+    /**
+     * The index has changed since it was saved
+     */
+    private boolean dirty = false;
+    private long saveTime = 0;
+    private long indexVersion = 0;
+    private long savedVersion = 0;
+    private final Object indexLock = new Object();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Creates a new instance of DownloadCache, loading the index of the
+     * directory. If the directory is used by another virtual machine, the
+     * first numbered directory next to it which is not used is taken.
+     * @param directory the cache directory
+     * @param maximumSize the maximum size of the cached files in bytes
+     */
+    public DownloadCache(File directory, long maximumSize) {
+        this.maximumSize = maximumSize;
+        this.directory = lockDirectory(directory);
+        loadIndex();
+        removeUnused();
+        saveIndex();
+
+        // Save the access times of the last hits on exit
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    flush();
+                }
+            });
+        } catch (SecurityException e) {}
+    }
+
+    /**
+     * Gets the cache of a directory, which is shared by all users in the
+     * virtual machine
+     * @param directory the cache directory
+     * @param maximumSize the maximum size of the cached files in bytes
+     * @return the download cache
+     */
+    public static synchronized DownloadCache getInstance(File directory, long maximumSize) {
+        String key = directory.getAbsolutePath();
+        DownloadCache cache = (DownloadCache) caches.get(key);
+        if (cache == null) {
+            cache = new DownloadCache(directory, maximumSize);
+            caches.put(key, cache);
+        } else
+            cache.setMaximumSize(maximumSize);
+        return cache;
+    }
+
+    /**
+     * Locks a cache directory, or the first numbered directory next to it
+     * which is not locked by another virtual machine
+     * @param directory the cache directory
+     * @return the locked directory, or a new temporary directory if none can be locked
+     */
+    private File lockDirectory(File directory) {
+        for (int index = 0; index < MAX_DIRECTORIES; index++) {
+            File candidate = (index == 0)? directory : new File(directory.getPath() + "-" + index);
+            candidate.mkdirs();
+
+            try {
+                FileChannel channel = new RandomAccessFile(new File(candidate, LOCK_FILE), "rw").getChannel();
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    // Locked by another cache in this virtual machine
+                    lock = null;
+                }
+                if (lock != null) {
+                    lockChannel = channel;
+                    return candidate;
+                }
+                channel.close();
+            } catch (IOException e) {}
+        }
+
+        // The files are not kept after the virtual machine exits
+        try {
+            File temp = File.createTempFile(directory.getName(), "");
+            temp.delete();
+            temp.mkdirs();
+            temp.deleteOnExit();
+            return temp;
+        } catch (IOException e) {
+            return directory;
+        }
+    }
+
+    /**
+     * Checks whether the cache directory is locked by this cache
+     * @return true if the directory is locked
+     */
+    public boolean isLocked() {
+        return (lock != null && lock.isValid());
+    }
+
+    /**
+     * Gets the cache directory
+     * @return the directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the maximum size of the cached files
+     * @return the maximum size in bytes
+     */
+    public synchronized long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Sets the maximum size of the cached files, removing the least recently used files beyond it
+     * @param maximumSize the maximum size in bytes
+     */
+    public void setMaximumSize(long maximumSize) {
+        synchronized (this) {
+            this.maximumSize = maximumSize;
+            evict();
+        }
+        saveIndex();
+    }
+
+    /**
+     * Opens the input stream of a connection through the cache. The
+     * connection must not be connected yet. The stream gives the cached file
+     * if it is still valid; otherwise it gives the downloaded data, which is
+     * stored in the cache when the whole file has been read.
+     * @param connection the connection
+     * @return the input stream of the data
+     * @throws java.io.IOException failed to open the stream
+     */
+    public InputStream openStream(URLConnection connection) throws IOException {
+        if (!(connection instanceof HttpURLConnection)) return connection.getInputStream();
+
+        HttpURLConnection http = (HttpURLConnection) connection;
+        String url = connection.getURL().toString();
+
+        Entry entry;
+        synchronized (this) {
+            entry = (Entry) entries.get(url);
+            if (entry != null && !getFile(entry).exists()) {
+                removeEntry(entry);
+                entry = null;
+            }
+        }
+
+        // Revalidate the cached file
+        if (entry != null) {
+            if (entry.eTag != null) http.setRequestProperty("If-None-Match", entry.eTag);
+            if (entry.lastModified > 0) http.setIfModifiedSince(entry.lastModified);
+        }
+
+        int responseCode;
+        try {
+            responseCode = http.getResponseCode();
+        } catch (IOException e) {
+            // Use the cached file when the server cannot be reached
+            if (entry == null) throw e;
+            responseCode = HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        if (entry != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            boolean save;
+            synchronized (this) {
+                hits++;
+                entry.accessed = System.currentTimeMillis();
+                dirty = true;
+                save = (entry.accessed - saveTime >= INDEX_SAVE_INTERVAL);
+            }
+            if (save) saveIndex();
+            http.disconnect();
+            return new FileInputStream(getFile(entry));
+        }
+
+        InputStream stream = connection.getInputStream();
+        synchronized (this) {
+            misses++;
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK) return stream;
+
+        Entry newEntry = new Entry(url);
+        newEntry.eTag = connection.getHeaderField("ETag");
+        newEntry.lastModified = connection.getLastModified();
+        if (newEntry.eTag == null && newEntry.lastModified <= 0) return stream;
+
+        return new CachingInputStream(stream, newEntry, connection.getContentLength());
+    }
+
+    /**
+     * Removes a URL from the cache
+     * @param url the URL
+     */
+    public void remove(String url) {
+        synchronized (this) {
+            Entry entry = (Entry) entries.get(url);
+            if (entry != null) removeEntry(entry);
+        }
+        saveIndex();
+    }
+
+    /**
+     * Removes all files from the cache
+     */
+    public void clear() {
+        synchronized (this) {
+            for (Iterator it = entries.values().iterator(); it.hasNext();) {
+                Entry entry = (Entry) it.next();
+                getFile(entry).delete();
+            }
+            entries.clear();
+            references.clear();
+            size = 0;
+            dirty = true;
+        }
+        saveIndex();
+    }
+
+    /**
+     * Saves the index if it has changed since it was saved, e.g. the access
+     * times of the last hits
+     */
+    public void flush() {
+        saveIndex();
+    }
+
+    /**
+     * Saves the index and releases the directory, so that another virtual
+     * machine can use it. The cache must not be used afterwards.
+     */
+    public void close() {
+        saveIndex();
+
+        synchronized (DownloadCache.class) {
+            for (Iterator it = caches.values().iterator(); it.hasNext();) {
+                if (it.next() == this) it.remove();
+            }
+        }
+        try {
+            if (lockChannel != null) lockChannel.close();
+        } catch (IOException e) {}
+        lock = null;
+        lockChannel = null;
+    }
+
+    /**
+     * Gets the number of URLs in the cache
+     * @return the number of URLs
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of files in the cache, which is less than the number
+     * of URLs if some of them give the same content
+     * @return the number of files
+     */
+    public synchronized int getFileCount() {
+        return references.size();
+    }
+
+    /**
+     * Gets the size of the cached files
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of requests served by the cache
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of requests downloaded from the server
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of files removed to keep the size of the cache
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Resets the statistics of the cache
+     */
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /**
+     * Stores a downloaded file in the cache. The file is dropped if the same
+     * content is already in the cache for another URL.
+     * @param entry the entry of the file
+     * @param temp the downloaded file
+     * @param name the MD5 digest of the content
+     */
+    private void store(Entry entry, File temp, String name) {
+        synchronized (this) {
+            Entry old = (Entry) entries.get(entry.url);
+            if (old != null) removeEntry(old);
+
+            entry.name = name;
+            entry.size = temp.length();
+            File file = getFile(entry);
+            if (getReferences(name) > 0 && file.length() == entry.size)
+                temp.delete();
+            else {
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                    return;
+                }
+            }
+
+            entry.accessed = System.currentTimeMillis();
+            entries.put(entry.url, entry);
+            addReference(entry);
+
+            evict();
+            dirty = true;
+        }
+        saveIndex();
+    }
+
+    /**
+     * Removes the least recently used entries beyond the maximum size
+     * @return true if any entry has been removed
+     */
+    private boolean evict() {
+        boolean evicted = false;
+        for (Iterator it = entries.values().iterator(); size > maximumSize && it.hasNext();) {
+            Entry entry = (Entry) it.next();
+            it.remove();
+            removeReference(entry);
+            evictions++;
+            evicted = true;
+        }
+        if (evicted) dirty = true;
+        return evicted;
+    }
+
+    /**
+     * Removes an entry, and its file if no other entry shares it
+     * @param entry the entry
+     */
+    private void removeEntry(Entry entry) {
+        entries.remove(entry.url);
+        removeReference(entry);
+        dirty = true;
+    }
+
+    /**
+     * Gets the number of entries of a cached file
+     * @param name the file name
+     * @return the number of entries
+     */
+    private int getReferences(String name) {
+        Integer count = (Integer) references.get(name);
+        return (count == null)? 0 : count.intValue();
+    }
+
+    /**
+     * Adds an entry to the entries of its file, counting the size of the file for its first entry
+     * @param entry the entry
+     */
+    private void addReference(Entry entry) {
+        int count = getReferences(entry.name);
+        if (count == 0) size += entry.size;
+        references.put(entry.name, new Integer(count + 1));
+    }
+
+    /**
+     * Removes an entry from the entries of its file, deleting the file after its last entry
+     * @param entry the entry
+     */
+    private void removeReference(Entry entry) {
+        int count = getReferences(entry.name) - 1;
+        if (count > 0) {
+            references.put(entry.name, new Integer(count));
+            return;
+        }
+
+        references.remove(entry.name);
+        getFile(entry).delete();
+        size -= entry.size;
+    }
+
+    /**
+     * Deletes the files which are not in the index, e.g. the files of an old
+     * index version or the partial downloads of a virtual machine which has
+     * not exited normally. The directory must be locked.
+     */
+    private synchronized void removeUnused() {
+        if (!isLocked()) return;
+
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (int index = 0; index < files.length; index++) {
+            String name = files[index].getName();
+            if (name.endsWith(TEMP_EXTENSION))
+                files[index].delete();
+            else if (name.endsWith(CACHE_EXTENSION) && getReferences(name.substring(0, name.length() - CACHE_EXTENSION.length())) == 0)
+                files[index].delete();
+        }
+    }
+
+    /**
+     * Gets the cached file of an entry
+     * @param entry the entry
+     * @return the cached file
+     */
+    private File getFile(Entry entry) {
+        return new File(directory, entry.name + CACHE_EXTENSION);
+    }
+
+    /**
+     * Loads the index file, ignoring the entries whose files are missing
+     */
+    private synchronized void loadIndex() {
+        File file = new File(directory, INDEX_FILE);
+        if (!file.exists()) return;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != INDEX_VERSION) return;
+
+            int count = in.readInt();
+            for (int index = 0; index < count; index++) {
+                Entry entry = new Entry(in.readUTF());
+                entry.name = in.readUTF();
+                entry.eTag = in.readUTF();
+                if (entry.eTag.length() == 0) entry.eTag = null;
+                entry.lastModified = in.readLong();
+                entry.accessed = in.readLong();
+                entry.size = in.readLong();
+
+                File cached = getFile(entry);
+                if (!cached.exists() || cached.length() != entry.size) {
+                    cached.delete();
+                    continue;
+                }
+
+                // The entries are stored from the least recently used one
+                entries.put(entry.url, entry);
+                addReference(entry);
+            }
+        } catch (IOException e) {
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {}
+        }
+
+        evict();
+    }
+
+    /**
+     * Saves the index file if it has changed, from the least recently used
+     * entry. The index is copied in the monitor of the cache and written
+     * outside it, so the cache is not blocked by the file.
+     */
+    private void saveIndex() {
+        byte[] data;
+        long version;
+        synchronized (this) {
+            if (!dirty) return;
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            try {
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(entries.size());
+                for (Iterator it = entries.values().iterator(); it.hasNext();) {
+                    Entry entry = (Entry) it.next();
+                    out.writeUTF(entry.url);
+                    out.writeUTF(entry.name);
+                    out.writeUTF(entry.eTag == null? "" : entry.eTag);
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.accessed);
+                    out.writeLong(entry.size);
+                }
+                out.close();
+            } catch (IOException e) {
+                return;
+            }
+
+            data = buffer.toByteArray();
+            version = ++indexVersion;
+            dirty = false;
+            saveTime = System.currentTimeMillis();
+        }
+
+        synchronized (indexLock) {
+            // A later copy has already been saved
+            if (version < savedVersion) return;
+
+            File file = new File(directory, INDEX_FILE);
+            File temp = new File(directory, INDEX_FILE + TEMP_EXTENSION);
+
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(temp);
+                out.write(data);
+                out.close();
+                out = null;
+
+                file.delete();
+                temp.renameTo(file);
+                savedVersion = version;
+            } catch (IOException e) {
+                synchronized (this) {
+                    dirty = true;
+                }
+            } finally {
+                try {
+                    if (out != null) out.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * Gets the file name of an MD5 digest
+     * @param digest the digest
+     * @return the digest in hexadecimal
+     */
+    private static String getName(byte[] digest) {
+        String name = new BigInteger(1, digest).toString(16);
+        while (name.length() < 32) name = "0" + name;
+        return name;
+    }
+
+    /**
+     * This class stores the information of a cached file.
+     */
+    private static class Entry {
+
+        private String url;
+        private String name = null;
+        private String eTag = null;
+        private long lastModified = 0;
+        private long accessed = 0;
+        private long size = 0;
+
+        /**
+         * Creates a new instance of Entry
+         * @param url the URL of the file
+         */
+        public Entry(String url) {
+            this.url = url;
+        }
+
+    }
+
+    /**
+     * This class copies the downloaded data into a temporary file, which is
+     * stored in the cache when the end of the data is reached or the whole
+     * content length has been read. The digest of the content is calculated
+     * while it is copied.
+     */
+    private class CachingInputStream extends FilterInputStream {
+
+        private Entry entry;
+        private File temp;
+        private OutputStream out;
+        private MessageDigest md5;
+        private long length;
+        private long written = 0;
+
+        /**
+         * Creates a new instance of CachingInputStream
+         * @param in the downloaded data
+         * @param entry the entry of the file
+         * @param length the content length, -1 if it is unknown
+         */
+        public CachingInputStream(InputStream in, Entry entry, long length) {
+            super(in);
+            this.entry = entry;
+            this.length = length;
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+                temp = File.createTempFile("download", TEMP_EXTENSION, directory);
+                out = new BufferedOutputStream(new FileOutputStream(temp));
+            } catch (Exception e) {
+                temp = null;
+                out = null;
+            }
+        }
+
+        public int read() throws IOException {
+            int data;
+            try {
+                data = super.read();
+            } catch (IOException e) {
+                // An interrupted download is not cached
+                finish(false);
+                throw e;
+            }
+            if (data < 0)
+                finish(isComplete());
+            else if (out != null)
+                write(new byte[] { (byte) data }, 0, 1);
+            return data;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int bytes;
+            try {
+                bytes = super.read(buffer, offset, length);
+            } catch (IOException e) {
+                finish(false);
+                throw e;
+            }
+            if (bytes < 0)
+                finish(isComplete());
+            else if (bytes > 0)
+                write(buffer, offset, bytes);
+            return bytes;
+        }
+
+        public long skip(long n) throws IOException {
+            // Skipped data cannot be cached
+            finish(false);
+            return super.skip(n);
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        public void close() throws IOException {
+            // The file is incomplete unless the end of the data has been reached
+            finish(false);
+            super.close();
+        }
+
+        /**
+         * Writes the downloaded data to the temporary file
+         * @param buffer the data buffer
+         * @param offset the offset
+         * @param length the length
+         */
+        private void write(byte[] buffer, int offset, int length) {
+            if (out == null) return;
+            try {
+                out.write(buffer, offset, length);
+                md5.update(buffer, offset, length);
+            } catch (IOException e) {
+                finish(false);
+                return;
+            }
+
+            written += length;
+            if (written == this.length) finish(true);
+        }
+
+        /**
+         * Checks whether the whole content has been written when the end of
+         * the data is reached, which is not the case if the connection has
+         * been closed before the content length
+         * @return true if the written data is complete
+         */
+        private boolean isComplete() {
+            return (length < 0 || written == length);
+        }
+
+        /**
+         * Ends the copying, storing the temporary file if it is complete
+         * @param complete true if the end of the data has been reached
+         */
+        private synchronized void finish(boolean complete) {
+            if (out == null) return;
+            try {
+                out.close();
+            } catch (IOException e) {
+                complete = false;
+            }
+            out = null;
+
+            if (complete)
+                store(entry, temp, getName(md5.digest()));
+            else
+                temp.delete();
+        }
+
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+import gong.event.UploadListener;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Vector;
+
+/**
+ * This class posts a file to a form as a multipart request. The body is
+ * streamed to the server, with a fixed length if the length of the file is
+ * known in advance and in chunks otherwise, so that it is not buffered in
+ * memory and the progress follows the bytes written to the connection.
+ */
+public class FormUpload {
+
+    /**
+     * The size of the chunks of a body without a known length
+     */
+    public static final int CHUNK_SIZE = 8192;
+
+    private URLConnection connection;
+    private String boundary;
+    private String parameter;
+    private String filename;
+    private Vector fields = new Vector();
+    private UploadListener listener = null;
+
+    private OutputStream out = null;
+    private long bytesSent = 0;
+    private long length = -1;
+
+    /**
+     * Creates a new instance of FormUpload
+     * @param connection the connection to the form, which has not been connected
+     * @param parameter the name of the file parameter
+     * @param filename the filename of the file
+     * @throws java.io.IOException failed to create the request boundary
+     */
+    public FormUpload(URLConnection connection, String parameter, String filename) throws IOException {
+        this.connection = connection;
+        this.parameter = parameter;
+        this.filename = filename;
+
+        // Create boundary
+        MessageDigest md5 = null;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Failed to create the request boundary.");
+        }
+        String time = String.valueOf(new Date().getTime());
+        md5.update(time.getBytes(), 0, time.length());
+        boundary = new BigInteger(1, md5.digest()).toString(16);
+
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+    }
+
+    /**
+     * Adds a text parameter to the form, which is sent before the file
+     * @param name the name of the parameter
+     * @param value the value of the parameter
+     */
+    public void addParameter(String name, String value) {
+        fields.add(new String[] { name, value });
+    }
+
+    /**
+     * Sets the listener of the upload progress
+     * @param listener the upload listener
+     */
+    public void setListener(UploadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Gets the number of bytes sent to the server
+     * @return the number of bytes
+     */
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Gets the length of the request body
+     * @return the number of bytes, -1 if it is unknown
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Starts the request and sends the part header of the file
+     * @param fileLength the length of the file, -1 if it is unknown
+     * @return the output stream of the file content
+     * @throws java.io.IOException failed to send the request
+     */
+    public OutputStream open(long fileLength) throws IOException {
+        byte[] head = getHead();
+        byte[] tail = getTail();
+        length = (fileLength >= 0)? head.length + fileLength + tail.length : -1;
+
+        // Stream the body instead of buffering it for its length
+        if (connection instanceof HttpURLConnection) {
+            if (length >= 0)
+                ((HttpURLConnection) connection).setFixedLengthStreamingMode(length);
+            else
+                ((HttpURLConnection) connection).setChunkedStreamingMode(CHUNK_SIZE);
+        }
+
+        out = new BufferedOutputStream(new ProgressOutputStream(connection.getOutputStream()), CHUNK_SIZE);
+        out.write(head);
+        return new FilterOutputStream(out) {
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+            }
+
+            public void close() {
+                // The body is ended by finish()
+            }
+        };
+    }
+
+    /**
+     * Ends the request body and gets the response of the server
+     * @return the response text
+     * @throws java.io.IOException failed to send the request or to get the response
+     */
+    public String finish() throws IOException {
+        out.write(getTail());
+        out.close();
+
+        StringBuffer ret = new StringBuffer();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null) ret.append(line);
+        reader.close();
+        return ret.toString();
+    }
+
+    /**
+     * Posts the audio data as the file
+     * @param audioData the audio data
+     * @return the response text
+     * @throws java.io.IOException failed to post the data
+     * @throws gong.audio.AudioDataException failed to encode the data
+     */
+    public String send(AudioData audioData) throws IOException, AudioDataException {
+        OutputStream stream = open(audioData.getStreamLength());
+        audioData.sendToStream(stream);
+        return finish();
+    }
+
+    /**
+     * Gets the parts of the text parameters and the part header of the file
+     * @return the bytes of the header
+     */
+    private byte[] getHead() {
+        StringBuffer head = new StringBuffer();
+        for (Enumeration en = fields.elements(); en.hasMoreElements();) {
+            String[] field = (String[]) en.nextElement();
+            head.append("--" + boundary + "\r\n" +
+                        "Content-Disposition: form-data; name=\"" + field[0] + "\"\r\n\r\n" +
+                        field[1] + "\r\n");
+        }
+        return (head + "--" + boundary + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + parameter + "\"; filename=\"" + filename + "\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n").getBytes();
+    }
+
+    /**
+     * Gets the end of the request body
+     * @return the bytes of the end
+     */
+    private byte[] getTail() {
+        return ("\r\n" + "--" + boundary + "--").getBytes();
+    }
+
+    /**
+     * The stream counting the bytes written to the connection.
+     */
+    private class ProgressOutputStream extends FilterOutputStream {
+
+        /**
+         * Creates a new instance of ProgressOutputStream
+         * @param out the output stream of the connection
+         */
+        public ProgressOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int data) throws IOException {
+            out.write(data);
+            sent(1);
+        }
+
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            sent(length);
+        }
+
+        /**
+         * Counts the bytes written and updates the listener
+         * @param bytes the number of bytes
+         */
+        private void sent(long bytes) {
+            long total;
+            synchronized (FormUpload.this) {
+                bytesSent += bytes;
+                total = bytesSent;
+            }
+            if (listener != null) listener.uploaded(FormUpload.this, total, length);
+        }
+
+    }
+
+}
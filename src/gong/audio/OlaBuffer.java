@@ -16,10 +16,15 @@
  
 package gong.audio;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.sound.sampled.AudioFormat;
 
 /**
  * Class OlaBuffer filters an audio data with different rates using overlap-and-add.
+ * The input frame, the overlapped frame and the output ring buffer are allocated
+ * once, so no memory is allocated while the samples are processed. The output
+ * ring buffer only grows when more samples are written than read.
  * @author Gibson Lam
  * @version 3.0 12/08/2008
  */
@@ -29,6 +34,27 @@ public class OlaBuffer {
      * The acceptance value for correlation calculation
      */
     protected final static float CORRELATION_ACCEPTANCE = 0.9f;
+
+    /**
+     * The size of the output ring buffer in number of OLA buffers
+     */
+    protected final static int OUTPUT_FRAMES = 4;
+
+    /**
+     * The sample rate at which the coarse search of the fast search mode
+     * looks at the OLA buffer, which keeps the harmonics of a voice
+     */
+    protected final static float SEARCH_RATE = 8000f;
+
+    /**
+     * The maximum number of OLA buffers filtered by each parallel task
+     */
+    protected final static int PARALLEL_STRETCH_FRAMES = 20;
+
+    /**
+     * The pool shared by parallel filtering
+     */
+    private static ForkJoinPool stretchPool = null;
     
     /**
      * The audio format of the data
@@ -55,13 +81,21 @@ public class OlaBuffer {
      */
     protected int bufferPos;
     /**
-     * The output buffer
+     * The overlapped OLA buffer before it is added to the output buffer
+     */
+    protected int[] frame;
+    /**
+     * The output ring buffer
      */
     protected int[] outputBuffer;
     /**
-     * The position in the output buffer
+     * The read position in the output buffer
      */
     protected int outputPos;
+    /**
+     * The number of samples in the output buffer
+     */
+    protected int outputCount;
     /**
      * The windowing function for the overlapping region
      */
@@ -78,6 +112,18 @@ public class OlaBuffer {
      * The end location of searching for shifting position
      */
     protected int searchEnd;
+    /**
+     * Whether the shifting position is found by the fast search
+     */
+    protected boolean fastSearch = false;
+    /**
+     * The decimation factor of the coarse search in the fast search mode
+     */
+    protected int searchDecimation;
+    /**
+     * The running sums of the squared samples in the OLA buffer
+     */
+    protected long[] energy;
     
     /**
      * Creates a new instance of OlaBuffer
@@ -92,13 +138,13 @@ public class OlaBuffer {
     }
 
     /**
-     * Sets the playback rate of the OLA buffer
+     * Sets the playback rate of the OLA buffer, which is used from the
+     * next OLA buffer
      * @param rate the playback rate
      */
     public void setRate(float rate) {
         this.rate = rate;
-        drain();
-        init();
+        initShift();
     }
 
     /**
@@ -109,31 +155,61 @@ public class OlaBuffer {
         buffer = new int[bufferSize];
         bufferPos = 0;
 
+        overlapSize = bufferSize / 2;
+        window = new float[overlapSize];
+        for (int index = 0; index < overlapSize; index++) window[index] = (float) index / (float) (overlapSize - 1);
+
+        frame = new int[2 * bufferSize];
+        energy = new long[bufferSize + 1];
+        searchDecimation = Math.max(1, (int) (format.getSampleRate() / SEARCH_RATE));
+        outputBuffer = new int[OUTPUT_FRAMES * bufferSize];
+        outputPos = 0;
+        outputCount = 0;
+
+        initShift();
+    }
+
+    /**
+     * Sets whether the shifting position is found by the fast search, which
+     * searches the decimated OLA buffer first and then refines the best
+     * position, instead of trying every position in the search range
+     * @param fastSearch true to use the fast search
+     */
+    public void setFastSearch(boolean fastSearch) {
+        this.fastSearch = fastSearch;
+    }
+
+    /**
+     * Checks if the shifting position is found by the fast search
+     * @return true if the fast search is used
+     */
+    public boolean isFastSearch() {
+        return fastSearch;
+    }
+
+    /**
+     * Initializes the sample shift and the search range of the current rate
+     */
+    protected void initShift() {
         if (rate == 1.0)
             sampleShift = 0;
-        else {
-            overlapSize = bufferSize / 2;
-            window = new float[overlapSize];
-            for (int index = 0; index < overlapSize; index++) window[index] = (float) index / (float) (overlapSize - 1);
-
-            if (rate > 1.0) {
-                sampleShift = (int) (-bufferSize * (rate - 1.0));
-                if (sampleShift < -(bufferSize - overlapSize)) sampleShift = -(bufferSize - overlapSize);
-
-                searchStart = sampleShift - overlapSize / 4;
-                searchEnd = sampleShift + overlapSize / 4;
-                if (searchStart < -overlapSize) searchStart = -overlapSize;
-                if (searchEnd > 0) searchEnd = sampleShift;
-            }
-            else if (rate < 1.0) {
-                sampleShift = (int) (bufferSize * (1.0 - rate));
-                if (sampleShift > bufferSize - overlapSize) sampleShift = bufferSize - overlapSize;
-
-                searchStart = sampleShift - overlapSize / 4;
-                searchEnd = sampleShift + overlapSize / 4;
-                if (searchStart < 0) searchStart = sampleShift;
-                if (searchEnd > overlapSize) searchEnd = overlapSize;
-            }
+        else if (rate > 1.0) {
+            sampleShift = (int) (-bufferSize * (rate - 1.0));
+            if (sampleShift < -(bufferSize - overlapSize)) sampleShift = -(bufferSize - overlapSize);
+
+            searchStart = sampleShift - overlapSize / 4;
+            searchEnd = sampleShift + overlapSize / 4;
+            if (searchStart < -overlapSize) searchStart = -overlapSize;
+            if (searchEnd > 0) searchEnd = sampleShift;
+        }
+        else if (rate < 1.0) {
+            sampleShift = (int) (bufferSize * (1.0 - rate));
+            if (sampleShift > bufferSize - overlapSize) sampleShift = bufferSize - overlapSize;
+
+            searchStart = sampleShift - overlapSize / 4;
+            searchEnd = sampleShift + overlapSize / 4;
+            if (searchStart < 0) searchStart = sampleShift;
+            if (searchEnd > overlapSize) searchEnd = overlapSize;
         }
     }
     
@@ -171,6 +247,8 @@ public class OlaBuffer {
         int delta = 0;
         double corr, max;
         
+        if (fastSearch) return findFastPosition(0);
+
         max = findCorrelation(0, sampleShift, overlapSize);
         if (max >= CORRELATION_ACCEPTANCE) return sampleShift;
         
@@ -208,6 +286,8 @@ public class OlaBuffer {
         int offset = bufferSize - overlapSize;
         double corr, max;
         
+        if (fastSearch) return findFastPosition(offset);
+
         max = findCorrelation(offset, offset + sampleShift, overlapSize);
         if (max >= CORRELATION_ACCEPTANCE) return sampleShift;
         
@@ -236,13 +316,284 @@ public class OlaBuffer {
         return sampleShift + delta;
     }
 
+
+    /**
+     * Finds the shifting position using the fast search. The energy of the
+     * shifted region comes from the running sums of the squared samples, and
+     * the correlation is estimated at the search rate, from every few samples
+     * at every few shifts. The shifts around the first accepted or the best
+     * estimate are then tried with all samples, nearest to the sample shift
+     * first as in the full search, and the estimates go on if none of them
+     * is accepted.
+     * @param offset the position of the overlapping region in the OLA buffer
+     * @return the number of shifts
+     */
+    protected int findFastPosition(int offset) {
+        int delta = 0;
+        double corr, max;
+
+        energy[0] = 0;
+        for (int index = 0; index < bufferSize; index++) energy[index + 1] = energy[index] + (long) buffer[index] * buffer[index];
+
+        max = findFastCorrelation(offset, sampleShift, 1);
+        if (max >= CORRELATION_ACCEPTANCE) return sampleShift;
+
+        // The coarse search, which goes on if the refinement does not accept
+        // the estimated position, as the full search would not stop there
+        for (int start = searchDecimation; start < overlapSize / 4; ) {
+            double coarseMax = max;
+            int coarse = 0, last = overlapSize / 4;
+            for (int shift = start; shift < overlapSize / 4 && last == overlapSize / 4; shift += searchDecimation) {
+                // left hand side
+                if (sampleShift - shift >= searchStart) {
+                    corr = findFastCorrelation(offset, sampleShift - shift, searchDecimation);
+                    if (corr > coarseMax) {
+                        coarseMax = corr;
+                        coarse = -shift;
+                        if (coarseMax >= CORRELATION_ACCEPTANCE) {
+                            last = shift;
+                            continue;
+                        }
+                    }
+                }
+
+                // right hand side
+                if (sampleShift + shift <= searchEnd) {
+                    corr = findFastCorrelation(offset, sampleShift + shift, searchDecimation);
+                    if (corr > coarseMax) {
+                        coarseMax = corr;
+                        coarse = shift;
+                        if (coarseMax >= CORRELATION_ACCEPTANCE) last = shift;
+                    }
+                }
+            }
+            if (coarse == 0) break;
+
+            // The refinement at the distances around the coarse position, on both
+            // sides since the full search may accept a position on the other side first
+            int distance = Math.abs(coarse);
+            for (int shift = Math.max(1, distance - searchDecimation + 1); shift < distance + searchDecimation && shift < overlapSize / 4; shift++) {
+                // left hand side
+                if (sampleShift - shift >= searchStart) {
+                    corr = findFastCorrelation(offset, sampleShift - shift, 1);
+                    if (corr > max) {
+                        max = corr;
+                        delta = -shift;
+                        if (max >= CORRELATION_ACCEPTANCE) break;
+                    }
+                }
+
+                // right hand side
+                if (sampleShift + shift <= searchEnd) {
+                    corr = findFastCorrelation(offset, sampleShift + shift, 1);
+                    if (corr > max) {
+                        max = corr;
+                        delta = shift;
+                        if (max >= CORRELATION_ACCEPTANCE) break;
+                    }
+                }
+            }
+            if (max >= CORRELATION_ACCEPTANCE) break;
+
+            start = last + searchDecimation;
+        }
+
+        return sampleShift + delta;
+    }
+
+    /**
+     * Finds the correlation value of a shifting position using the running
+     * sums of the squared samples
+     * @param offset the position of the overlapping region in the OLA buffer
+     * @param shift the number of shifts
+     * @param step the distance between the samples of the cross product
+     * @return the correlation value, which is an estimate if the step is not 1
+     */
+    protected double findFastCorrelation(int offset, int shift, int step) {
+        int left = offset, right = offset + shift;
+        long xy = 0;
+
+        for (int index = 0; index < overlapSize; index += step) xy += (long) buffer[left + index] * buffer[right + index];
+        if (xy <= 0) return 0;
+
+        double det = (double) (energy[left + overlapSize] - energy[left]) * (energy[right + overlapSize] - energy[right]);
+        if (det == 0) return 0;
+
+        xy *= step;
+        return ((double) xy * xy) / det;
+    }
+
+    /**
+     * Gets the maximum number of output samples of a set of input samples
+     * @param length the number of input samples
+     * @return the maximum number of output samples
+     */
+    public int getOutputLength(int length) {
+        return outputCount + 2 * (bufferPos + length);
+    }
+
+    /**
+     * Checks if the input samples are the output samples as they are, i.e.
+     * the rate is normal and no samples are kept in the buffers, so that
+     * the samples do not need to be processed at all
+     * @return true if the samples are passed through unchanged
+     */
+    public boolean isPassThrough() {
+        return (sampleShift == 0 && bufferPos == 0 && outputCount == 0);
+    }
+
+    /**
+     * Filters a set of samples, the samples are passed through at the normal rate
+     * @param input the input samples
+     * @param length the number of input samples
+     * @param output the output samples, which holds at least the output length
+     *        of the input samples
+     * @return the number of output samples
+     */
+    public int process(int[] input, int length, int[] output) {
+        int count = read(output, 0, outputCount);
+
+        if (sampleShift == 0) {
+            System.arraycopy(buffer, 0, output, count, bufferPos);
+            count += bufferPos;
+            bufferPos = 0;
+
+            System.arraycopy(input, 0, output, count, length);
+            return count + length;
+        }
+
+        for (int offset = 0; offset < length;) {
+            offset += write(input, offset, length - offset);
+            count += read(output, count, outputCount);
+        }
+        return count;
+    }
+
+    /**
+     * Filters a set of samples, the samples are passed through at the normal rate
+     * @param input the input samples
+     * @param length the number of input samples
+     * @param output the output samples, which holds at least the output length
+     *        of the input samples
+     * @return the number of output samples
+     */
+    public int process(short[] input, int length, short[] output) {
+        int count = read(output, 0, outputCount);
+
+        if (sampleShift == 0) {
+            for (int index = 0; index < bufferPos; index++) output[count++] = (short) buffer[index];
+            bufferPos = 0;
+
+            System.arraycopy(input, 0, output, count, length);
+            return count + length;
+        }
+
+        for (int offset = 0; offset < length;) {
+            offset += write(input, offset, length - offset);
+            count += read(output, count, outputCount);
+        }
+        return count;
+    }
+
+    /**
+     * Filters a set of samples, filtering the full OLA buffers in parallel
+     * since each of them is overlapped on its own. The output is the same as
+     * process(). This is meant for whole-file operations and pays off for
+     * requests spanning many OLA buffers.
+     * @param input the input samples
+     * @param length the number of input samples
+     * @param output the output samples, which holds at least the output length
+     *        of the input samples
+     * @return the number of output samples
+     */
+    public int processParallel(short[] input, int length, short[] output) {
+        if (sampleShift == 0) return process(input, length, output);
+
+        // Complete the current OLA buffer
+        int count = read(output, 0, outputCount);
+        int offset = 0;
+        if (bufferPos > 0) {
+            offset = write(input, 0, length);
+            count += read(output, count, outputCount);
+        }
+
+        int end = offset + (length - offset) / bufferSize * bufferSize;
+        if (end > offset) {
+            StretchTask task = new StretchTask(input, offset, end);
+            getStretchPool().invoke(task);
+            count = task.copy(output, count);
+        }
+
+        // Keep the remaining samples for the next OLA buffer
+        write(input, end, length - end);
+        return count;
+    }
+
+    /**
+     * Gets the pool shared by parallel filtering
+     * @return the fork-join pool
+     */
+    protected static synchronized ForkJoinPool getStretchPool() {
+        if (stretchPool == null) stretchPool = new ForkJoinPool();
+        return stretchPool;
+    }
+
     /**
      * Reads a sample from the OLA buffer
      * @return the current sample
      */
     public int read() {
         if (!isAvailable()) return 0;
-        return outputBuffer[outputPos++];
+
+        int sample = outputBuffer[outputPos];
+        if (++outputPos == outputBuffer.length) outputPos = 0;
+        outputCount--;
+        return sample;
+    }
+
+    /**
+     * Reads a set of samples from the output buffer
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the maximum number of samples to read
+     * @return the number of samples read
+     */
+    public int read(int[] buffer, int offset, int length) {
+        int count = Math.min(length, outputCount);
+        int first = Math.min(count, outputBuffer.length - outputPos);
+
+        System.arraycopy(outputBuffer, outputPos, buffer, offset, first);
+        System.arraycopy(outputBuffer, 0, buffer, offset + first, count - first);
+
+        skip(count);
+        return count;
+    }
+
+    /**
+     * Reads a set of samples from the output buffer
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the maximum number of samples to read
+     * @return the number of samples read
+     */
+    public int read(short[] buffer, int offset, int length) {
+        int count = Math.min(length, outputCount);
+        int first = Math.min(count, outputBuffer.length - outputPos);
+        
+        for (int index = 0; index < first; index++) buffer[offset++] = (short) outputBuffer[outputPos + index];
+        for (int index = 0; index < count - first; index++) buffer[offset++] = (short) outputBuffer[index];
+
+        skip(count);
+        return count;
+    }
+
+    /**
+     * Removes samples from the start of the output buffer
+     * @param count the number of samples
+     */
+    private void skip(int count) {
+        outputPos = (outputPos + count) % outputBuffer.length;
+        outputCount -= count;
     }
 
     /**
@@ -252,51 +603,118 @@ public class OlaBuffer {
     public void write(int sample) {
         buffer[bufferPos++] = sample;
 
-        if (bufferPos == bufferSize) {
-            int left, right;
-            int shift;
+        if (bufferPos == bufferSize) overlap();
+    }
+
+    /**
+     * Writes a set of samples to the OLA buffer, stopping when the buffer
+     * is full so that the output buffer can be read before the next write
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the number of samples to write
+     * @return the number of samples written
+     */
+    public int write(int[] buffer, int offset, int length) {
+        int count = Math.min(length, bufferSize - bufferPos);
+        System.arraycopy(buffer, offset, this.buffer, bufferPos, count);
+        bufferPos += count;
+
+        if (bufferPos == bufferSize) overlap();
+        return count;
+    }
+
+    /**
+     * Writes a set of samples to the OLA buffer, stopping when the buffer
+     * is full so that the output buffer can be read before the next write
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the number of samples to write
+     * @return the number of samples written
+     */
+    public int write(short[] buffer, int offset, int length) {
+        int count = Math.min(length, bufferSize - bufferPos);
+        for (int index = 0; index < count; index++) this.buffer[bufferPos++] = buffer[offset + index];
+
+        if (bufferPos == bufferSize) overlap();
+        return count;
+    }
+
+    /**
+     * Overlaps the full OLA buffer into the output buffer
+     */
+    protected void overlap() {
+        int left, right;
+        int shift, sample;
+        
+        if (sampleShift == 0) {
+            push(buffer, bufferSize);
+        }
+        else if (sampleShift > 0) {
+            shift = findStretchPosition();
             
-            if (sampleShift == 0) {
-                outputBuffer = new int[bufferSize];
-                System.arraycopy(buffer, 0, outputBuffer, 0, bufferSize);
-            }
-            else if (sampleShift > 0) {
-                shift = findStretchPosition();
-                
-                outputBuffer = new int[bufferSize + shift];
-                
-                // The unaffected buffer
-                System.arraycopy(buffer, 0, outputBuffer, 0, shift);
-                
-                // The overlapped buffer
-                for (int index = 0; index < overlapSize; index++) {
-                    sample = (int) (buffer[index + shift] * (1f - window[index]) + buffer[index] * window[index]);
-                    outputBuffer[shift + index] = sample;
-                }
-                
-                // The shifted buffer
-                System.arraycopy(buffer, overlapSize, outputBuffer, shift + overlapSize, bufferSize - overlapSize);
+            // The unaffected buffer
+            System.arraycopy(buffer, 0, frame, 0, shift);
+            
+            // The overlapped buffer
+            for (int index = 0; index < overlapSize; index++) {
+                sample = (int) (buffer[index + shift] * (1f - window[index]) + buffer[index] * window[index]);
+                frame[shift + index] = sample;
             }
-            else if (sampleShift < 0) {
-                shift = findShrinkPosition();
-
-                outputBuffer = new int[bufferSize + shift];
-                
-                // The unaffected buffer
-                System.arraycopy(buffer, 0, outputBuffer, 0, bufferSize - overlapSize + shift);
-
-                // The overlapped buffer
-                left = bufferSize - overlapSize + shift;
-                right = bufferSize - overlapSize;
-                for (int index = 0; index < overlapSize; index++, left++, right++) {
-                    sample = (int) (buffer[left] * (1f - window[index]) + buffer[right] * window[index]);
-                    outputBuffer[left] = sample;
-                }
+            
+            // The shifted buffer
+            System.arraycopy(buffer, overlapSize, frame, shift + overlapSize, bufferSize - overlapSize);
+
+            push(frame, bufferSize + shift);
+        }
+        else if (sampleShift < 0) {
+            shift = findShrinkPosition();
+
+            // The unaffected buffer
+            System.arraycopy(buffer, 0, frame, 0, bufferSize - overlapSize + shift);
+
+            // The overlapped buffer
+            left = bufferSize - overlapSize + shift;
+            right = bufferSize - overlapSize;
+            for (int index = 0; index < overlapSize; index++, left++, right++) {
+                sample = (int) (buffer[left] * (1f - window[index]) + buffer[right] * window[index]);
+                frame[left] = sample;
             }
 
-            outputPos = 0;
-            bufferPos = 0;
+            push(frame, bufferSize + shift);
         }
+
+        bufferPos = 0;
+    }
+
+    /**
+     * Adds samples to the end of the output buffer, the output buffer is
+     * grown if it is full
+     * @param samples the samples
+     * @param length the number of samples
+     */
+    protected void push(int[] samples, int length) {
+        if (outputCount + length > outputBuffer.length) grow(outputCount + length);
+
+        int end = (outputPos + outputCount) % outputBuffer.length;
+        int first = Math.min(length, outputBuffer.length - end);
+        System.arraycopy(samples, 0, outputBuffer, end, first);
+        System.arraycopy(samples, first, outputBuffer, 0, length - first);
+        outputCount += length;
+    }
+
+    /**
+     * Grows the output buffer, keeping the samples in it in order
+     * @param length the minimum length of the output buffer
+     */
+    private void grow(int length) {
+        int[] newBuffer = new int[Math.max(length, 2 * outputBuffer.length)];
+        int first = Math.min(outputCount, outputBuffer.length - outputPos);
+
+        System.arraycopy(outputBuffer, outputPos, newBuffer, 0, first);
+        System.arraycopy(outputBuffer, 0, newBuffer, first, outputCount - first);
+
+        outputBuffer = newBuffer;
+        outputPos = 0;
     }
 
     /**
@@ -304,7 +722,7 @@ public class OlaBuffer {
      * @return true if the output buffer is not empty
      */
     public boolean isAvailable() {
-        return (outputBuffer != null && outputPos < outputBuffer.length);
+        return (outputCount > 0);
     }
 
     /**
@@ -312,11 +730,74 @@ public class OlaBuffer {
      */
     public void drain() {
         if (bufferPos > 0) {
-            outputBuffer = new int[bufferPos];
-            System.arraycopy(buffer, 0, outputBuffer, 0, bufferPos);
-            outputPos = 0;
+            push(buffer, bufferPos);
             bufferPos = 0;
         }
     }
+
+    /**
+     * The task filtering a range of full OLA buffers, which is split by OLA buffer.
+     */
+    protected class StretchTask extends RecursiveAction {
+
+        private short[] input;
+        private int start;
+        private int end;
+        private StretchTask first = null;
+        private StretchTask second = null;
+        private short[] output;
+        private int outputLength = 0;
+
+        /**
+         * Creates a new instance of StretchTask
+         * @param input the input samples
+         * @param start the start sample (inclusive), which starts an OLA buffer
+         * @param end the end sample (exclusive), which ends an OLA buffer
+         */
+        public StretchTask(short[] input, int start, int end) {
+            this.input = input;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Filters the range or splits it between two tasks
+         */
+        protected void compute() {
+            int frames = (end - start) / bufferSize;
+
+            if (frames > PARALLEL_STRETCH_FRAMES) {
+                int middle = start + (frames / 2) * bufferSize;
+                first = new StretchTask(input, start, middle);
+                second = new StretchTask(input, middle, end);
+                invokeAll(first, second);
+                return;
+            }
+
+            OlaBuffer olaBuffer = new OlaBuffer(format, rate);
+            olaBuffer.setFastSearch(fastSearch);
+            output = new short[olaBuffer.getOutputLength(end - start)];
+
+            int index = start;
+            while (index < end) {
+                index += olaBuffer.write(input, index, end - index);
+                outputLength += olaBuffer.read(output, outputLength, output.length - outputLength);
+            }
+        }
+
+        /**
+         * Copies the filtered samples of the range in order
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer
+         * @return the offset after the copied samples
+         */
+        public int copy(short[] buffer, int offset) {
+            if (first != null) return second.copy(buffer, first.copy(buffer, offset));
+
+            System.arraycopy(output, 0, buffer, offset, outputLength);
+            return offset + outputLength;
+        }
+
+    }
     
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package gong.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * This class posts audio data to a form while it is being recorded. The
+ * recorded data is posted as a sequence of parts, each of which is a
+ * multipart request with two more parameters: "Offset", the byte offset of
+ * the part in the file, and "Final", which is true on the last request.
+ * The server writes each part at its offset, so a part which failed can be
+ * posted again. When the recording has finished only the end of the data
+ * is posted, followed by the final header at offset 0 if the header depends
+ * on the length of the data, e.g. the sizes of a wav file.
+ * <p>
+ * A server which does not know these parameters stores every request as
+ * the whole file, ending with the header alone, so the upload must only be
+ * used for a server which is known to support it. The end of the data is
+ * posted once the recording has closed the audio data.
+ */
+public class ProgressiveUpload implements Runnable {
+
+    /**
+     * The name of the parameter giving the byte offset of a part
+     */
+    public static final String OFFSET_PARAMETER = "Offset";
+
+    /**
+     * The name of the parameter marking the last part
+     */
+    public static final String FINAL_PARAMETER = "Final";
+
+    /**
+     * The time between the checks for recorded data, in milliseconds
+     */
+    public static final int PART_INTERVAL = 1000;
+
+    /**
+     * The minimum size of a part posted during the recording
+     */
+    public static final int MIN_PART_SIZE = 16384;
+
+    /**
+     * The maximum number of times a part is posted
+     */
+    public static final int MAX_PART_ATTEMPTS = 3;
+
+    /**
+     * The delay before a failed part is posted again, multiplied by the
+     * number of failed attempts, in milliseconds
+     */
+    private static final int RETRY_DELAY = 1000;
+
+    private URL url;
+    private String parameter;
+    private String filename;
+    private String cookies = null;
+    private AudioData audioData;
+
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long offset = 0;
+    private boolean cancelled = false;
+    private boolean done = false;
+    private String response = null;
+    private Exception error = null;
+
+    /**
+     * Creates a new instance of ProgressiveUpload
+     * @param url the URL of the form
+     * @param parameter the name of the file parameter
+     * @param filename the filename of the file
+     * @param audioData the audio data being recorded
+     * @throws gong.audio.AudioDataException the audio data cannot be sent while it is being recorded
+     */
+    public ProgressiveUpload(URL url, String parameter, String filename, AudioData audioData) throws AudioDataException {
+        if (!audioData.isSupported(AudioData.FEATURE_PROGRESSIVE_SEND))
+            throw new AudioDataException("Progressive upload is not supported by the audio format.");
+
+        this.url = url;
+        this.parameter = parameter;
+        this.filename = filename;
+        this.audioData = audioData;
+    }
+
+    /**
+     * Gets the URL of the form
+     * @return the URL
+     */
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * Checks whether the upload posts to the given form
+     * @param url the URL of the form
+     * @param parameter the name of the file parameter
+     * @param filename the filename of the file
+     * @return true if the form and the file are the same
+     */
+    public boolean matches(URL url, String parameter, String filename) {
+        return this.url.toExternalForm().equals(url.toExternalForm()) &&
+               this.parameter.equals(parameter) && this.filename.equals(filename);
+    }
+
+    /**
+     * Gets the audio data being uploaded
+     * @return the audio data
+     */
+    public AudioData getData() {
+        return audioData;
+    }
+
+    /**
+     * Sets the cookies sent with every request
+     * @param cookies the cookies, null for none
+     */
+    public void setCookies(String cookies) {
+        this.cookies = cookies;
+    }
+
+    /**
+     * Gets the number of bytes of the file posted to the server
+     * @return the number of bytes
+     */
+    public synchronized long getBytesSent() {
+        return offset;
+    }
+
+    /**
+     * Starts posting the recorded data
+     */
+    public void start() {
+        Thread thread = new Thread(this, "ProgressiveUpload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Checks for the end of the recording without waiting for the next
+     * interval, the end of the data is posted once the audio data is closed
+     */
+    public synchronized void finish() {
+        notifyAll();
+    }
+
+    /**
+     * Stops posting the data, leaving the file on the server incomplete
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * Checks whether the upload has ended
+     * @return true if the last part has been posted or the upload has failed
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits until the last part has been posted
+     * @return the response text of the last request
+     * @throws java.lang.Exception failed to post the data or the upload was cancelled
+     */
+    public synchronized String waitForResponse() throws Exception {
+        while (!done) wait();
+        if (error != null) throw error;
+        return response;
+    }
+
+    /**
+     * Posts the recorded data at regular intervals until the recording has finished
+     */
+    public void run() {
+        try {
+            boolean last = false;
+            while (!last) {
+                synchronized (this) {
+                    if (!cancelled && !audioData.isClosed()) wait(PART_INTERVAL);
+                    if (cancelled) throw new IOException("Upload cancelled.");
+                }
+                last = audioData.isClosed();
+
+                audioData.sendProgressiveToStream(pending, last);
+                if (!last && pending.size() < MIN_PART_SIZE) continue;
+
+                byte[] part = pending.toByteArray();
+                pending.reset();
+                byte[] header = (last)? audioData.getProgressiveHeader() : null;
+
+                if (part.length > 0 || header == null) post(part, offset, last && header == null);
+                synchronized (this) {
+                    offset += part.length;
+                }
+                if (header != null) post(header, 0, true);
+            }
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            synchronized (this) {
+                done = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Posts a part of the file, trying again if the request fails
+     * @param data the bytes of the part
+     * @param offset the byte offset of the part in the file
+     * @param last true if it is the last part
+     * @throws java.io.IOException failed to post the part
+     * @throws java.lang.InterruptedException the upload was interrupted
+     */
+    private void post(byte[] data, long offset, boolean last) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                URLConnection connection = url.openConnection();
+                if (cookies != null && cookies.length() > 0)
+                    connection.setRequestProperty("Cookie", cookies);
+
+                FormUpload upload = new FormUpload(connection, parameter, filename);
+                upload.addParameter(OFFSET_PARAMETER, String.valueOf(offset));
+                upload.addParameter(FINAL_PARAMETER, String.valueOf(last));
+                OutputStream stream = upload.open(data.length);
+                stream.write(data);
+                String ret = upload.finish();
+
+                if (last) response = ret;
+                return;
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (attempt >= MAX_PART_ATTEMPTS || cancelled) throw e;
+                    wait(RETRY_DELAY * attempt);
+                }
+            }
+        }
+    }
+
+}
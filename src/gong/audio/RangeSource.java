@@ -0,0 +1,118 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * This class opens byte ranges of a file on an HTTP server which supports
+ * range requests. It is used to resume an interrupted download and to fetch
+ * the data from a seek position. A range is only accepted if the file has
+ * not changed since the first download, which is checked with its ETag or
+ * Last-Modified time.
+ */
+public class RangeSource {
+
+    private URL url;
+    private String eTag;
+    private long lastModified;
+    private long length;
+
+    /**
+     * Creates a new instance of RangeSource
+     * @param url the URL of the file
+     * @param eTag the ETag of the file, null if it is unknown
+     * @param lastModified the last modified time of the file, 0 if it is unknown
+     * @param length the length of the file, -1 if it is unknown
+     */
+    public RangeSource(URL url, String eTag, long lastModified, long length) {
+        this.url = url;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    /**
+     * Creates the range source of a connection which has received the whole file
+     * @param connection the connection
+     * @return the range source, or null if the server does not support range
+     *         requests or the file has not been received from the server
+     */
+    public static RangeSource create(URLConnection connection) {
+        if (!(connection instanceof HttpURLConnection)) return null;
+        try {
+            // The connection has failed if the file comes from the download cache of an unreachable server
+            if (((HttpURLConnection) connection).getResponseCode() != HttpURLConnection.HTTP_OK) return null;
+        } catch (IOException e) {
+            return null;
+        }
+        if (!"bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"))) return null;
+
+        return new RangeSource(connection.getURL(), connection.getHeaderField("ETag"),
+                connection.getLastModified(), connection.getContentLength());
+    }
+
+    /**
+     * Gets the URL of the file
+     * @return the URL
+     */
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * Gets the length of the file
+     * @return the length in bytes, -1 if it is unknown
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Opens the file from the given offset to its end
+     * @param offset the byte offset
+     * @return the input stream of the range
+     * @throws java.io.IOException failed to open the range or the file has changed
+     */
+    public InputStream open(long offset) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setUseCaches(false);
+        AudioData.setStreamTimeout(connection);
+        connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        if (eTag != null) connection.setRequestProperty("If-Range", eTag);
+
+        // A server returns the whole file if the range is not satisfied
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException("Range request not accepted.");
+        }
+
+        String range = connection.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes " + offset + "-") ||
+            (eTag == null && lastModified > 0 && connection.getLastModified() != lastModified)) {
+            connection.disconnect();
+            throw new IOException("Range request not accepted.");
+        }
+
+        return connection.getInputStream();
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package gong.audio;
+
+import java.util.Hashtable;
+
+/**
+ * This class converts the sample rate of a sound using a polyphase FIR
+ * filter. The rates are reduced to a ratio of an upsampling factor L and a
+ * downsampling factor M, and every output sample is computed with one of
+ * the L phases of a Kaiser windowed sinc filter. The filter passes the
+ * frequencies up to 80% of the lower of the two Nyquist frequencies and
+ * attenuates the ones above that Nyquist frequency by 70 dB, and its
+ * length and window are derived from these. The filter tables are computed
+ * once for each pair of rates and shared by all the resamplers.
+ * <p>
+ * The samples are processed in blocks. The resampler keeps the input
+ * samples which are still needed by the filter, so a sound can be given in
+ * blocks of any size. The output is delayed by half of the filter length,
+ * which is given out by drain() at the end of the sound.
+ */
+public class Resampler {
+
+    /**
+     * The passband as a fraction of the lower Nyquist frequency, the
+     * stopband starts at the lower Nyquist frequency
+     */
+    private static final double PASSBAND = 0.8;
+
+    /**
+     * The attenuation of the stopband in dB
+     */
+    private static final double STOPBAND_ATTENUATION = 70;
+
+    /**
+     * The filter tables of the rate pairs, with the key "input:output"
+     */
+    private static Hashtable tables = new Hashtable();
+
+    private int up;
+    private int down;
+    private int half;
+    private float[][] table;
+
+    private float[] buffer;
+    private int count;
+    private int index;
+    private int phase = 0;
+
+    /**
+     * Creates a new instance of Resampler
+     * @param inputRate the sample rate of the input
+     * @param outputRate the sample rate of the output
+     */
+    public Resampler(float inputRate, float outputRate) {
+        int input = Math.round(inputRate);
+        int output = Math.round(outputRate);
+        int divisor = gcd(input, output);
+        up = output / divisor;
+        down = input / divisor;
+
+        if (up != down) {
+            table = getTable(input, output, up, down);
+            half = table[0].length / 2;
+        } else
+            half = 0;
+
+        buffer = new float[4096];
+        reset();
+    }
+
+    /**
+     * Gets the filter table of a pair of rates, computing it if it has not been used
+     * @param input the sample rate of the input
+     * @param output the sample rate of the output
+     * @param up the upsampling factor
+     * @param down the downsampling factor
+     * @return the filter coefficients of each phase
+     */
+    private static synchronized float[][] getTable(int input, int output, int up, int down) {
+        String key = input + ":" + output;
+        float[][] table = (float[][]) tables.get(key);
+        if (table == null) {
+            table = createTable(up, down);
+            tables.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Computes the filter coefficients of each phase
+     * @param up the upsampling factor
+     * @param down the downsampling factor
+     * @return the filter coefficients of each phase
+     */
+    private static float[][] createTable(int up, int down) {
+        // The lower Nyquist frequency, the cutoff in the middle of the
+        // transition band and the transition width in cycles per input sample
+        double nyquist = 0.5 * Math.min(1.0, (double) up / down);
+        double cutoff = nyquist * (1 + PASSBAND) / 2;
+        double transition = nyquist * (1 - PASSBAND);
+
+        // The length and the window of a Kaiser filter with the attenuation
+        double beta = 0.1102 * (STOPBAND_ATTENUATION - 8.7);
+        int half = (int) Math.ceil((STOPBAND_ATTENUATION - 8) / (2.285 * 2 * Math.PI * transition) / 2);
+        int taps = 2 * half;
+
+        float[][] table = new float[up][taps];
+        double norm = bessel(beta);
+        for (int phase = 0; phase < up; phase++) {
+            // Tap k is applied to the input sample at (half - 1 - k) + phase / up
+            // before the time of the output sample
+            double sum = 0;
+            double[] h = new double[taps];
+            for (int k = 0; k < taps; k++) {
+                double t = (half - 1 - k) + (double) phase / up;
+                double x = 2 * cutoff * t;
+                double sinc = (x == 0)? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+                double r = t / half;
+                double window = (r <= -1 || r >= 1)? 0 : bessel(beta * Math.sqrt(1 - r * r)) / norm;
+                h[k] = sinc * window;
+                sum += h[k];
+            }
+
+            // Each phase has a gain of one for a constant signal
+            for (int k = 0; k < taps; k++) table[phase][k] = (float) (h[k] / sum);
+        }
+        return table;
+    }
+
+    /**
+     * Computes the zeroth order modified Bessel function of the first kind
+     * @param x the argument
+     * @return the function value
+     */
+    private static double bessel(double x) {
+        double sum = 1, term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) break;
+        }
+        return sum;
+    }
+
+    /**
+     * Finds the greatest common divisor of two numbers
+     * @param a the first number
+     * @param b the second number
+     * @return the greatest common divisor
+     */
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int r = a % b;
+            a = b;
+            b = r;
+        }
+        return a;
+    }
+
+    /**
+     * Clears the input samples kept by the resampler, e.g. before a new sound
+     */
+    public void reset() {
+        // The filter starts with half of its length in silence
+        count = Math.max(half - 1, 0);
+        for (int i = 0; i < count; i++) buffer[i] = 0;
+        index = count;
+        phase = 0;
+    }
+
+    /**
+     * Checks if the samples are passed through unchanged, i.e. the rates are the same
+     * @return true if the samples are passed through unchanged
+     */
+    public boolean isPassThrough() {
+        return (up == down);
+    }
+
+    /**
+     * Gets the maximum number of output samples of a block
+     * @param length the number of input samples
+     * @return the maximum number of output samples
+     */
+    public int getOutputLength(int length) {
+        return (int) (((long) length + half + 1) * up / down) + 1;
+    }
+
+    /**
+     * Converts a block of samples
+     * @param input the input samples
+     * @param offset the offset in the input samples
+     * @param length the number of input samples
+     * @param output the output samples, which must hold getOutputLength(length) samples
+     * @param outputOffset the offset in the output samples
+     * @return the number of output samples
+     */
+    public int process(short[] input, int offset, int length, short[] output, int outputOffset) {
+        if (up == down) {
+            System.arraycopy(input, offset, output, outputOffset, length);
+            return length;
+        }
+
+        // Append the block to the kept input samples
+        if (count + length > buffer.length) {
+            float[] newBuffer = new float[Math.max(count + length, 2 * buffer.length)];
+            System.arraycopy(buffer, 0, newBuffer, 0, count);
+            buffer = newBuffer;
+        }
+        for (int i = 0; i < length; i++) buffer[count + i] = input[offset + i];
+        count += length;
+
+        // Filter while the input samples after the output time are available
+        int taps = 2 * half;
+        int out = outputOffset;
+        while (index + half < count) {
+            float[] h = table[phase];
+            int start = index - half + 1;
+            float sum = 0;
+            for (int k = 0; k < taps; k++) sum += h[k] * buffer[start + k];
+
+            int sample = Math.round(sum);
+            if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+            else if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+            output[out++] = (short) sample;
+
+            phase += down;
+            index += phase / up;
+            phase %= up;
+        }
+
+        // Keep only the input samples still needed by the filter
+        int discard = Math.min(index - half + 1, count);
+        if (discard > 0) {
+            System.arraycopy(buffer, discard, buffer, 0, count - discard);
+            count -= discard;
+            index -= discard;
+        }
+        return out - outputOffset;
+    }
+
+    /**
+     * Gives out the samples delayed by the filter at the end of a sound
+     * @param output the output samples, which must hold getOutputLength(0) samples
+     * @param outputOffset the offset in the output samples
+     * @return the number of output samples
+     */
+    public int drain(short[] output, int outputOffset) {
+        int length = process(new short[half], 0, half, output, outputOffset);
+        reset();
+        return length;
+    }
+
+}
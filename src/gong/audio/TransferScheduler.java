@@ -0,0 +1,195 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs the asynchronous transfers of audio data on a bounded
+ * pool of threads. When all the threads are busy, the waiting transfers are
+ * started in the order of their priorities, and in the order they are
+ * scheduled for the same priority. Virtual threads are used if the Java
+ * runtime provides them.
+ */
+public class TransferScheduler {
+
+    /**
+     * The lowest transfer priority
+     */
+    public static final int MIN_PRIORITY = 0;
+
+    /**
+     * The default transfer priority
+     */
+    public static final int NORM_PRIORITY = 5;
+
+    /**
+     * The highest transfer priority, e.g. for the visible item
+     */
+    public static final int MAX_PRIORITY = 10;
+
+    /**
+     * The default maximum number of concurrent transfers
+     */
+    public static final int DEFAULT_MAXIMUM_TRANSFERS = 4;
+
+    /**
+     * The time an idle thread is kept, in seconds
+     */
+    private static final int IDLE_TIMEOUT = 30;
+
+    /**
+     * The shared scheduler
+     */
+    private static TransferScheduler defaultScheduler = null;
+
+    private ThreadPoolExecutor executor;
+    private ThreadFactory threadFactory;
+    private long sequence = 0;
+
+    /**
+     * Creates a new instance of TransferScheduler
+     * @param maximumTransfers the maximum number of concurrent transfers
+     */
+    public TransferScheduler(int maximumTransfers) {
+        if (maximumTransfers < 1) maximumTransfers = 1;
+
+        threadFactory = createThreadFactory();
+        executor = new ThreadPoolExecutor(maximumTransfers, maximumTransfers, IDLE_TIMEOUT, TimeUnit.SECONDS,
+                new PriorityBlockingQueue(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Gets the scheduler shared by all audio data
+     * @return the shared scheduler
+     */
+    public static synchronized TransferScheduler getDefault() {
+        if (defaultScheduler == null) defaultScheduler = new TransferScheduler(DEFAULT_MAXIMUM_TRANSFERS);
+        return defaultScheduler;
+    }
+
+    /**
+     * Gets the maximum number of concurrent transfers
+     * @return the maximum number of transfers
+     */
+    public int getMaximumTransfers() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Sets the maximum number of concurrent transfers
+     * @param maximumTransfers the maximum number of transfers
+     */
+    public synchronized void setMaximumTransfers(int maximumTransfers) {
+        if (maximumTransfers < 1) maximumTransfers = 1;
+
+        if (maximumTransfers > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(maximumTransfers);
+            executor.setCorePoolSize(maximumTransfers);
+        } else {
+            executor.setCorePoolSize(maximumTransfers);
+            executor.setMaximumPoolSize(maximumTransfers);
+        }
+    }
+
+    /**
+     * Gets the number of transfers which are running
+     * @return the number of running transfers
+     */
+    public int getActiveTransfers() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Gets the number of transfers waiting to be started
+     * @return the number of waiting transfers
+     */
+    public int getWaitingTransfers() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Schedules a transfer
+     * @param task the transfer task
+     */
+    public synchronized void schedule(AudioData.TransferTask task) {
+        task.setSequence(sequence++);
+        executor.execute(task);
+    }
+
+    /**
+     * Changes the priority of a transfer, which is moved in the waiting
+     * transfers if it has not been started
+     * @param task the transfer task
+     * @param priority the new priority
+     */
+    public synchronized void setPriority(AudioData.TransferTask task, int priority) {
+        if (executor.remove(task)) {
+            task.setPriority(priority);
+            executor.execute(task);
+        } else
+            task.setPriority(priority);
+    }
+
+    /**
+     * Removes a transfer which has not been started
+     * @param task the transfer task
+     * @return true if the transfer was waiting and has been removed
+     */
+    public synchronized boolean remove(AudioData.TransferTask task) {
+        return executor.remove(task);
+    }
+
+    /**
+     * Creates a thread for an extra connection of a running transfer, which
+     * is not counted as a separate transfer
+     * @param runnable the code run by the thread
+     * @return the new thread, which has not been started
+     */
+    public Thread newThread(Runnable runnable) {
+        return threadFactory.newThread(runnable);
+    }
+
+    /**
+     * Creates the factory of the transfer threads, using virtual threads if available
+     * @return the thread factory
+     */
+    private static ThreadFactory createThreadFactory() {
+        try {
+            // Thread.ofVirtual().name("Transfer-", 0).factory()
+            Class builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Transfer-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {}
+
+        return new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Transfer-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+}
@@ -20,7 +20,6 @@ import gong.audio.AudioData;
 import gong.audio.AudioDataException;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Vector;
 import javax.sound.sampled.AudioFormat;
 
 /**
@@ -32,20 +31,15 @@ import javax.sound.sampled.AudioFormat;
 public abstract class BlockAudioData extends AudioData {
     
     /**
-     * Data blocks of the audio
+     * Data blocks of the audio, which also keeps the number of available blocks
      */
-    protected Vector blockData = new Vector();
+    protected BlockList blockData = new BlockList();
     
     /**
      * The number of samples for each block
      */
     protected int samplesPerBlock;
     
-    /**
-     * Blocks available in the data
-     */
-    protected int availableBlocks;
-    
     /**
      * Creates a new instance of BlockAudioData
      */
@@ -68,11 +62,12 @@ public abstract class BlockAudioData extends AudioData {
      * @throws gong.audio.AudioDataException invalid data/request
      */
     public synchronized int read() throws IOException, AudioDataException {
-        if (blockData.size() == 0) throw new AudioDataException("Data not available.");
+        int size = blockData.size();
+        if (size == 0) throw new AudioDataException("Data not available.");
         
         int blockIndex = position / samplesPerBlock;
-        if (blockIndex >= blockData.size()) throw new AudioDataException("Buffer overflow.");
-        if (blockIndex >= availableBlocks) throw new AudioDataException("Data not available.");
+        if (blockIndex >= size) throw new AudioDataException("Buffer overflow.");
+        if (!isBlockAvailable(blockIndex)) throw new AudioDataException("Data not available.");
         
         Block block = (Block) blockData.get(blockIndex);
         block.seek(position % samplesPerBlock);
@@ -86,42 +81,102 @@ public abstract class BlockAudioData extends AudioData {
      * @param buffer the sample buffer
      * @param offset the offset in the buffer
      * @param length the length of the samples to be read
-     * @return the number of samples read
+     * @return the number of samples read, which is 0 if the data is not yet
+     * available or END_OF_DATA if the end of the data has been reached
      * @throws java.io.IOException failed to read sample
      * @throws gong.audio.AudioDataException invalid data/request
      */
     public synchronized int read(int[] buffer, int offset, int length) throws IOException, AudioDataException {
-        if (blockData.size() == 0) throw new AudioDataException("Data not available.");
+        int readable = getReadableLength();
+        if (readable <= 0) return getReadStatus();
+        if (length > readable) length = readable;
         
-        int blockIndex = position / samplesPerBlock;
-        if (blockIndex >= blockData.size()) throw new AudioDataException("Buffer overflow.");
-        if (blockIndex >= availableBlocks) throw new AudioDataException("Data not available.");
+        int lastPos = position;
+        while (length > 0) {
+            Block block = (Block) blockData.get(position / samplesPerBlock);
+            int blockPos = position % samplesPerBlock;
+            block.seek(blockPos);
+            
+            int count = Math.min(length, samplesPerBlock - blockPos);
+            for (int index = offset; index < offset + count; index++) buffer[index] = block.read();
+            position += count;
+            offset += count;
+            length -= count;
+        }
         
-        Block block = (Block) blockData.get(blockIndex);
-        block.seek(position % samplesPerBlock);
+        return (position - lastPos);
+    }
+    
+    /**
+     * Reads a block of samples from the audio data, decoding a whole data block at a time
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the length of the samples to be read
+     * @return the number of samples read, which is 0 if the data is not yet
+     * available or END_OF_DATA if the end of the data has been reached
+     * @throws java.io.IOException failed to read sample
+     * @throws gong.audio.AudioDataException invalid data/request
+     */
+    public synchronized int read(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+        int readable = getReadableLength();
+        if (readable <= 0) return getReadStatus();
+        if (length > readable) length = readable;
         
         int lastPos = position;
-        for (int index = offset; index < offset + length; index++) {
-            try {
-                buffer[index] = block.read();
-                position++;
-                
-                if (block.eob()) {
-                    blockIndex++;
-                    if (blockIndex >= blockData.size()) throw new AudioDataException("Buffer overflow.");
-                    if (blockIndex >= availableBlocks) throw new AudioDataException("Data not available.");
-                    
-                    block = (Block) blockData.get(blockIndex);
-                    block.seek(0);
-                }
-            } catch (Throwable t) {
-                break;
-            }
+        while (length > 0) {
+            Block block = (Block) blockData.get(position / samplesPerBlock);
+            int blockPos = position % samplesPerBlock;
+            block.seek(blockPos);
+            
+            int count = block.read(buffer, offset, Math.min(length, samplesPerBlock - blockPos));
+            if (count <= 0) break;
+            position += count;
+            offset += count;
+            length -= count;
         }
         
         return (position - lastPos);
     }
     
+    /**
+     * Gets the number of samples that can be read from the current position
+     * without waiting for more data
+     * @return the number of readable samples
+     */
+    public synchronized int getReadableLength() {
+        int end = blockData.nextUnavailable(position / samplesPerBlock);
+        return Math.max(0, end * samplesPerBlock - position);
+    }
+    
+    /**
+     * Gets the status of a read request when no sample is readable. A block
+     * which has not been received when the transfer has ended, e.g. because
+     * the connection has failed, will not be received.
+     * @return END_OF_DATA if no more data is expected; 0 if more data is expected
+     */
+    protected int getReadStatus() {
+        if (!isTransferInProgress()) return END_OF_DATA;
+        return 0;
+    }
+    
+    /**
+     * Checks whether a block has been received
+     * @param index the block index
+     * @return true if the block can be read
+     */
+    protected boolean isBlockAvailable(int index) {
+        return blockData.isAvailable(index);
+    }
+    
+    /**
+     * Gets the media time up to which the data can be read from the current
+     * position without waiting for the download
+     * @return the buffered time
+     */
+    public synchronized long getBufferedTime() {
+        return (long) ((double) (position + getReadableLength()) / format.getSampleRate() * 1000D);
+    }
+    
     /**
      * Creates a new block
      * @return the new block
@@ -140,7 +195,7 @@ public abstract class BlockAudioData extends AudioData {
         if (blockIndex >= blockData.size()) {
             block = createBlock();
             blockData.add(block);
-            availableBlocks = blockData.size();
+            blockData.setAvailable(blockData.size());
             
             if (listener != null) listener.received(this, getAvailable());
         } else block = (Block) blockData.get(blockIndex);
@@ -149,6 +204,34 @@ public abstract class BlockAudioData extends AudioData {
         position++;
     }
     
+    /**
+     * Writes a block of samples to the audio data, filling a whole data block at a time
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the length of the samples to be written
+     * @throws java.io.IOException failed to write sample
+     * @throws gong.audio.AudioDataException Invalid data/request
+     */
+    public synchronized void write(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+        while (length > 0) {
+            Block block;
+            int blockIndex = position / samplesPerBlock;
+            if (blockIndex >= blockData.size()) {
+                block = createBlock();
+                blockData.add(block);
+                blockData.setAvailable(blockData.size());
+                
+                if (listener != null) listener.received(this, getAvailable());
+            } else block = (Block) blockData.get(blockIndex);
+            
+            int count = Math.min(length, samplesPerBlock - position % samplesPerBlock);
+            block.write(buffer, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+    
     /**
      * Seeks to the given position in the audio data
      * @param position the position of the sample
@@ -160,8 +243,11 @@ public abstract class BlockAudioData extends AudioData {
         int blockIndex = position / samplesPerBlock;
         if (blockIndex < 0 || blockIndex >= blockData.size()) throw new AudioDataException("Invalid seek position.");
         
-        Block block = (Block) blockData.get(blockIndex);
-        block.seek(position % samplesPerBlock);
+        // A block which has not been received is positioned when it is read
+        if (isBlockAvailable(blockIndex)) {
+            Block block = (Block) blockData.get(blockIndex);
+            block.seek(position % samplesPerBlock);
+        }
         
         return (this.position = position);
     }
@@ -171,28 +257,22 @@ public abstract class BlockAudioData extends AudioData {
      * @return true if sample is available
      */
     public synchronized boolean isAvailable() {
-        if (blockData.size() == 0) return false;
-        
-        int blockIndex = position / samplesPerBlock;
-        if (blockIndex >= blockData.size()) return false;
-        if (blockIndex >= availableBlocks) return false;
-        
-        return true;
+        return isBlockAvailable(position / samplesPerBlock);
     }
     
     /**
      * Gets the available data in media duration
      * @return the available duration
      */
-    public synchronized long getAvailable() {
-        return (long) ((double) (availableBlocks * samplesPerBlock) / format.getSampleRate() * 1000D);
+    public long getAvailable() {
+        return (long) ((double) (blockData.getAvailable() * samplesPerBlock) / format.getSampleRate() * 1000D);
     }
     
     /**
      * Gets the length of samples in the audio data
      * @return the length of samples
      */
-    public synchronized int getLength() {
+    public int getLength() {
         return blockData.size() * samplesPerBlock;
     }
     
@@ -201,7 +281,7 @@ public abstract class BlockAudioData extends AudioData {
      * @param time the media time
      * @return the index of block
      */
-    public synchronized int getBlockIndex(long time) {
+    public int getBlockIndex(long time) {
         int position = (int) ((double) time / 1000D * format.getSampleRate());
         int blockIndex = position / samplesPerBlock;
         if (blockIndex < 0) blockIndex = 0;
@@ -214,7 +294,7 @@ public abstract class BlockAudioData extends AudioData {
      * @param index the block index
      * @return the media time of block
      */
-    public synchronized long getBlockTime(int index) {
+    public long getBlockTime(int index) {
         int position = index * samplesPerBlock;
         return (long) ((double) position / format.getSampleRate() * 1000D);
     }
@@ -223,7 +303,7 @@ public abstract class BlockAudioData extends AudioData {
      * Gets the number of the blocks in the audio data
      * @return the number of blocks
      */
-    public synchronized int getBlockSize() {
+    public int getBlockSize() {
         return blockData.size();
     }
     
@@ -234,18 +314,15 @@ public abstract class BlockAudioData extends AudioData {
      * @return the deleted audio data
      */
     public synchronized BlockAudioData delete(int start, int end) {
-        Vector backup = blockData;
+        BlockList backup = blockData;
         
-        blockData = new Vector();
-        availableBlocks = 0;
+        blockData = new BlockList();
         BlockAudioData deletedData = (BlockAudioData) clone();
         
-        deletedData.blockData = new Vector(backup.subList(start, end));
-        deletedData.availableBlocks = end - start;
+        deletedData.blockData = backup.subList(start, end);
         
-        backup.subList(start, end).clear();
+        backup.removeRange(start, end);
         blockData = backup;
-        availableBlocks = blockData.size();
         
         return deletedData;
     }
@@ -258,8 +335,7 @@ public abstract class BlockAudioData extends AudioData {
     public synchronized void insert(BlockAudioData audioData, int start) {
         if (!this.getClass().isInstance(audioData)) return;
         BlockAudioData insertedData = (BlockAudioData) audioData.clone();
-        blockData.addAll(start, insertedData.blockData);
-        availableBlocks = blockData.size();
+        blockData.insert(start, insertedData.blockData);
     }
     
     /**
@@ -331,6 +407,33 @@ public abstract class BlockAudioData extends AudioData {
         public void write(int sample) throws IOException, AudioDataException {
         }
         
+        /**
+         * Reads a set of samples from the block, stopping at the end of block
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer
+         * @param length the maximum number of samples to read
+         * @return the number of samples read
+         * @throws java.io.IOException failed to read the samples
+         * @throws gong.audio.AudioDataException Invalid data/request
+         */
+        public synchronized int read(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+            int count = 0;
+            while (count < length && !eob()) buffer[offset + count++] = (short) read();
+            return count;
+        }
+        
+        /**
+         * Writes a set of samples to the block
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer
+         * @param length the number of samples to write
+         * @throws java.io.IOException failed to write the samples
+         * @throws gong.audio.AudioDataException Invalid data/request
+         */
+        public synchronized void write(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+            for (int index = offset; index < offset + length; index++) write(buffer[index]);
+        }
+        
         /**
          * Seeks to a particular position in the block
          * @param position the position
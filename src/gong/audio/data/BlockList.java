@@ -0,0 +1,316 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio.data;
+
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+/**
+ * This class stores the blocks of audio data in an append-only array of
+ * fixed size chunks. It is written by a single thread at a time, i.e. the
+ * transfer thread or the owner of the audio data lock, and can be read by
+ * any thread without locking.
+ * <p>
+ * Blocks are published through two volatile counters. The size is the
+ * number of blocks created and the available count is the number of blocks
+ * which have been fully received. A reader which sees a count also sees
+ * the content of the blocks below it.
+ * <p>
+ * Blocks may also be received out of order, e.g. by a segmented download.
+ * Such a block is marked individually and the available count only
+ * advances over the contiguous blocks from the start.
+ */
+public class BlockList {
+
+    /**
+     * The number of bits of the chunk size
+     */
+    private static final int CHUNK_BITS = 8;
+
+    /**
+     * The number of blocks in each chunk
+     */
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /**
+     * The chunks of the blocks
+     */
+    private volatile Object[][] chunks = new Object[4][];
+
+    /**
+     * The number of blocks in the list
+     */
+    private volatile int size = 0;
+
+    /**
+     * The number of blocks available for reading
+     */
+    private volatile int available = 0;
+
+    /**
+     * The blocks received after the available blocks, one bit for each block
+     */
+    private int[] received = new int[0];
+
+    /**
+     * Creates a new instance of BlockList
+     */
+    public BlockList() {
+    }
+
+    /**
+     * Gets the number of blocks in the list
+     * @return the number of blocks
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the block at the given index
+     * @param index the block index
+     * @return the block
+     */
+    public Object get(int index) {
+        if (index < 0 || index >= size) throw new ArrayIndexOutOfBoundsException(index);
+        return chunks[index >> CHUNK_BITS][index & (CHUNK_SIZE - 1)];
+    }
+
+    /**
+     * Gets the last block of the list
+     * @return the last block
+     */
+    public Object lastElement() {
+        int size = this.size;
+        if (size == 0) throw new NoSuchElementException();
+        return get(size - 1);
+    }
+
+    /**
+     * Appends a block to the end of the list
+     * @param block the block to be added
+     */
+    public void add(Object block) {
+        int size = this.size;
+        int chunkIndex = size >> CHUNK_BITS;
+
+        Object[][] chunks = this.chunks;
+        if (chunkIndex >= chunks.length) {
+            Object[][] newChunks = new Object[chunks.length * 2][];
+            System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+            chunks = newChunks;
+        }
+        if (chunks[chunkIndex] == null) chunks[chunkIndex] = new Object[CHUNK_SIZE];
+        chunks[chunkIndex][size & (CHUNK_SIZE - 1)] = block;
+
+        // Publish the chunks before the size
+        this.chunks = chunks;
+        this.size = size + 1;
+    }
+
+    /**
+     * Gets the number of blocks available for reading
+     * @return the number of available blocks
+     */
+    public int getAvailable() {
+        return available;
+    }
+
+    /**
+     * Sets the number of blocks available for reading
+     * @param available the number of available blocks
+     */
+    public synchronized void setAvailable(int available) {
+        if (available <= this.available) {
+            this.available = Math.min(available, size);
+            return;
+        }
+        for (int index = this.available; index < available && index < size; index++) setReceived(index, false);
+        advance(Math.min(available, size));
+    }
+
+    /**
+     * Makes the next block available for reading after it has been received
+     * @return the new number of available blocks
+     */
+    public int publish() {
+        return publish(available);
+    }
+
+    /**
+     * Makes a block available for reading after it has been received. The
+     * available count advances if the block follows the available blocks.
+     * @param index the block index
+     * @return the new number of available blocks
+     */
+    public synchronized int publish(int index) {
+        if (index < available || index >= size) return available;
+
+        if (index > available)
+            setReceived(index, true);
+        else
+            advance(index + 1);
+        return available;
+    }
+
+    /**
+     * Checks whether a block has been received
+     * @param index the block index
+     * @return true if the block can be read
+     */
+    public boolean isAvailable(int index) {
+        if (index < available) return true;
+        if (index >= size) return false;
+        return isReceived(index);
+    }
+
+    /**
+     * Finds the first block which has not been received from the given index
+     * @param index the block index to start from
+     * @return the index of the block, or the size of the list if all
+     *         the following blocks have been received
+     */
+    public int nextUnavailable(int index) {
+        if (index < available) index = available;
+        if (index >= size) return Math.max(index, size);
+        return nextUnreceived(index);
+    }
+
+    /**
+     * Sets the available count, moving it over the following received blocks
+     * @param available the number of contiguous available blocks
+     */
+    private void advance(int available) {
+        while (available < size && isReceived(available)) {
+            setReceived(available, false);
+            available++;
+        }
+        this.available = available;
+    }
+
+    /**
+     * Finds the first block which has not been marked as received
+     * @param index the block index to start from
+     * @return the index of the block
+     */
+    private synchronized int nextUnreceived(int index) {
+        int size = this.size;
+        while (index < size && isReceived(index)) index++;
+        return index;
+    }
+
+    /**
+     * Checks whether a block has been marked as received
+     * @param index the block index
+     * @return true if the block is marked
+     */
+    private synchronized boolean isReceived(int index) {
+        int word = index >> 5;
+        return (word < received.length && (received[word] & (1 << (index & 31))) != 0);
+    }
+
+    /**
+     * Marks or unmarks a block as received
+     * @param index the block index
+     * @param value true to mark the block
+     */
+    private void setReceived(int index, boolean value) {
+        int word = index >> 5;
+        if (word >= received.length) {
+            if (!value) return;
+            int[] newReceived = new int[Math.max(word + 1, received.length * 2)];
+            System.arraycopy(received, 0, newReceived, 0, received.length);
+            received = newReceived;
+        }
+        if (value)
+            received[word] |= 1 << (index & 31);
+        else
+            received[word] &= ~(1 << (index & 31));
+    }
+
+    /**
+     * Gets an enumeration of the blocks in the list
+     * @return the enumeration of the blocks
+     */
+    public Enumeration elements() {
+        final int end = size;
+        return new Enumeration() {
+            private int index = 0;
+
+            public boolean hasMoreElements() {
+                return (index < end);
+            }
+
+            public Object nextElement() {
+                if (index >= end) throw new NoSuchElementException();
+                return get(index++);
+            }
+        };
+    }
+
+    /**
+     * Creates a list containing part of the blocks, all of which are available
+     * @param start the start index (inclusive)
+     * @param end the end index (exclusive)
+     * @return the new list
+     */
+    public BlockList subList(int start, int end) {
+        BlockList list = new BlockList();
+        for (int index = start; index < end; index++) list.add(get(index));
+        list.setAvailable(list.size());
+        return list;
+    }
+
+    /**
+     * Removes part of the blocks from the list, leaving all blocks available
+     * @param start the start index (inclusive)
+     * @param end the end index (exclusive)
+     */
+    public void removeRange(int start, int end) {
+        BlockList list = new BlockList();
+        for (int index = 0; index < start; index++) list.add(get(index));
+        for (int index = end; index < size; index++) list.add(get(index));
+        replace(list);
+    }
+
+    /**
+     * Inserts the blocks of another list into the list, leaving all blocks available
+     * @param start the start index
+     * @param blocks the blocks to be inserted
+     */
+    public void insert(int start, BlockList blocks) {
+        BlockList list = new BlockList();
+        for (int index = 0; index < start; index++) list.add(get(index));
+        for (int index = 0; index < blocks.size(); index++) list.add(blocks.get(index));
+        for (int index = start; index < size; index++) list.add(get(index));
+        replace(list);
+    }
+
+    /**
+     * Replaces the content of the list with that of another list
+     * @param list the new content
+     */
+    private synchronized void replace(BlockList list) {
+        available = 0;
+        received = new int[0];
+        size = 0;
+        chunks = list.chunks;
+        size = list.size;
+        available = list.size;
+    }
+
+}
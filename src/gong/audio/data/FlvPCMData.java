@@ -225,6 +225,18 @@ public class FlvPCMData extends BlockAudioData {
             throw new AudioDataException("The Flv PCM format is write only.");
         }
         
+        /**
+         * Reads a set of samples from the block (not implemented)
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer
+         * @param length the maximum number of samples to read
+         * @return the number of samples read
+         * @throws gong.audio.AudioDataException failed to read the samples
+         */
+        public synchronized int read(short[] buffer, int offset, int length) throws AudioDataException {
+            throw new AudioDataException("The Flv PCM format is write only.");
+        }
+        
         /**
          * Writes a sample to the block
          * @param sample the sample to be written
@@ -244,6 +256,30 @@ public class FlvPCMData extends BlockAudioData {
 
             position++;
         }
+        
+        /**
+         * Writes a set of samples to the block
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer
+         * @param length the number of samples to write
+         * @throws gong.audio.AudioDataException failed to write the samples
+         */
+        public synchronized void write(short[] buffer, int offset, int length) throws AudioDataException {
+            if (position + length > size) throw new AudioDataException("Invalid write request.");
+            
+            if (data == null) {
+                data = new byte[size * 2];
+                Arrays.fill(data, (byte) 0);
+            }
+            
+            int end = offset + length;
+            for (int dataIndex = position << 1; offset < end; offset++, dataIndex += 2) {
+                int sample = buffer[offset];
+                data[dataIndex] = (byte) (sample & 0xFF);
+                data[dataIndex + 1] = (byte) ((sample >> 8) & 0xFF);
+            }
+            position += length;
+        }
     
         /**
          * Sends the block to an output stream
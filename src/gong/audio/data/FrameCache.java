@@ -0,0 +1,258 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * This class keeps the most recently used decoded frames of block audio
+ * data. The frames are keyed by block index and the least recently used
+ * frame is evicted when the cache is full. Evicted frames are kept for
+ * reuse by the next decoding.
+ * <p>
+ * A frame returned by the cache must be copied before the next call to the
+ * cache since it may be recycled after that.
+ */
+public class FrameCache {
+
+    /**
+     * The default number of frames in the cache
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * The maximum number of frames kept for reuse
+     */
+    private static final int MAX_RECYCLED = 8;
+
+    /**
+     * The maximum number of frames in the cache
+     */
+    private int capacity;
+
+    /**
+     * The cached frames in access order
+     */
+    private LinkedHashMap frames = new LinkedHashMap(16, 0.75f, true);
+
+    /**
+     * The frames kept for reuse
+     */
+    private Stack recycled = new Stack();
+
+    /**
+     * The number of requests found in the cache
+     */
+    private long hits = 0;
+
+    /**
+     * The number of requests not found in the cache
+     */
+    private long misses = 0;
+
+    /**
+     * The number of frames evicted from the cache
+     */
+    private long evictions = 0;
+
+    /**
+     * Creates a new instance of FrameCache
+     */
+    public FrameCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new instance of FrameCache
+     * @param capacity the maximum number of frames in the cache
+     */
+    public FrameCache(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Gets the maximum number of frames in the cache
+     * @return the capacity of the cache
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the maximum number of frames in the cache, 0 to disable the cache
+     * @param capacity the capacity of the cache
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0) capacity = 0;
+        this.capacity = capacity;
+        evict();
+    }
+
+    /**
+     * Gets the decoded frame of a block
+     * @param index the block index
+     * @param block the block, which must be the same as the one stored with the frame
+     * @return the decoded frame or null if it is not in the cache
+     */
+    public synchronized short[] get(int index, Object block) {
+        Entry entry = (Entry) frames.get(new Integer(index));
+        if (entry == null || entry.block != block) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.frame;
+    }
+
+    /**
+     * Stores the decoded frame of a block
+     * @param index the block index
+     * @param block the block
+     * @param frame the decoded frame
+     */
+    public synchronized void put(int index, Object block, short[] frame) {
+        if (capacity == 0) return;
+
+        Entry old = (Entry) frames.put(new Integer(index), new Entry(block, frame));
+        if (old != null && old.frame != frame) recycle(old.frame);
+        evict();
+    }
+
+    /**
+     * Removes the frame of a block from the cache
+     * @param index the block index
+     */
+    public synchronized void remove(int index) {
+        Entry entry = (Entry) frames.remove(new Integer(index));
+        if (entry != null) recycle(entry.frame);
+    }
+
+    /**
+     * Removes all frames from the cache
+     */
+    public synchronized void clear() {
+        for (Iterator it = frames.values().iterator(); it.hasNext();) {
+            recycle(((Entry) it.next()).frame);
+        }
+        frames.clear();
+    }
+
+    /**
+     * Gets a frame buffer, reusing an evicted frame if possible
+     * @param length the length of the frame
+     * @return the frame buffer, which is not cleared
+     */
+    public synchronized short[] allocate(int length) {
+        while (!recycled.isEmpty()) {
+            short[] frame = (short[]) recycled.pop();
+            if (frame.length == length) return frame;
+        }
+        return new short[length];
+    }
+
+    /**
+     * Returns a frame buffer which is no longer used
+     * @param frame the frame buffer
+     */
+    public synchronized void recycle(short[] frame) {
+        if (frame != null && recycled.size() < MAX_RECYCLED) recycled.push(frame);
+    }
+
+    /**
+     * Gets the number of frames in the cache
+     * @return the number of frames
+     */
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    /**
+     * Gets the number of requests found in the cache
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of requests not found in the cache
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of frames evicted from the cache
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Resets the statistics of the cache
+     */
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /**
+     * Evicts the least recently used frames beyond the capacity
+     */
+    private void evict() {
+        for (Iterator it = frames.entrySet().iterator(); frames.size() > capacity && it.hasNext();) {
+            Entry entry = (Entry) ((Map.Entry) it.next()).getValue();
+            it.remove();
+            recycle(entry.frame);
+            evictions++;
+        }
+    }
+
+    /**
+     * This class stores a cached frame with its block.
+     */
+    private static class Entry {
+
+        /**
+         * The block of the frame
+         */
+        private Object block;
+
+        /**
+         * The decoded frame
+         */
+        private short[] frame;
+
+        /**
+         * Creates a new instance of Entry
+         * @param block the block of the frame
+         * @param frame the decoded frame
+         */
+        public Entry(Object block, short[] frame) {
+            this.block = block;
+            this.frame = frame;
+        }
+
+    }
+
+}
@@ -17,6 +17,8 @@
 package gong.audio.data;
 
 import gong.audio.AudioDataException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
@@ -27,6 +29,9 @@ import java.net.ConnectException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.sound.sampled.AudioFormat;
 
 /**
@@ -78,6 +83,35 @@ public class ImaADPCMData extends BlockAudioData {
         15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
     };
     
+    /**
+     * The difference of each 4-bit delta code at each step index, indexed by (index << 4) | code
+     */
+    protected static final int[] diffTable = new int[89 * 16];
+    
+    /**
+     * The next step index of each 4-bit delta code at each step index, indexed by (index << 4) | code
+     */
+    protected static final int[] nextIndexTable = new int[89 * 16];
+    
+    static {
+        for (int index = 0; index <= 88; index++) {
+            int step = stepsizeTable[index];
+            for (int code = 0; code < 16; code++) {
+                int diff = step >> 3;
+                if ((code & 4) != 0) diff += step;
+                if ((code & 2) != 0) diff += step >> 1;
+                if ((code & 1) != 0) diff += step >> 2;
+                if ((code & 8) != 0) diff = -diff;
+                diffTable[(index << 4) | code] = diff;
+                
+                int nextIndex = index + indexTable[2][code & 7];
+                if (nextIndex < 0) nextIndex = 0;
+                else if (nextIndex > 88) nextIndex = 88;
+                nextIndexTable[(index << 4) | code] = nextIndex;
+            }
+        }
+    }
+    
     /**
      * The default block alignment size
      */
@@ -88,11 +122,53 @@ public class ImaADPCMData extends BlockAudioData {
      */
     protected int blockAlign = DEFAULT_BLOCK_ALIGN;
     
+    /**
+     * The default number of samples between two seek checkpoints
+     */
+    protected static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+    
+    /**
+     * The number of samples between two seek checkpoints, 0 if checkpoints are not used
+     */
+    protected int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    
+    /**
+     * The maximum number of blocks decoded by each parallel decoding task
+     */
+    protected static final int PARALLEL_DECODE_BLOCKS = 16;
+    
+    /**
+     * The pool shared by parallel decoding
+     */
+    private static ForkJoinPool decodePool = null;
+    
     /**
      * The number of bytes written to the cache
      */
     protected long cacheSize = 0;
     
+    /**
+     * The byte offset of the first block in the received stream
+     */
+    protected long dataOffset = 0;
+    
+    /**
+     * The distance from the received blocks within which a seek waits for
+     * the download instead of fetching the data, in milliseconds
+     */
+    protected static final int FETCH_DISTANCE = 5000;
+    
+    /**
+     * The minimum number of blocks downloaded by a separate connection
+     */
+    protected static final int MIN_SEGMENT_BLOCKS = 64;
+    
+    /**
+     * The number of blocks sent by sendProgressiveToStream, -1 if the
+     * header has not been sent
+     */
+    protected int progressiveBlocks = -1;
+    
     /**
      * Creates a new instance of ImaADPCMData
      */
@@ -131,6 +207,174 @@ public class ImaADPCMData extends BlockAudioData {
         return new ImaADPCMBlock(state.index, samplesPerBlock);
     }
 
+    /**
+     * Decodes a run of 4-bit delta codes using the precomputed tables
+     * @param source the delta codes, two per byte with the low nibble first
+     * @param nibble the index of the first delta code in the source
+     * @param count the number of delta codes to decode
+     * @param buffer the sample buffer, or null if the samples are skipped
+     * @param offset the offset in the buffer
+     * @param state the codec state, which is updated after decoding
+     */
+    protected static void decodeNibbles(byte[] source, int nibble, int count, short[] buffer, int offset, ADPCMState state) {
+        int value = state.previousValue;
+        int index = state.index;
+        int end = nibble + count;
+        
+        // Leading high nibble
+        if ((nibble & 1) != 0 && nibble < end) {
+            int code = (index << 4) | ((source[nibble >> 1] >> 4) & 0xF);
+            value += diffTable[code];
+            if (value > 32767) value = 32767;
+            else if (value < -32768) value = -32768;
+            index = nextIndexTable[code];
+            if (buffer != null) buffer[offset] = (short) value;
+            offset++;
+            nibble++;
+        }
+        
+        // Two delta codes for each byte
+        for (; nibble + 1 < end; nibble += 2, offset += 2) {
+            int byteData = source[nibble >> 1];
+            
+            int code = (index << 4) | (byteData & 0xF);
+            value += diffTable[code];
+            if (value > 32767) value = 32767;
+            else if (value < -32768) value = -32768;
+            index = nextIndexTable[code];
+            int first = value;
+            
+            code = (index << 4) | ((byteData >> 4) & 0xF);
+            value += diffTable[code];
+            if (value > 32767) value = 32767;
+            else if (value < -32768) value = -32768;
+            index = nextIndexTable[code];
+            
+            if (buffer != null) {
+                buffer[offset] = (short) first;
+                buffer[offset + 1] = (short) value;
+            }
+        }
+        
+        // Trailing low nibble
+        if (nibble < end) {
+            int code = (index << 4) | (source[nibble >> 1] & 0xF);
+            value += diffTable[code];
+            if (value > 32767) value = 32767;
+            else if (value < -32768) value = -32768;
+            index = nextIndexTable[code];
+            if (buffer != null) buffer[offset] = (short) value;
+        }
+        
+        state.previousValue = value;
+        state.index = index;
+    }
+    
+    /**
+     * Encodes a run of samples to 4-bit delta codes using the precomputed tables
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param count the number of samples to encode
+     * @param target the delta codes, two per byte with the low nibble first
+     * @param nibble the index of the first delta code in the target
+     * @param state the codec state, which is updated after encoding
+     */
+    protected static void encodeNibbles(short[] buffer, int offset, int count, byte[] target, int nibble, ADPCMState state) {
+        int value = state.previousValue;
+        int index = state.index;
+        
+        for (int end = offset + count; offset < end; offset++, nibble++) {
+            int diff = buffer[offset] - value;
+            int step = stepsizeTable[index];
+            int code = 0;
+            
+            if (diff < 0) {
+                code = 8;
+                diff = -diff;
+            }
+            if (diff >= step) {
+                code |= 4;
+                diff -= step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 2;
+                diff -= step;
+            }
+            step >>= 1;
+            if (diff >= step) code |= 1;
+            
+            code |= index << 4;
+            value += diffTable[code];
+            if (value > 32767) value = 32767;
+            else if (value < -32768) value = -32768;
+            index = nextIndexTable[code];
+            
+            if ((nibble & 1) == 0)
+                target[nibble >> 1] |= (byte) (code & 0xF);
+            else
+                target[nibble >> 1] |= (byte) ((code << 4) & 0xF0);
+        }
+        
+        state.previousValue = value;
+        state.index = index;
+    }
+    
+    /**
+     * Gets the pool shared by parallel decoding
+     * @return the fork-join pool
+     */
+    protected static synchronized ForkJoinPool getDecodePool() {
+        if (decodePool == null) decodePool = new ForkJoinPool();
+        return decodePool;
+    }
+    
+    /**
+     * Reads a set of samples from the audio data, decoding the blocks in
+     * parallel since each block starts from the state in its own header.
+     * This is meant for whole-file operations and pays off for requests
+     * spanning many blocks.
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the length of the samples to be read
+     * @return the number of samples read, which is 0 if the data is not yet
+     * available or END_OF_DATA if the end of the data has been reached
+     * @throws java.io.IOException failed to read sample
+     * @throws gong.audio.AudioDataException invalid data/request
+     */
+    public synchronized int readParallel(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+        int readable = getReadableLength();
+        if (readable <= 0) return getReadStatus();
+        if (length > readable) length = readable;
+        
+        DecodeTask task = new DecodeTask(buffer, offset, position, position + length);
+        getDecodePool().invoke(task);
+        if (task.exception instanceof IOException) throw (IOException) task.exception;
+        if (task.exception instanceof AudioDataException) throw (AudioDataException) task.exception;
+        
+        position += length;
+        return length;
+    }
+    
+    /**
+     * Gets the number of samples between two seek checkpoints
+     * @return the checkpoint interval, 0 if checkpoints are not used
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+    
+    /**
+     * Sets the number of samples between two seek checkpoints. A checkpoint
+     * stores the codec state inside a block so that seeking only decodes
+     * from the nearest checkpoint instead of the start of the block.
+     * @param interval the checkpoint interval, 0 to disable the checkpoints
+     */
+    public void setCheckpointInterval(int interval) {
+        if (interval < 0) interval = 0;
+        checkpointInterval = interval;
+    }
+    
     /**
      * Checks whether a feature is supported
      * @param feature the feature to be tested
@@ -141,6 +385,8 @@ public class ImaADPCMData extends BlockAudioData {
             return true;
         if (feature.equals(FEATURE_RECEIVED_PROGRESS))
             return true;
+        if (feature.equals(FEATURE_PROGRESSIVE_SEND))
+            return true;
         return false;
     }
     
@@ -163,7 +409,8 @@ public class ImaADPCMData extends BlockAudioData {
         }
         audioData.blockAlign = blockAlign;
         audioData.samplesPerBlock = samplesPerBlock;
-        audioData.availableBlocks = availableBlocks;
+        audioData.checkpointInterval = checkpointInterval;
+        audioData.blockData.setAvailable(blockData.getAvailable());
         
         return audioData;
     }
@@ -233,6 +480,54 @@ public class ImaADPCMData extends BlockAudioData {
         sendDataToStream(stream);
     }
     
+    /**
+     * Gets the number of bytes sent by sendToStream, which is fixed by the
+     * header and the block alignment
+     * @return the number of bytes
+     */
+    public synchronized long getStreamLength() {
+        return 60 + (long) blockData.size() * blockAlign;
+    }
+    
+    /**
+     * Sends the blocks recorded since the previous call to the output
+     * stream. The last block is held back until the recording has finished
+     * because it is still being written.
+     * @param stream the output stream
+     * @param finished true if the recording has finished
+     * @throws java.io.IOException failed to send data to stream
+     * @throws gong.audio.AudioDataException invalid data/request
+     */
+    public synchronized void sendProgressiveToStream(OutputStream stream, boolean finished) throws IOException, AudioDataException {
+        // The sizes in the header are only final when the recording has finished
+        if (progressiveBlocks < 0) {
+            stream.write(getProgressiveHeader());
+            progressiveBlocks = 0;
+        }
+        
+        int end = finished? blockData.size() : blockData.size() - 1;
+        for (; progressiveBlocks < end; progressiveBlocks++) {
+            ImaADPCMBlock block = (ImaADPCMBlock) blockData.get(progressiveBlocks);
+            block.sendToStream(stream);
+        }
+    }
+    
+    /**
+     * Gets the wav header and the header of the data chunk with the current
+     * sizes of the data
+     * @return the bytes of the header
+     * @throws java.io.IOException failed to create the header
+     */
+    public synchronized byte[] getProgressiveHeader() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(60);
+        sendHeaderToStream(header);
+        
+        DataOutputStream dataStream = new DataOutputStream(header);
+        dataStream.write(new String("data").getBytes());                    // 0  - 3 : Chunk ID "data"
+        dataStream.writeInt(swapInt(blockData.size() * blockAlign));  // 4  - 7 : Chunk size
+        return header.toByteArray();
+    }
+    
     /**
      * Receives the header from the input stream
      * @param stream the input stream
@@ -287,6 +582,7 @@ public class ImaADPCMData extends BlockAudioData {
             out.writeShort(swapShort(samplesPerBlock));
             cacheSize += 40;
         }
+        dataOffset = 40;
     }
     
     /**
@@ -305,9 +601,11 @@ public class ImaADPCMData extends BlockAudioData {
         while (true) {
             receiveByteArrayFromStream(dataStream, buffer, 0, 4);           // Chunk Id
             chunkSize = swapInt(dataStream.readInt());              // Chunk size
+            dataOffset += 8;
             if (new String(buffer, 0, 4).equals("data"))
                 break;
             else {
+                dataOffset += chunkSize;
                 if (fout == null)
                     dataStream.skip(chunkSize);
                 else {
@@ -338,26 +636,32 @@ public class ImaADPCMData extends BlockAudioData {
         }
         
         if (synchronous) {
+            int attempt = 0;
             try {
-                while (true) {
-                    ImaADPCMBlock block = (ImaADPCMBlock) blockData.get(availableBlocks);
-                    block.receiveFromStream(stream, fout);
-                    availableBlocks++;
+                while (blockData.getAvailable() < blockData.size()) {
+                    int index = blockData.getAvailable();
+                    ImaADPCMBlock block = (ImaADPCMBlock) blockData.get(index);
+                    try {
+                        block.receiveFromStream(stream, fout);
+                    } catch (IOException e) {
+                        // Resume from the last complete block
+                        stream = resumeStream(dataOffset + (long) index * blockAlign, e, ++attempt);
+                        continue;
+                    }
+                    attempt = 0;
+                    blockData.publish();
                     
                     if (listener != null) listener.received(this, getAvailable());
-
-                    try {
-                        if (fout != null) fout.close();
-                    } catch (IOException ex) {}
                 }
             } catch (Throwable t) {}
             
+            try {
+                if (fout != null) fout.close();
+            } catch (IOException ex) {}
+            
             if (chunkSize != blockData.size() * blockAlign) throw new AudioDataException("Invalid block data.");
         } else {
-            if (transferThread == null) {
-                transferThread = getTransferThread();
-                transferThread.start(stream, fout);
-            }
+            startTransfer(stream, fout);
         }
     }
     
@@ -377,49 +681,447 @@ public class ImaADPCMData extends BlockAudioData {
     }
     
     /**
-     * Creates the transfer thread for data transfer
-     * @return the transfer thread to be used
+     * Requests the blocks from the given media time to be downloaded before
+     * the blocks in front of it. The byte offset of a block is known from the
+     * block alignment, so the transfer continues with a range request.
+     * @param time the media time
+     * @return true if the data is being fetched from the time
+     */
+    public synchronized boolean fetch(long time) {
+        if (rangeSource == null || !isFetchEnabled() || !(transferTask instanceof ImaADPCMTransferTask)) return false;
+        
+        int index = getBlockIndex(time);
+        if (index >= blockData.size() || isBlockAvailable(index)) return false;
+        
+        return ((ImaADPCMTransferTask) transferTask).fetch(index, getBlockIndex(FETCH_DISTANCE));
+    }
+    
+    /**
+     * Gets the number of bytes of the data for each second of audio, which
+     * is fixed by the block alignment
+     * @return the data rate in bytes per second
+     */
+    public double getDataRate() {
+        return (double) blockAlign * format.getSampleRate() / samplesPerBlock;
+    }
+    
+    /**
+     * Creates the transfer task for data transfer
+     * @return the transfer task to be used
      */
-    protected TransferThread getTransferThread() {
-        return new ImaADPCMTransferThread();
+    protected TransferTask getTransferTask() {
+        return new ImaADPCMTransferTask();
     }
     
     /**
-     * The transfer thread of the audio data.
+     * The transfer task of the audio data.
      */
-    protected class ImaADPCMTransferThread extends TransferThread {
+    protected class ImaADPCMTransferTask extends TransferTask {
         
         private long lastUpdatedTime = 0;
         
         /**
-         * Starts to transfer the ADPCM data
+         * The segments of blocks which have not been received, also used as the lock of the segments
+         */
+        private Vector segments = new Vector();
+        
+        /**
+         * The input streams of the extra connections
+         */
+        private Vector streams = new Vector();
+        
+        /**
+         * The index of the block requested by a seek, -1 if there is none
+         */
+        private volatile int fetchRequest = -1;
+        
+        /**
+         * The first exception which has stopped a connection, null if there is none
          */
-        public void run() {
-            super.run();
+        private volatile Exception failure = null;
+        
+        /**
+         * Transfers the ADPCM data. If more than one connection is allowed, the
+         * blocks are split into segments which are received in parallel, and a
+         * connection which has finished its segment takes over half of the
+         * largest remaining one. The blocks from a seek position are received
+         * first, followed by the blocks skipped by the seek.
+         * @throws java.lang.Exception the connections have failed before all blocks are received
+         */
+        protected void transfer() throws Exception {
+            int start = blockData.getAvailable();
+            int end = blockData.size();
+            Segment segment = new Segment(start, end);
+            segment.owned = true;
+            segments.add(segment);
+            
+            // Split the blocks evenly between the connections
+            int count = 1;
+            if (rangeSource != null) count = Math.max(1, Math.min(getMaximumConnections(), (end - start) / MIN_SEGMENT_BLOCKS));
+            Thread[] threads = new Thread[count - 1];
+            if (count > 1) {
+                synchronized (segments) {
+                    segment.end = start + (end - start) / count;
+                    for (int index = 1; index < count; index++)
+                        segments.add(new Segment(start + (int) ((long) (end - start) * index / count), (index < count - 1)? start + (int) ((long) (end - start) * (index + 1) / count) : end));
+                }
+                for (int index = 0; index < threads.length; index++) {
+                    threads[index] = getTransferScheduler().newThread(new Runnable() {
+                        public void run() {
+                            receiveSegments(null, false);
+                        }
+                    });
+                    threads[index].start();
+                }
+            }
+            
+            receiveSegments(segment, true);
+            for (int index = 0; index < threads.length; index++) {
+                try {
+                    threads[index].join();
+                } catch (InterruptedException e) {}
+            }
+            
+            // Receive the segments left by the failed connections
+            if (threads.length > 0 && inProgress) receiveSegments(null, true);
+            
+            // The blocks left unreceived cannot be read, so the transfer is not finished normally
+            if (inProgress && blockData.getAvailable() < blockData.size()) {
+                if (failure != null) throw failure;
+                throw new IOException("Failed to receive all blocks.");
+            }
+            
+            if (listener != null) listener.finish(ImaADPCMData.this, getAvailable());
+        }
+        
+        /**
+         * Receives the blocks of the segments using a connection. The main
+         * connection starts with the input stream of the transfer and handles
+         * the seek requests, and the other connections use range requests.
+         * @param segment the first segment, null to take one from the remaining segments
+         * @param main true for the main connection
+         */
+        private void receiveSegments(Segment segment, boolean main) {
+            InputStream stream = (segment != null)? in : null;
+            int position = (segment != null)? segment.next : -1;
+            int attempt = 0;
             
             try {
                 while (inProgress) {
-                    ImaADPCMBlock block = (ImaADPCMBlock) blockData.get(availableBlocks);
-                    block.receiveFromStream(in, out);
-                    availableBlocks++;
-                    
-                    if (listener != null) {
-                        long time = new Date().getTime();
-                        if (lastUpdatedTime == 0 || lastUpdatedTime + UPDATE_INTERVAL < time) {
-                            listener.received(ImaADPCMData.this, getAvailable());
-                            lastUpdatedTime = time;
+                    // Move to the seek position or the next segment
+                    Segment fetched = (main)? takeFetchRequest(segment) : null;
+                    int index;
+                    synchronized (segments) {
+                        if (fetched != null)
+                            segment = fetched;
+                        else if (segment == null || segment.next >= segment.end) {
+                            segment = nextSegment(segment);
+                            if (segment == null) break;
                         }
+                        index = segment.next;
+                    }
+                    if (stream == null || index != position) stream = openStream(stream, index, main);
+                    position = index;
+                    
+                    ImaADPCMBlock block = (ImaADPCMBlock) blockData.get(index);
+                    try {
+                        block.receiveFromStream(stream, out);
+                    } catch (IOException e) {
+                        if (!inProgress) break;
+                        
+                        // Move to the seek position, or resume from the last complete block
+                        if (main && fetchRequest >= 0)
+                            stream = null;
+                        else
+                            stream = resumeStream(stream, index, e, ++attempt, main);
+                        continue;
+                    }
+                    attempt = 0;
+                    position++;
+                    
+                    blockData.publish(index);
+                    synchronized (segments) {
+                        segment.next = index + 1;
                     }
+                    update();
                 }
-            } catch (Exception ex) {}
+            } catch (Exception e) {
+                if (inProgress && failure == null) failure = e;
+            }
             
-            if (listener != null) listener.finish(ImaADPCMData.this, getAvailable());
+            synchronized (segments) {
+                if (segment != null) segment.owned = false;
+            }
+            if (!main && stream != null) closeStream(stream);
+        }
+        
+        /**
+         * Takes the next segment, which is the first one without a connection,
+         * or half of the largest one if all segments have connections
+         * @param finished the segment finished by the connection, or null
+         * @return the segment, null if there is none
+         */
+        private Segment nextSegment(Segment finished) {
+            if (finished != null) segments.remove(finished);
+            
+            Segment first = null;
+            Segment largest = null;
+            for (int index = segments.size() - 1; index >= 0; index--) {
+                Segment segment = (Segment) segments.get(index);
+                if (!segment.owned && segment.next >= segment.end) {
+                    segments.remove(index);
+                    continue;
+                }
+                if (!segment.owned && (first == null || segment.next < first.next)) first = segment;
+                if (segment.owned && (largest == null || segment.end - segment.next > largest.end - largest.next)) largest = segment;
+            }
+            
+            if (first != null) {
+                first.owned = true;
+                return first;
+            }
+            if (rangeSource == null || largest == null || largest.end - largest.next < MIN_SEGMENT_BLOCKS * 2) return null;
+            
+            Segment segment = new Segment(largest.next + (largest.end - largest.next) / 2, largest.end);
+            segment.owned = true;
+            largest.end = segment.next;
+            segments.add(segment);
+            return segment;
+        }
+        
+        /**
+         * Requests a block to be received before the others, unless it will
+         * soon be received by one of the connections
+         * @param index the block index
+         * @param distance the number of blocks considered to be received soon
+         * @return true if the block is being fetched
+         */
+        protected boolean fetch(int index, int distance) {
+            synchronized (segments) {
+                for (Enumeration e = segments.elements(); e.hasMoreElements();) {
+                    Segment segment = (Segment) e.nextElement();
+                    if (segment.owned && index >= segment.next && index < segment.end && index - segment.next < distance) return false;
+                }
+            }
             
+            fetchRequest = index;
+            abortRead();
+            return true;
+        }
+        
+        /**
+         * Takes the block requested by a seek, splitting the segment holding
+         * it so that the main connection receives the blocks from it
+         * @param current the current segment of the main connection
+         * @return the segment from the requested block, null if there is no request
+         */
+        private Segment takeFetchRequest(Segment current) {
+            int index = fetchRequest;
+            if (index < 0) return null;
+            fetchRequest = -1;
+            
+            synchronized (segments) {
+                Segment target = null;
+                for (Enumeration e = segments.elements(); e.hasMoreElements();) {
+                    Segment segment = (Segment) e.nextElement();
+                    if (index >= segment.next && index < segment.end) target = segment;
+                }
+                if (target == null || isBlockAvailable(index)) return null;
+                
+                // The block is being received by another connection
+                if (target.owned && target != current && index == target.next) return null;
+                
+                Segment segment = target;
+                if (index != target.next || target.owned && target != current) {
+                    segment = new Segment(index, target.end);
+                    target.end = index;
+                    segments.add(segment);
+                }
+                if (current != null && current != segment) current.owned = false;
+                segment.owned = true;
+                return segment;
+            }
+        }
+        
+        /**
+         * Opens the stream of a connection from a block
+         * @param stream the previous stream of the connection, or null
+         * @param index the block index
+         * @param main true for the main connection
+         * @return the input stream
+         * @throws java.io.IOException failed to open the stream
+         */
+        private InputStream openStream(InputStream stream, int index, boolean main) throws IOException {
+            if (rangeSource == null) throw new IOException("Range request not supported.");
+            
+            if (!main && stream != null) closeStream(stream);
+            return useStream(new BufferedInputStream(rangeSource.open(dataOffset + (long) index * blockAlign)), main);
+        }
+        
+        /**
+         * Reopens the interrupted stream of a connection from the last complete block
+         * @param stream the interrupted stream
+         * @param index the block index
+         * @param cause the exception which has interrupted the stream
+         * @param attempt the number of the attempt, starting from 1
+         * @param main true for the main connection
+         * @return the input stream
+         * @throws java.io.IOException the stream cannot be resumed
+         */
+        private InputStream resumeStream(InputStream stream, int index, IOException cause, int attempt, boolean main) throws IOException {
+            if (!main) closeStream(stream);
+            return useStream(super.resumeStream(dataOffset + (long) index * blockAlign, cause, attempt), main);
+        }
+        
+        /**
+         * Uses a stream for a connection, which is the input stream of the
+         * transfer for the main connection
+         * @param stream the input stream
+         * @param main true for the main connection
+         * @return the counting input stream
+         */
+        private InputStream useStream(InputStream stream, boolean main) {
+            if (main) {
+                setInputStream(stream);
+                return in;
+            }
+            
+            stream = countStream(stream);
+            streams.add(stream);
+            
+            // The transfer may have been cancelled before the stream is added
+            if (!inProgress) closeStream(stream);
+            return stream;
+        }
+        
+        /**
+         * Closes the stream of an extra connection
+         * @param stream the input stream
+         */
+        private void closeStream(InputStream stream) {
+            streams.remove(stream);
             try {
-                if (out != null) out.close();
-            } catch (IOException ex) {}
+                stream.close();
+            } catch (IOException e) {}
+        }
+        
+        /**
+         * Updates the listener about the received data
+         */
+        private synchronized void update() {
+            if (listener != null) {
+                long time = new Date().getTime();
+                if (lastUpdatedTime == 0 || lastUpdatedTime + UPDATE_INTERVAL < time) {
+                    listener.received(ImaADPCMData.this, getAvailable());
+                    lastUpdatedTime = time;
+                }
+            }
+        }
+        
+        /**
+         * Cancels the transfer, closing the streams of all connections
+         */
+        public void cancel() {
+            super.cancel();
             
-            transferThread = null;
+            Object[] list = streams.toArray();
+            for (int index = 0; index < list.length; index++) closeStream((InputStream) list[index]);
+        }
+        
+    }
+    
+    /**
+     * This class stores a range of blocks to be received by a connection.
+     * The fields are guarded by the segment list of the transfer.
+     */
+    private static class Segment {
+        
+        /**
+         * The next block to be received
+         */
+        int next;
+        
+        /**
+         * The end of the blocks (exclusive)
+         */
+        int end;
+        
+        /**
+         * True if a connection is receiving the blocks
+         */
+        boolean owned = false;
+        
+        /**
+         * Creates a new instance of Segment
+         * @param next the first block
+         * @param end the end of the blocks (exclusive)
+         */
+        Segment(int next, int end) {
+            this.next = next;
+            this.end = end;
+        }
+        
+    }
+    
+    /**
+     * The task decoding a range of samples into a buffer, which is split by block range.
+     */
+    protected class DecodeTask extends RecursiveAction {
+        
+        private DecodeTask root;
+        private short[] buffer;
+        private int offset;
+        private int start;
+        private int end;
+        
+        /**
+         * The first exception thrown by the tasks
+         */
+        protected volatile Exception exception = null;
+        
+        /**
+         * Creates a new instance of DecodeTask
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer of the start sample
+         * @param start the start sample (inclusive)
+         * @param end the end sample (exclusive)
+         */
+        public DecodeTask(short[] buffer, int offset, int start, int end) {
+            this.root = this;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.start = start;
+            this.end = end;
+        }
+        
+        /**
+         * Decodes the range or splits it between two tasks
+         */
+        protected void compute() {
+            int startBlock = start / samplesPerBlock;
+            int endBlock = (end - 1) / samplesPerBlock + 1;
+            
+            if (endBlock - startBlock > PARALLEL_DECODE_BLOCKS) {
+                int middle = ((startBlock + endBlock) / 2) * samplesPerBlock;
+                DecodeTask first = new DecodeTask(buffer, offset, start, middle);
+                DecodeTask second = new DecodeTask(buffer, offset + middle - start, middle, end);
+                first.root = second.root = root;
+                invokeAll(first, second);
+                return;
+            }
+            
+            try {
+                int index = start;
+                while (index < end && root.exception == null) {
+                    ImaADPCMBlock block = (ImaADPCMBlock) blockData.get(index / samplesPerBlock);
+                    int blockStart = index % samplesPerBlock;
+                    int blockEnd = Math.min(samplesPerBlock, blockStart + end - index);
+                    block.decodeRange(blockStart, blockEnd, buffer, offset + index - start);
+                    index += blockEnd - blockStart;
+                }
+            } catch (Exception ex) {
+                root.exception = ex;
+            }
         }
         
     }
@@ -443,6 +1145,16 @@ public class ImaADPCMData extends BlockAudioData {
          */
         protected long cacheOffset = -1;
         
+        /**
+         * The states saved at the checkpoints, packed as (previous value << 8) | index
+         */
+        protected int[] checkpoints = null;
+        
+        /**
+         * The number of samples between the saved checkpoints
+         */
+        protected int checkpointSpacing = 0;
+        
         /**
          * Creates a new instance of ImaADPCMBlock
          * @param size the block size
@@ -475,6 +1187,15 @@ public class ImaADPCMData extends BlockAudioData {
          * @return the decoded sample
          */
         protected int decode(byte deltaCode) {
+            if (codeSize == DEFAULT_ADPCM_CODE_SIZE) {
+                int code = (state.index << 4) | (deltaCode & 0xF);
+                state.previousValue += diffTable[code];
+                if (state.previousValue > 32767) state.previousValue = 32767;
+                else if (state.previousValue < -32768) state.previousValue = -32768;
+                state.index = nextIndexTable[code];
+                return state.previousValue;
+            }
+            
             int step = stepsizeTable[state.index];
             
             // Construct difference
@@ -563,7 +1284,161 @@ public class ImaADPCMData extends BlockAudioData {
                 deltaCode = (byte) ((byteData >> 4) & 0xF);
             position++;
             
-            return decode(deltaCode);
+            int sample = decode(deltaCode);
+            saveCheckpoint();
+            return sample;
+        }
+        
+        /**
+         * Reads a set of samples from the block, decoding the delta codes in one pass
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer
+         * @param length the maximum number of samples to read
+         * @return the number of samples read
+         * @throws java.io.IOException failed to read the samples
+         * @throws gong.audio.AudioDataException invalid data/request
+         */
+        public synchronized int read(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+            return decodeSamples(buffer, offset, length);
+        }
+        
+        /**
+         * Decodes a set of samples from the current position
+         * @param buffer the sample buffer, or null if the samples are skipped
+         * @param offset the offset in the buffer
+         * @param length the maximum number of samples to decode
+         * @return the number of samples decoded
+         * @throws java.io.IOException failed to read the samples
+         * @throws gong.audio.AudioDataException invalid data/request
+         */
+        private int decodeSamples(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+            int count = 0;
+            if (length <= 0 || eob()) return count;
+            
+            if (position == 0) {
+                position = 1;
+                state = (ADPCMState) header.clone();
+                if (buffer != null) buffer[offset] = (short) state.previousValue;
+                count++;
+            }
+            
+            int end = Math.min(size, position + length - count);
+            if (position >= end) return count;
+            if (data == null && cacheOffset < 0) throw new AudioDataException("Invalid read request.");
+            
+            // Fetch the bytes covering the requested samples from the cache in one go
+            byte[] source = data;
+            int base = 0;
+            if (source == null) {
+                base = (position - 1) / 2;
+                source = new byte[(end - 2) / 2 - base + 1];
+                cacheInputStream.read(source, cacheOffset + base + 4);
+            }
+            
+            // Decode up to the next checkpoint at a time
+            while (position < end) {
+                int stop = end;
+                if (checkpointInterval > 0) stop = Math.min(end, (position / checkpointInterval + 1) * checkpointInterval);
+                
+                decodeNibbles(source, position - 1 - base * 2, stop - position, buffer, offset + count, state);
+                count += stop - position;
+                position = stop;
+                saveCheckpoint();
+            }
+            
+            return count;
+        }
+        
+        /**
+         * Writes a set of samples to the block, encoding them in one pass
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer
+         * @param length the number of samples to write
+         * @throws java.io.IOException failed to write the samples
+         * @throws gong.audio.AudioDataException invalid data/request
+         */
+        public synchronized void write(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+            if (length <= 0) return;
+            if (position + length > size) throw new AudioDataException("Invalid write request.");
+            
+            if (data == null) {
+                data = new byte[(size - 1) / 2];
+                Arrays.fill(data, (byte) 0);
+            }
+            
+            int end = offset + length;
+            if (position == 0) {
+                header.previousValue = buffer[offset++];
+                state = (ADPCMState) header.clone();
+                position = 1;
+                checkpoints = null;
+            }
+            
+            // Encode up to the next checkpoint at a time
+            while (offset < end) {
+                int count = end - offset;
+                if (checkpointInterval > 0) count = Math.min(count, (position / checkpointInterval + 1) * checkpointInterval - position);
+                
+                encodeNibbles(buffer, offset, count, data, position - 1, state);
+                offset += count;
+                position += count;
+                saveCheckpoint();
+            }
+        }
+        
+        /**
+         * Decodes part of the block without using the current state, so that
+         * several blocks can be decoded at the same time
+         * @param from the start position in the block (inclusive)
+         * @param to the end position in the block (exclusive)
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer
+         * @throws java.io.IOException failed to read the block data
+         * @throws gong.audio.AudioDataException invalid data/request
+         */
+        public void decodeRange(int from, int to, short[] buffer, int offset) throws IOException, AudioDataException {
+            if (from < 0 || to > size || from >= to) return;
+            
+            ADPCMState state = (ADPCMState) header.clone();
+            if (from == 0) {
+                buffer[offset++] = (short) state.previousValue;
+                if (++from >= to) return;
+            }
+            
+            byte[] source = data;
+            if (source == null) {
+                if (cacheOffset < 0) throw new AudioDataException("Invalid read request.");
+                source = new byte[(to - 2) / 2 + 1];
+                cacheInputStream.read(source, cacheOffset + 4);
+            }
+            
+            decodeNibbles(source, 0, from - 1, null, 0, state);
+            decodeNibbles(source, from - 1, to - from, buffer, offset, state);
+        }
+        
+        /**
+         * Decodes the whole block
+         * @param out the sample buffer, which must hold the samples of a block
+         * @return the number of samples decoded
+         * @throws java.io.IOException failed to read the block data
+         * @throws gong.audio.AudioDataException invalid data/request
+         */
+        public synchronized int decodeBlock(short[] out) throws IOException, AudioDataException {
+            reset();
+            return decodeSamples(out, 0, size);
+        }
+        
+        /**
+         * Encodes the whole block, replacing the existing block data
+         * @param in the sample buffer, which must hold the samples of a block
+         * @throws java.io.IOException failed to write the block data
+         * @throws gong.audio.AudioDataException invalid data/request
+         */
+        public synchronized void encodeBlock(short[] in) throws IOException, AudioDataException {
+            if (data == null) data = new byte[(size - 1) / 2];
+            else Arrays.fill(data, (byte) 0);
+            reset();
+            write(in, 0, size);
         }
         
         /**
@@ -584,6 +1459,7 @@ public class ImaADPCMData extends BlockAudioData {
                 header.previousValue = sample;
                 state = (ADPCMState) header.clone();
                 position = 1;
+                checkpoints = null;
             } else {
                 byte deltaCode = encode(sample);
                 
@@ -594,6 +1470,7 @@ public class ImaADPCMData extends BlockAudioData {
                 else
                     data[dataIndex] |= (byte) ((deltaCode << 4) & 0xF0);
                 position++;
+                saveCheckpoint();
             }
         }
         
@@ -613,15 +1490,47 @@ public class ImaADPCMData extends BlockAudioData {
                 return position;
             }
             
-            if (position < this.position) {
-                reset();
+            if (position < this.position) reset();
+            
+            // Resume from the nearest checkpoint if it is ahead of the current position
+            restoreCheckpoint(position);
+            decodeSamples(null, 0, position - this.position);
+            
+            return (this.position = position);
+        }
+        
+        /**
+         * Saves the current state if the current position is at a checkpoint
+         */
+        protected void saveCheckpoint() {
+            if (checkpointInterval <= 0 || position % checkpointInterval != 0) return;
+            
+            if (checkpoints == null || checkpointSpacing != checkpointInterval) {
+                checkpointSpacing = checkpointInterval;
+                checkpoints = new int[(size - 1) / checkpointSpacing + 1];
+                Arrays.fill(checkpoints, Integer.MIN_VALUE);
+            }
+            checkpoints[position / checkpointSpacing] = (state.previousValue << 8) | state.index;
+        }
+        
+        /**
+         * Restores the state of the nearest saved checkpoint between the
+         * current position and the given position
+         * @param position the position
+         * @return true if a checkpoint has been restored
+         */
+        protected boolean restoreCheckpoint(int position) {
+            if (checkpoints == null) return false;
+            
+            for (int index = position / checkpointSpacing; index > 0 && index * checkpointSpacing > this.position; index--) {
+                int checkpoint = checkpoints[index];
+                if (checkpoint == Integer.MIN_VALUE) continue;
                 
-                for (int index = 0; index < position; index++) read();
-                return (this.position = position);
-            } else {
-                for (int index = this.position; index < position; index++) read();
-                return (this.position = position);
+                state = new ADPCMState(checkpoint >> 8, checkpoint & 0xFF);
+                this.position = index * checkpointSpacing;
+                return true;
             }
+            return false;
         }
         
         /**
@@ -632,6 +1541,7 @@ public class ImaADPCMData extends BlockAudioData {
             
             header.index = 0;
             header.previousValue = 0;
+            checkpoints = null;
         }
         
         /**
@@ -656,6 +1566,10 @@ public class ImaADPCMData extends BlockAudioData {
             block.size = size;
             block.position = position;
             block.cacheOffset = cacheOffset;
+            if (checkpoints != null) {
+                block.checkpoints = (int[]) checkpoints.clone();
+                block.checkpointSpacing = checkpointSpacing;
+            }
             return block;
         }
         
@@ -699,19 +1613,24 @@ public class ImaADPCMData extends BlockAudioData {
             if (header.index == -1) throw new ConnectException("Connection error.");
             if (dataStream.read() == -1) throw new ConnectException("Connection error.");
             
+            checkpoints = null;
+            
             // data
             data = new byte[(size - 1) / 2];
             receiveByteArrayFromStream(dataStream, data, 0, data.length);
             
             if (cache != null && fout != null) {
-                cacheOffset = cacheSize;
-                
-                DataOutputStream out = new DataOutputStream(fout);
-                out.writeShort(swapShort((short) header.previousValue));
-                out.write(header.index);
-                out.write(0);
-                out.write(data, 0, data.length);
-                cacheSize += data.length + 4;
+                // The blocks may be received by several connections
+                synchronized (fout) {
+                    cacheOffset = cacheSize;
+                    
+                    DataOutputStream out = new DataOutputStream(fout);
+                    out.writeShort(swapShort((short) header.previousValue));
+                    out.write(header.index);
+                    out.write(0);
+                    out.write(data, 0, data.length);
+                    cacheSize += data.length + 4;
+                }
                 
                 data = null;
             }
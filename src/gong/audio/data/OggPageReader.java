@@ -0,0 +1,502 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio.data;
+
+import gong.audio.AudioDataException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import org.xiph.speex.OggCrc;
+
+/**
+ * This class reads the pages of an Ogg stream. Each page is read into a
+ * single buffer which is reused for the next page, and the packets of the
+ * page are given as slices of that buffer, so they must be used or copied
+ * before the next page is read.
+ * <p>
+ * The checksum of every page is verified. When resynchronisation is enabled,
+ * a corrupted page is skipped and reading continues at the next capture
+ * pattern; otherwise an exception is thrown.
+ * <p>
+ * A packet continued across pages is joined and returned as the first
+ * packet of the page where it ends, held in its own buffer, so that the
+ * packets of a page are the ones completed on it as counted by the granule
+ * position. A continued packet whose start has been lost, e.g. after a
+ * corrupted page, is skipped.
+ */
+public class OggPageReader {
+
+    /**
+     * Header type - none
+     */
+    public static final int NONE = 0;
+
+    /**
+     * Header type - continue
+     */
+    public static final int CONTINUE = 1;
+
+    /**
+     * Header type - begin of stream
+     */
+    public static final int BOS = 2;
+
+    /**
+     * Header type - end of stream
+     */
+    public static final int EOS = 4;
+
+    /**
+     * The size of the page header without the segment table
+     */
+    public static final int HEADER_SIZE = 27;
+
+    /**
+     * The maximum number of segments in a page
+     */
+    private static final int MAX_SEGMENTS = 255;
+
+    /**
+     * The initial size of the page buffer
+     */
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * The offset of the checksum in the page header
+     */
+    private static final int CHECKSUM_OFFSET = 22;
+
+    private InputStream stream;
+    private boolean resync = false;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int buffered = 0;
+    private int pageLength = 0;
+    private long position = 0;
+
+    private int headerType = NONE;
+    private long granulePos;
+    private int serial;
+    private int sequence;
+    private int checksum;
+    private int segments;
+
+    private int packets = 0;
+    private int[] packetOffsets = new int[MAX_SEGMENTS];
+    private int[] packetLengths = new int[MAX_SEGMENTS];
+    private boolean continued = false;
+
+    private byte[] joined = null;
+    private byte[] partial = new byte[INITIAL_BUFFER_SIZE];
+    private int partialLength = -1;
+    private int partialSequence;
+
+    private long corruptPages = 0;
+
+    /**
+     * Creates a new instance of OggPageReader
+     * @param stream the input stream
+     */
+    public OggPageReader(InputStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Gets the input stream of the pages
+     * @return the input stream
+     */
+    public InputStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Gets the offset in the stream of the end of the current page, which
+     * is the start of a page if the last page could not be read
+     * @return the byte offset
+     */
+    public long getPosition() {
+        return position - buffered + pageLength;
+    }
+
+    /**
+     * Sets the offset in the stream of the next byte to be read
+     * @param position the byte offset
+     */
+    public void setPosition(long position) {
+        this.position = position + buffered - pageLength;
+    }
+
+    /**
+     * Continues reading the pages from another stream, e.g. when a download
+     * is resumed from the end of the current page. A packet continued from
+     * the current page is kept to be joined with the next page.
+     * @param stream the input stream
+     * @param position the byte offset of the stream
+     */
+    public void setStream(InputStream stream, long position) {
+        this.stream = stream;
+        buffered = 0;
+        pageLength = 0;
+        this.position = position;
+    }
+
+    /**
+     * Sets whether a corrupted page is skipped instead of throwing an exception
+     * @param resync true to resynchronise on the next capture pattern
+     */
+    public void setResync(boolean resync) {
+        this.resync = resync;
+    }
+
+    /**
+     * Reads the next page from the stream
+     * @throws java.io.IOException failed to read from the stream
+     * @throws java.io.EOFException the end of the stream is reached
+     * @throws gong.audio.AudioDataException invalid page when resynchronisation is disabled
+     */
+    public void readPage() throws IOException, AudioDataException {
+        // Discard the previous page
+        discard(pageLength);
+        pageLength = 0;
+
+        // The bytes skipped until the next valid page are counted as one corrupted page
+        boolean skipping = false;
+        while (true) {
+            fill(4);
+            if (!isCapturePattern(0)) {
+                if (!resync) throw new AudioDataException("Invalid Ogg id ('OggS').");
+                if (!skipping) corruptPages++;
+                skipping = true;
+                discard(findCapturePattern(1));
+                continue;
+            }
+
+            fill(HEADER_SIZE);
+            if (buffer[4] != 0) {
+                if (!resync) throw new AudioDataException("Invalid Ogg version.");
+                if (!skipping) corruptPages++;
+                skipping = true;
+                discard(findCapturePattern(1));
+                continue;
+            }
+
+            int segments = buffer[26] & 0xff;
+            fill(HEADER_SIZE + segments);
+            int length = HEADER_SIZE + segments;
+            for (int index = 0; index < segments; index++) length += buffer[HEADER_SIZE + index] & 0xff;
+            fill(length);
+
+            if (!verifyChecksum(length)) {
+                if (!resync) throw new AudioDataException("Invalid Ogg page checksum.");
+                if (!skipping) corruptPages++;
+                skipping = true;
+                discard(findCapturePattern(1));
+                continue;
+            }
+
+            pageLength = length;
+            headerType = buffer[5] & 0xff;
+            granulePos = getInt(6) & 0xffffffffL | (long) getInt(10) << 32;
+            serial = getInt(14);
+            sequence = getInt(18);
+            checksum = getInt(CHECKSUM_OFFSET);
+            this.segments = segments;
+            splitPackets();
+            return;
+        }
+    }
+
+    /**
+     * Reads bytes from the stream, blocking until all of them are read
+     * @param buffer the byte array
+     * @param offset the offset
+     * @param length the length
+     * @throws java.io.IOException failed to read from the stream
+     * @throws java.io.EOFException the end of the stream is reached
+     */
+    protected void read(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = stream.read(buffer, offset, length);
+            if (count < 0) throw new EOFException("Unexpected end of file reached.");
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Makes sure the buffer holds the given number of bytes
+     * @param length the number of bytes
+     */
+    private void fill(int length) throws IOException {
+        if (buffered >= length) return;
+
+        if (length > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(length, buffer.length * 2)];
+            System.arraycopy(buffer, 0, newBuffer, 0, buffered);
+            buffer = newBuffer;
+        }
+        read(buffer, buffered, length - buffered);
+        position += length - buffered;
+        buffered = length;
+    }
+
+    /**
+     * Removes bytes from the start of the buffer
+     * @param length the number of bytes
+     */
+    private void discard(int length) {
+        if (length <= 0) return;
+        if (length < buffered) System.arraycopy(buffer, length, buffer, 0, buffered - length);
+        buffered = Math.max(0, buffered - length);
+    }
+
+    /**
+     * Checks whether the capture pattern is at the given offset of the buffer
+     * @param offset the offset
+     * @return true if the capture pattern is found
+     */
+    private boolean isCapturePattern(int offset) {
+        return (buffer[offset] == 'O' && buffer[offset + 1] == 'g' &&
+                buffer[offset + 2] == 'g' && buffer[offset + 3] == 'S');
+    }
+
+    /**
+     * Finds the next capture pattern in the buffer
+     * @param start the offset to start searching
+     * @return the offset of the capture pattern, or the number of bytes
+     *         which cannot be the start of it
+     */
+    private int findCapturePattern(int start) {
+        for (int offset = start; offset < buffered; offset++) {
+            if (buffer[offset] != 'O') continue;
+            if (offset + 4 > buffered || isCapturePattern(offset)) return offset;
+        }
+        return buffered;
+    }
+
+    /**
+     * Verifies the checksum of the page in the buffer
+     * @param length the length of the page
+     * @return true if the checksum is correct
+     */
+    private boolean verifyChecksum(int length) {
+        int expected = getInt(CHECKSUM_OFFSET);
+        for (int index = 0; index < 4; index++) buffer[CHECKSUM_OFFSET + index] = 0;
+        int actual = OggCrc.checksum(0, buffer, 0, length);
+        for (int index = 0; index < 4; index++) buffer[CHECKSUM_OFFSET + index] = (byte) (expected >>> (index * 8));
+        return (actual == expected);
+    }
+
+    /**
+     * Splits the body of the page into packets using the segment table,
+     * joining a packet continued from the previous page
+     */
+    private void splitPackets() {
+        packets = 0;
+        continued = false;
+        joined = null;
+
+        // A continued packet is lost if a page holding part of it is missing
+        boolean continuation = ((headerType & CONTINUE) != 0);
+        if (!continuation || sequence != partialSequence + 1) partialLength = -1;
+
+        int offset = HEADER_SIZE + segments;
+        int length = 0;
+        for (int index = 0; index < segments; index++) {
+            int size = buffer[HEADER_SIZE + index] & 0xff;
+            length += size;
+            if (size < 255) {
+                if (continuation) {
+                    // The end of the packet from the previous page
+                    if (partialLength >= 0) {
+                        joined = new byte[partialLength + length];
+                        System.arraycopy(partial, 0, joined, 0, partialLength);
+                        System.arraycopy(buffer, offset, joined, partialLength, length);
+                        packetOffsets[packets] = 0;
+                        packetLengths[packets] = joined.length;
+                        packets++;
+                    }
+                    partialLength = -1;
+                    continuation = false;
+                } else {
+                    packetOffsets[packets] = offset;
+                    packetLengths[packets] = length;
+                    packets++;
+                }
+                offset += length;
+                length = 0;
+            }
+        }
+        if (length > 0) {
+            // The packet continues on the next page
+            if (continuation) {
+                if (partialLength >= 0) addPartial(offset, length);
+            } else {
+                partialLength = 0;
+                addPartial(offset, length);
+            }
+            continued = true;
+        }
+    }
+
+    /**
+     * Adds part of the page body to the packet continued on the next page
+     * @param offset the offset of the part in the buffer
+     * @param length the length of the part
+     */
+    private void addPartial(int offset, int length) {
+        if (partialLength + length > partial.length) {
+            byte[] newPartial = new byte[Math.max(partialLength + length, partial.length * 2)];
+            System.arraycopy(partial, 0, newPartial, 0, partialLength);
+            partial = newPartial;
+        }
+        System.arraycopy(buffer, offset, partial, partialLength, length);
+        partialLength += length;
+        partialSequence = sequence;
+    }
+
+    /**
+     * Gets a little endian integer from the buffer
+     * @param offset the offset
+     * @return the integer
+     */
+    private int getInt(int offset) {
+        return (buffer[offset] & 0xff) |
+               (buffer[offset + 1] & 0xff) << 8 |
+               (buffer[offset + 2] & 0xff) << 16 |
+               (buffer[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Gets the buffer holding the current page
+     * @return the page buffer
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the offset of the page body in the buffer
+     * @return the offset of the body
+     */
+    public int getBodyOffset() {
+        return HEADER_SIZE + segments;
+    }
+
+    /**
+     * Gets the length of the page body
+     * @return the length of the body
+     */
+    public int getBodyLength() {
+        return pageLength - HEADER_SIZE - segments;
+    }
+
+    /**
+     * Gets the header type of the current page
+     * @return the header type
+     */
+    public int getHeaderType() {
+        return headerType;
+    }
+
+    /**
+     * Gets the granule position of the current page
+     * @return the granule position
+     */
+    public long getGranulePosition() {
+        return granulePos;
+    }
+
+    /**
+     * Gets the stream serial of the current page
+     * @return the stream serial
+     */
+    public int getSerial() {
+        return serial;
+    }
+
+    /**
+     * Gets the sequence number of the current page
+     * @return the sequence number
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the checksum of the current page
+     * @return the page checksum
+     */
+    public int getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Gets the number of packets in the current page
+     * @return the number of packets
+     */
+    public int getPacketCount() {
+        return packets;
+    }
+
+    /**
+     * Gets the buffer holding a packet, which is the page buffer unless the
+     * packet has been joined from the previous page
+     * @param index the packet index
+     * @return the buffer of the packet
+     */
+    public byte[] getPacketBuffer(int index) {
+        if (index == 0 && joined != null) return joined;
+        return buffer;
+    }
+
+    /**
+     * Gets the offset of a packet in its buffer
+     * @param index the packet index
+     * @return the offset of the packet
+     */
+    public int getPacketOffset(int index) {
+        return packetOffsets[index];
+    }
+
+    /**
+     * Gets the length of a packet
+     * @param index the packet index
+     * @return the length of the packet
+     */
+    public int getPacketLength(int index) {
+        return packetLengths[index];
+    }
+
+    /**
+     * Checks whether a packet of the page continues on the next page, which
+     * is not one of the packets of the page
+     * @return true if a packet is continued
+     */
+    public boolean isContinued() {
+        return continued;
+    }
+
+    /**
+     * Gets the number of corrupted pages skipped
+     * @return the number of corrupted pages
+     */
+    public long getCorruptPages() {
+        return corruptPages;
+    }
+
+}
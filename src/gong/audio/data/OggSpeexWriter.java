@@ -58,6 +58,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Random;
 import org.xiph.speex.AudioFileWriter;
 import org.xiph.speex.OggCrc;
@@ -77,8 +79,8 @@ public class OggSpeexWriter
   /** Number of packets in an Ogg page (must be less than 255) */
   public static final int PACKETS_PER_OGG_PAGE = 250;
   
-  /** The OutputStream */
-  private ByteArrayOutputStream out;
+  /** The OutputStream, which is either a byte array or the caller's stream */
+  private OutputStream out;
 
   /** Defines the encoder mode (0=NB, 1=WB and 2-UWB). */
   private int     mode;
@@ -111,6 +113,10 @@ public class OggSpeexWriter
    * (the number of audio samples from beginning of file to end of Ogg Packet).
    */
   private long    granulepos;
+  /** Absolute granule position of the last page written to the output */
+  private long    flushedGranulepos;
+  /** Number of bytes written to the output */
+  private long    bytesWritten;
   
   /**
    * Builds an Ogg Speex Writer. 
@@ -180,13 +186,15 @@ public class OggSpeexWriter
 
   /**
    * Closes the output file.
+   * The caller's stream or channel is flushed but left open.
    * @exception IOException if there was an exception closing the Audio Writer.
    */
   public void close()
     throws IOException 
   {
     flush(true);
-    out.close(); 
+    out.flush();
+    if (out instanceof ByteArrayOutputStream) out.close();
   }
   
   /**
@@ -196,8 +204,7 @@ public class OggSpeexWriter
   public void open(File file)
     throws IOException
   {
-    out = new ByteArrayOutputStream();
-    size = 0;   
+    open(new ByteArrayOutputStream());
   }
   
   /**
@@ -207,18 +214,81 @@ public class OggSpeexWriter
   public void open(String filename)
     throws IOException
   {
-    out = new ByteArrayOutputStream();
-    size = 0;   
+    open(new ByteArrayOutputStream());
   }
   
   /**
-   * Get the data from the byte array
+   * Open an output stream, to which each Ogg page is written as soon as
+   * it is filled.
+   * @param stream the output stream.
+   * @exception IOException if there was an exception opening the Audio Writer.
+   */
+  public void open(OutputStream stream)
+    throws IOException
+  {
+    out = stream;
+    size = 0;
+    dataBufferPtr     = 0;
+    headerBufferPtr   = 0;
+    pageCount         = 0;
+    packetCount       = 0;
+    granulepos        = 0;
+    flushedGranulepos = 0;
+    bytesWritten      = 0;
+  }
+  
+  /**
+   * Open an output channel, to which each Ogg page is written as soon as
+   * it is filled.
+   * @param channel the output channel.
    * @exception IOException if there was an exception opening the Audio Writer.
    */
+  public void open(WritableByteChannel channel)
+    throws IOException
+  {
+    open(Channels.newOutputStream(channel));
+  }
+  
+  /**
+   * Get the data from the byte array
+   * @return the data, or null if the writer is not writing to a byte array.
+   */
   public byte[] getData()
   {
-    if (out == null) return null;
-    return out.toByteArray();
+    if (!(out instanceof ByteArrayOutputStream)) return null;
+    return ((ByteArrayOutputStream) out).toByteArray();
+  }
+  
+  /**
+   * Gets the number of bytes written to the output.
+   * @return the number of bytes written.
+   */
+  public long getBytesWritten()
+  {
+    return bytesWritten;
+  }
+  
+  /**
+   * Gets the number of audio samples in the pages written to the output.
+   * @return the granule position of the last page written.
+   */
+  public long getFlushedGranulePosition()
+  {
+    return flushedGranulepos;
+  }
+  
+  /**
+   * Writes bytes to the output and counts them.
+   * @param data - the data.
+   * @param offset - the offset from which to start writing the data.
+   * @param len - the length of data to write.
+   * @exception IOException
+   */
+  private void write(final byte[] data, final int offset, final int len)
+    throws IOException
+  {
+    out.write(data, offset, len);
+    bytesWritten += len;
   }
 
   /**
@@ -240,8 +310,8 @@ public class OggSpeexWriter
     chksum = OggCrc.checksum(0, header, 0, header.length);
     chksum = OggCrc.checksum(chksum, data, 0, data.length);
     writeInt(header, 22, chksum);
-    out.write(header);
-    out.write(data);
+    write(header, 0, header.length);
+    write(data, 0, data.length);
     /* writes the OGG comment page */
     header = buildOggPageHeader(0, 0, streamSerialNumber, pageCount++, 1,
                                 new byte[] {(byte) (comment.length() + 8)});
@@ -249,8 +319,8 @@ public class OggSpeexWriter
     chksum = OggCrc.checksum(0, header, 0, header.length);
     chksum = OggCrc.checksum(chksum, data, 0, data.length);
     writeInt(header, 22, chksum);
-    out.write(header);
-    out.write(data);
+    write(header, 0, header.length);
+    write(data, 0, data.length);
   }
   
   /**
@@ -294,8 +364,9 @@ public class OggSpeexWriter
     chksum = OggCrc.checksum(0, header, 0, header.length);
     chksum = OggCrc.checksum(chksum, dataBuffer, 0, dataBufferPtr);
     writeInt(header, 22, chksum);
-    out.write(header);
-    out.write(dataBuffer, 0, dataBufferPtr);
+    write(header, 0, header.length);
+    write(dataBuffer, 0, dataBufferPtr);
+    flushedGranulepos = granulepos;
     dataBufferPtr   = 0;
     headerBufferPtr = 0;
     packetCount     = 0;
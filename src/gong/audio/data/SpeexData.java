@@ -17,6 +17,9 @@
 package gong.audio.data;
 
 import gong.audio.AudioDataException;
+import gong.audio.RangeSource;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
@@ -28,7 +31,8 @@ import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import javax.sound.sampled.AudioFormat;
 import org.xiph.speex.SpeexEncoder;
 import org.xiph.speex.SpeexDecoder;
@@ -64,11 +68,73 @@ public class SpeexData extends BlockAudioData {
     /** The Ogg writer for the Speex data */
     private OggSpeexWriter writer;
     
+    /** The Speex mode of the encoder */
+    private int mode = 0;
+    
+    /** Encoding with variable bit rate */
+    private boolean vbr = true;
+    
+    /** The Ogg writer for the data sent while it is being recorded */
+    private OggSpeexWriter progressiveWriter = null;
+    
+    /** The number of blocks sent by sendProgressiveToStream */
+    private int progressiveBlocks = 0;
+    
     /** The speex decoder for the blocks */
     private SpeexDecoder decoder = new SpeexDecoder();
     
-    /** The decoded block data */
-    private Hashtable decodedData = new Hashtable();
+    /** The reader of the Ogg pages being received */
+    private OggPageReader pageReader = null;
+    
+    /** The byte offset of the first audio page in the received stream */
+    private long dataOffset = 0;
+    
+    /** The granule position before the first block, Long.MIN_VALUE if it is not yet known */
+    private long granuleBase = Long.MIN_VALUE;
+    
+    /** The average number of bytes of the blocks received from the start, 0 if it is unknown */
+    private volatile double bytesPerBlock = 0;
+    
+    /**
+     * The distance in milliseconds after the blocks being received within
+     * which a seek position is not fetched with a range request
+     */
+    protected static final int FETCH_DISTANCE = 5000;
+    
+    /**
+     * The maximum number of range requests used to locate the page of a seek position
+     */
+    private static final int MAX_FETCH_PROBES = 8;
+    
+    /**
+     * The maximum number of blocks taken as lost between two pages read in order
+     */
+    private static final int MAX_LOST_BLOCKS = 3000;
+    
+    /**
+     * The time a seek waits for the transfer to add the blocks up to the seek position, in milliseconds
+     */
+    private static final int FETCH_TIMEOUT = 1000;
+    
+    /** The recently decoded frames of the blocks */
+    private FrameCache frameCache = new FrameCache();
+    
+    /**
+     * The time the encoding thread waits for a new block before it ends, in milliseconds
+     */
+    private static final int ENCODE_IDLE_TIMEOUT = 1000;
+    
+    /**
+     * The filled blocks waiting to be encoded, in the order they are filled.
+     * The backlog grows with the blocks, so a write never waits for the encoder.
+     */
+    private ConcurrentLinkedQueue encodeBacklog = new ConcurrentLinkedQueue();
+    
+    /** The thread encoding the queued blocks */
+    private Thread encodeThread = null;
+    
+    /** True while the encoding thread is encoding a block taken from the backlog */
+    private boolean encoding = false;
     
     /**
      * The number of bytes written to the cache
@@ -107,6 +173,8 @@ public class SpeexData extends BlockAudioData {
         samplesPerBlock = encoder.getFrameSize();
         
         writer = new OggSpeexWriter(mode, (int) format.getSampleRate(), format.getChannels(), 1, vbr);
+        this.mode = mode;
+        this.vbr = vbr;
     }
     
     /**
@@ -139,12 +207,181 @@ public class SpeexData extends BlockAudioData {
      * @throws gong.audio.AudioDataException Invalid request
      */
     public void close() throws IOException, AudioDataException {
+        flushEncoding();
         for (Enumeration en = blockData.elements(); en.hasMoreElements();) {
             SpeexBlock block = (SpeexBlock) en.nextElement();
             if (block.getData() == null) block.encodeData();
         }
+        super.close();
     }
 
+    /**
+     * Writes a sample to the audio data
+     * @param sample the sample to write
+     * @throws java.io.IOException failed to write sample
+     * @throws gong.audio.AudioDataException Invalid data/request
+     */
+    public void write(int sample) throws IOException, AudioDataException {
+        super.write(sample);
+        startEncoding();
+    }
+    
+    /**
+     * Writes a block of samples to the audio data
+     * @param buffer the sample buffer
+     * @param offset the offset in the buffer
+     * @param length the length of the samples to be written
+     * @throws java.io.IOException failed to write sample
+     * @throws gong.audio.AudioDataException Invalid data/request
+     */
+    public void write(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+        super.write(buffer, offset, length);
+        startEncoding();
+    }
+    
+    /**
+     * Adds a filled block to the backlog of the encoding thread. The block
+     * is added without waiting, as the locks of the data and the block are held.
+     * @param block the filled block
+     */
+    protected void queueEncoding(SpeexBlock block) {
+        encodeBacklog.offer(block);
+    }
+    
+    /**
+     * Wakes the encoding thread for the queued blocks, starting it if it has
+     * ended, after the locks of the data and the blocks have been released
+     */
+    private void startEncoding() {
+        synchronized (encodeBacklog) {
+            if (encodeBacklog.isEmpty()) return;
+            
+            if (encodeThread == null) {
+                encodeThread = new EncodeThread();
+                encodeThread.start();
+            }
+            else encodeBacklog.notifyAll();
+        }
+    }
+    
+    /**
+     * Waits until all queued blocks have been encoded. The wait is not ended
+     * by an interrupt, since the blocks left in the backlog must not be
+     * encoded out of order.
+     */
+    public void flushEncoding() {
+        boolean interrupted = false;
+        
+        startEncoding();
+        synchronized (encodeBacklog) {
+            while (encoding || !encodeBacklog.isEmpty()) {
+                try {
+                    encodeBacklog.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+    
+    /**
+     * The thread encoding the filled blocks one by one, so that the encoder
+     * state follows the order of the blocks.
+     */
+    private class EncodeThread extends Thread {
+        
+        /**
+         * Creates a new instance of EncodeThread
+         */
+        public EncodeThread() {
+            super("SpeexEncode");
+            setDaemon(true);
+        }
+        
+        /**
+         * Encodes the queued blocks until the backlog has been idle for a while
+         */
+        public void run() {
+            while (true) {
+                SpeexBlock block;
+                synchronized (encodeBacklog) {
+                    block = (SpeexBlock) encodeBacklog.poll();
+                    if (block == null) {
+                        encoding = false;
+                        encodeBacklog.notifyAll();
+                        
+                        try {
+                            encodeBacklog.wait(ENCODE_IDLE_TIMEOUT);
+                        } catch (InterruptedException e) {}
+                        
+                        block = (SpeexBlock) encodeBacklog.poll();
+                        if (block == null) {
+                            encodeThread = null;
+                            return;
+                        }
+                    }
+                    encoding = true;
+                }
+                
+                try {
+                    block.encodeData();
+                } catch (Throwable t) {}
+            }
+        }
+        
+    }
+    
+    /**
+     * Gets the cache of the decoded frames
+     * @return the frame cache
+     */
+    public FrameCache getFrameCache() {
+        return frameCache;
+    }
+    
+    /**
+     * Sets the number of decoded frames kept in memory
+     * @param size the number of frames, 0 to disable the frame cache
+     */
+    public void setFrameCacheSize(int size) {
+        frameCache.setCapacity(size);
+    }
+    
+    /**
+     * Deletes part of the blocks of the audio data
+     * @param start the start index (inclusive)
+     * @param end the end index (exclusive)
+     * @return the deleted audio data
+     */
+    public synchronized BlockAudioData delete(int start, int end) {
+        SpeexData deletedData = (SpeexData) super.delete(start, end);
+        deletedData.reindexBlocks();
+        reindexBlocks();
+        return deletedData;
+    }
+    
+    /**
+     * Inserts blocks into the audio data
+     * @param audioData the data to be inserted
+     * @param start the start index
+     */
+    public synchronized void insert(BlockAudioData audioData, int start) {
+        super.insert(audioData, start);
+        reindexBlocks();
+    }
+    
+    /**
+     * Updates the indices of the blocks after the blocks have been rearranged
+     */
+    protected void reindexBlocks() {
+        for (int index = 0; index < blockData.size(); index++) {
+            ((SpeexBlock) blockData.get(index)).index = index;
+        }
+        frameCache.clear();
+    }
+    
     /**
      * Checks whether a feature is supported
      * @param feature the feature to be tested
@@ -155,6 +392,8 @@ public class SpeexData extends BlockAudioData {
             return true;
         if (feature.equals(FEATURE_RECEIVED_PROGRESS))
             return false;
+        if (feature.equals(FEATURE_PROGRESSIVE_SEND))
+            return true;
         return false;
     }
     
@@ -166,7 +405,7 @@ public class SpeexData extends BlockAudioData {
         long size = 0;
         for (Enumeration en = blockData.elements(); en.hasMoreElements();) {
             SpeexBlock block = (SpeexBlock) en.nextElement();
-            if (block.getData() != null) size += block.getData().length;
+            if (block.getData() != null) size += block.dataLength;
         }
         return size;
     }
@@ -176,13 +415,17 @@ public class SpeexData extends BlockAudioData {
      * @return the cloned audio data
      */
     public synchronized Object clone() {
+        flushEncoding();
+        
         SpeexData audioData = new SpeexData(format);
         for (Enumeration en = blockData.elements(); en.hasMoreElements();) {
             audioData.blockData.add(((SpeexBlock) en.nextElement()).clone());
         }
+        audioData.reindexBlocks();
+        audioData.frameCache.setCapacity(frameCache.getCapacity());
         audioData.framesPerPacket = framesPerPacket;
         audioData.samplesPerBlock = samplesPerBlock;
-        audioData.availableBlocks = availableBlocks;
+        audioData.blockData.setAvailable(blockData.getAvailable());
         audioData.decoder = decoder;
         audioData.encoder = encoder;
         
@@ -204,16 +447,28 @@ public class SpeexData extends BlockAudioData {
      * @throws gong.audio.AudioDataException invalid data/request
      */
     private void sendDataToOggWriter(OggSpeexWriter writer) throws IOException, AudioDataException {
-        int blockSent = 0;
+        long samplesSent = 0;
         for (Enumeration en = blockData.elements(); en.hasMoreElements();) {
             SpeexBlock block = (SpeexBlock) en.nextElement();
             block.sendToOggWriter(writer);
 
-            blockSent++;
-            if (listener != null) listener.sent(this, getBlockTime(blockSent));
+            // Report the progress when a page has been written to the stream
+            if (writer.getFlushedGranulePosition() != samplesSent) {
+                samplesSent = writer.getFlushedGranulePosition();
+                if (listener != null) listener.sent(this, getSampleTime(samplesSent));
+            }
         }
     }
     
+    /**
+     * Gets the media time of a number of samples
+     * @param samples the number of samples
+     * @return the media time
+     */
+    private long getSampleTime(long samples) {
+        return (long) ((double) samples / format.getSampleRate() * 1000D);
+    }
+    
     /**
      * Sends the audio data to the output stream
      * @param stream the output stream
@@ -221,42 +476,56 @@ public class SpeexData extends BlockAudioData {
      * @throws gong.audio.AudioDataException invalid audio data/request
      */
     public synchronized void sendToStream(OutputStream stream) throws IOException, AudioDataException {
-        writer.open("");
+        flushEncoding();
+        writer.open(stream);
             
         sendHeaderToOggWriter(writer);
         sendDataToOggWriter(writer);
             
         writer.close();
-        byte[] buffer = writer.getData();
-        stream.write(writer.getData());
+        if (listener != null) listener.sent(this, getSampleTime(writer.getFlushedGranulePosition()));
     }
     
     /**
-     * Receives the Ogg header from the input stream
-     * @param stream the input stream
-     * @return the Ogg header
-     * @throws java.io.IOException failed to receive Ogg header from stream
+     * Sends the blocks encoded since the previous call to the output stream,
+     * which receives an Ogg page whenever the page is full. When the
+     * recording has finished the remaining blocks are sent in the last page,
+     * which ends the stream.
+     * @param stream the output stream
+     * @param finished true if the recording has finished
+     * @throws java.io.IOException failed to send data to stream
      * @throws gong.audio.AudioDataException invalid audio data/request
      */
-    protected OggHeader receiveOggHeaderFromStream(InputStream stream) throws IOException, AudioDataException {
-        DataInputStream dataStream = new DataInputStream(stream);
-        byte[] buffer = new byte[4];
-        OggHeader header = new OggHeader();
-        
-        receiveByteArrayFromStream(dataStream, buffer, 0, 4);       // Ogg Id
-        if (!(new String(buffer, 0, 4).equals("OggS"))) throw new AudioDataException("Invalid Ogg id ('OggS').");
-        dataStream.read();                                          // Capture Pattern
-        
-        header.headerType = dataStream.read();                      // Header Type
-        header.granulePos = swapLong(dataStream.readLong());        // Granule Position
-        header.serial = swapInt(dataStream.readInt());              // Serial Number
-        header.sequence = swapInt(dataStream.readInt());            // Page Sequence Number
-        header.checksum = swapInt(dataStream.readInt());            // Page Checksum
-        header.segments = dataStream.read();                        // Page Segments
-        header.segmentSize = new byte[header.segments];             // Segment Size
-        receiveByteArrayFromStream(dataStream, header.segmentSize, 0, header.segments);
-
-        return header;
+    public synchronized void sendProgressiveToStream(OutputStream stream, boolean finished) throws IOException, AudioDataException {
+        if (progressiveWriter == null) {
+            progressiveWriter = new OggSpeexWriter(mode, (int) format.getSampleRate(), format.getChannels(), 1, vbr);
+            progressiveWriter.open(stream);
+            sendHeaderToOggWriter(progressiveWriter);
+        }
+        if (finished) flushEncoding();
+        
+        // The blocks are encoded in order, so stop at the first one still being encoded
+        while (progressiveBlocks < blockData.size()) {
+            SpeexBlock block = (SpeexBlock) blockData.get(progressiveBlocks);
+            if (!finished && !block.isEncoded()) break;
+            block.sendToOggWriter(progressiveWriter);
+            progressiveBlocks++;
+        }
+        
+        if (finished) progressiveWriter.close();
+    }
+    
+    /**
+     * Creates the Ogg page reader for the input stream, which reads with timeout
+     * @param stream the input stream
+     * @return the Ogg page reader
+     */
+    protected OggPageReader createPageReader(InputStream stream) {
+        return new OggPageReader(stream) {
+            protected void read(byte[] buffer, int offset, int length) throws IOException {
+                receiveByteArrayFromStream(getStream(), buffer, offset, length);
+            }
+        };
     }
     
     /** Checks the speex mode
@@ -323,23 +592,161 @@ public class SpeexData extends BlockAudioData {
      * @throws gong.audio.AudioDataException invalid data/request
      */
     public void receiveHeaderFromStream(InputStream stream) throws IOException, AudioDataException {
-        OggHeader oggHeader;
+        pageReader = createPageReader(stream);
         
         // Read the first header
-        oggHeader = receiveOggHeaderFromStream(stream);
-        if (oggHeader.headerType != OggHeader.BOS) throw new AudioDataException("Invalid header.");
-        //if (oggHeader.sequence != 0) throw new AudioDataException("Invalid header.");
-        if (oggHeader.segments != 1) throw new AudioDataException("Invalid header.");
-        if (oggHeader.segmentSize[0] != 80) throw new AudioDataException("Invalid header.");
-        receiveSpeexHeaderFromStream(stream);
+        pageReader.readPage();
+        if (pageReader.getHeaderType() != OggPageReader.BOS) throw new AudioDataException("Invalid header.");
+        //if (pageReader.getSequence() != 0) throw new AudioDataException("Invalid header.");
+        if (pageReader.getPacketCount() != 1) throw new AudioDataException("Invalid header.");
+        if (pageReader.getPacketLength(0) != 80) throw new AudioDataException("Invalid header.");
+        receiveSpeexHeaderFromStream(new ByteArrayInputStream(pageReader.getPacketBuffer(0), pageReader.getPacketOffset(0), 80));
         
         // Read the comment header
-        oggHeader = receiveOggHeaderFromStream(stream);
-        if (oggHeader.headerType != OggHeader.NONE) throw new AudioDataException("Invalid header.");
-        //if (oggHeader.sequence != 1) throw new AudioDataException("Invalid header.");
-        if (oggHeader.segments != 1) throw new AudioDataException("Invalid header.");
-        byte[] buffer = new byte[oggHeader.segmentSize[0]];
-        receiveByteArrayFromStream(stream, buffer, 0, oggHeader.segmentSize[0]);
+        pageReader.readPage();
+        if (pageReader.getHeaderType() != OggPageReader.NONE) throw new AudioDataException("Invalid header.");
+        //if (pageReader.getSequence() != 1) throw new AudioDataException("Invalid header.");
+        if (pageReader.getPacketCount() != 1) throw new AudioDataException("Invalid header.");
+        
+        // Skip corrupted pages in the audio data
+        pageReader.setResync(true);
+        dataOffset = pageReader.getPosition();
+    }
+    
+    /**
+     * Gets the Ogg page reader of the input stream, which is created when the header is received
+     * @param stream the input stream
+     * @return the Ogg page reader
+     */
+    private OggPageReader getPageReader(InputStream stream) {
+        if (pageReader == null || pageReader.getStream() != stream) openPageReader(stream, dataOffset);
+        return pageReader;
+    }
+    
+    /**
+     * Creates the Ogg page reader of the audio data in an input stream
+     * @param stream the input stream
+     * @param position the byte offset of the stream in the file
+     * @return the Ogg page reader
+     */
+    private OggPageReader openPageReader(InputStream stream, long position) {
+        pageReader = createPageReader(stream);
+        pageReader.setResync(true);
+        pageReader.setPosition(position);
+        return pageReader;
+    }
+    
+    /**
+     * Gets the index of the block of the first packet completed on a page
+     * from the granule position of the page
+     * @param reader the Ogg page reader holding the page
+     * @return the block index, -1 if it is unknown
+     */
+    private int getGranuleBlock(OggPageReader reader) {
+        long granule = reader.getGranulePosition();
+        int packets = reader.getPacketCount();
+        if (granuleBase == Long.MIN_VALUE || granule < 0 || packets == 0) return -1;
+        
+        long index = (granule - granuleBase) / samplesPerBlock - packets;
+        if (index < 0 || index > Integer.MAX_VALUE / 2) return -1;
+        return (int) index;
+    }
+    
+    /**
+     * Gets the index of the block of the first packet of a page. A page read
+     * after another one follows its blocks, unless the granule position shows
+     * that the blocks of a lost page are in between. The first page read
+     * from the start gives the granule position of the blocks.
+     * @param reader the Ogg page reader holding the page
+     * @param expected the block following the previous page, -1 if the page
+     *        has been located by a seek
+     * @return the block index
+     */
+    private int getFirstBlock(OggPageReader reader, int expected) {
+        if (expected < 0) return getGranuleBlock(reader);
+        
+        long granule = reader.getGranulePosition();
+        int packets = reader.getPacketCount();
+        if (granuleBase == Long.MIN_VALUE && granule >= 0 && packets > 0) granuleBase = granule - (long) (expected + packets) * samplesPerBlock;
+        
+        int first = getGranuleBlock(reader);
+        if (first < expected || first > expected + MAX_LOST_BLOCKS) return expected;
+        return first;
+    }
+    
+    /**
+     * Adds empty blocks to be received later up to the given number of blocks
+     * @param size the number of blocks
+     */
+    private void addBlocks(int size) {
+        while (blockData.size() < size) blockData.add(new SpeexBlock(samplesPerBlock));
+    }
+    
+    /**
+     * Marks the blocks of a lost page as available, which are decoded by
+     * packet loss concealment
+     * @param start the start index (inclusive)
+     * @param end the end index (exclusive)
+     */
+    private void markLost(int start, int end) {
+        if (start < 0) return;
+        
+        addBlocks(end);
+        for (int index = start; index < end; index++) {
+            if (isBlockAvailable(index)) continue;
+            ((SpeexBlock) blockData.get(index)).setLost();
+            blockData.publish(index);
+        }
+    }
+    
+    /**
+     * Receives the packets of an Ogg page into their blocks, which are added
+     * if they do not exist. A block which has been received already is kept.
+     * @param reader the Ogg page reader holding the page
+     * @param fout the file output stream
+     * @param first the index of the block of the first packet
+     * @return the number of blocks received
+     * @throws java.io.IOException failed to write to the file output stream
+     */
+    private int receivePage(OggPageReader reader, OutputStream fout, int first) throws IOException {
+        byte[] buffer = reader.getBuffer();
+        
+        // The blocks of the page share a single copy of the page body
+        byte[] body = null;
+        int bodyOffset = reader.getBodyOffset();
+        if (fout == null) {
+            body = new byte[reader.getBodyLength()];
+            System.arraycopy(buffer, bodyOffset, body, 0, body.length);
+        }
+        
+        int packets = reader.getPacketCount();
+        int received = 0;
+        for (int index = 0; index < packets; index++) {
+            if (isBlockAvailable(first + index)) continue;
+            
+            byte[] packet = reader.getPacketBuffer(index);
+            int offset = reader.getPacketOffset(index);
+            int length = reader.getPacketLength(index);
+            
+            addBlocks(first + index + 1);
+            SpeexBlock block = (SpeexBlock) blockData.get(first + index);
+            if (fout == null) {
+                // A packet joined from the previous page is not in the page body
+                if (packet == buffer)
+                    block.shareEncodedData(body, offset - bodyOffset, length);
+                else
+                    block.shareEncodedData(packet, offset, length);
+            } else {
+                fout.write(packet, offset, length);
+                block.setCache(cacheSize, length);
+                cacheSize += length;
+            }
+            
+            blockData.publish(first + index);
+            received++;
+        }
+        
+        return received;
     }
     
     /**
@@ -351,52 +758,43 @@ public class SpeexData extends BlockAudioData {
      * @throws gong.audio.AudioDataException invalid data/request
      */
     public void receiveDataFromStream(InputStream stream, OutputStream fout, boolean synchronous) throws IOException, AudioDataException {
-        OggHeader oggHeader = new OggHeader();
-        
         if (synchronous) {
+            OggPageReader reader = getPageReader(stream);
+            int expected = blockData.size();
+            int attempt = 0;
+            
             try {
-                while (oggHeader.headerType != OggHeader.EOS) {
-                    // Read the page header
-                    oggHeader = receiveOggHeaderFromStream(stream);
-                    if (oggHeader.headerType != OggHeader.NONE && oggHeader.headerType != OggHeader.EOS) throw new AudioDataException("Invalid header.");
-
-                    int length = 0;
-                    for (int index = 0; index < oggHeader.segments; index++) length += oggHeader.segmentSize[index];
-                    byte[] buffer = new byte[length];
-                    receiveByteArrayFromStream(stream, buffer, 0, length);
-                    
-                    int offset = 0;
-                    for (int index = 0; index < oggHeader.segments; index++) {
-                        SpeexBlock block = new SpeexBlock(samplesPerBlock);
-                        if (fout == null)
-                            block.setEncodedData(buffer, offset, oggHeader.segmentSize[index]);
-                        else {
-                            fout.write(buffer, offset, oggHeader.segmentSize[index]);
-                            block.setCache(cacheSize, oggHeader.segmentSize[index]);
-                            cacheSize += oggHeader.segmentSize[index];
-                        }
-                        offset += oggHeader.segmentSize[index];
-
-                        blockData.add(block);
-                        availableBlocks++;
-                        
-                        if (listener != null) listener.received(this, getAvailable());
+                while (true) {
+                    // Read the page, resuming from the last complete page
+                    try {
+                        reader.readPage();
+                    } catch (IOException e) {
+                        long position = reader.getPosition();
+                        reader.setStream(resumeStream(position, e, ++attempt), position);
+                        continue;
                     }
+                    attempt = 0;
+                    int headerType = reader.getHeaderType() & ~OggPageReader.CONTINUE;
+                    if (headerType != OggPageReader.NONE && headerType != OggPageReader.EOS) throw new AudioDataException("Invalid header.");
+                    
+                    int first = getFirstBlock(reader, expected);
+                    markLost(expected, first);
+                    if (receivePage(reader, fout, first) > 0 && listener != null) listener.received(this, getAvailable());
+                    expected = first + reader.getPacketCount();
+                    
+                    if ((headerType & OggPageReader.EOS) != 0) break;
                 }
             } catch (EOFException e) {
                 // Only throw exception when nothing has been read; otherwise assume the EOS page has been omitted
-                if (availableBlocks == 0) throw new AudioDataException("Invalid audio data.");
+                if (blockData.getAvailable() == 0) throw new AudioDataException("Invalid audio data.");
             } catch (Exception e) {
                 throw new AudioDataException("Invalid audio data.");
             }
             
             // Do not check for EOS packet as some files omit the flagging of the last Ogg page
-            //if (oggHeader.headerType != OggHeader.EOS) throw new AudioDataException("Invalid audio data.");
+            //if (reader.getHeaderType() != OggPageReader.EOS) throw new AudioDataException("Invalid audio data.");
         } else {
-            if (transferThread == null) {
-                transferThread = getTransferThread();
-                transferThread.start(stream, fout);
-            }
+            startTransfer(stream, fout);
         }
     }
     
@@ -416,145 +814,365 @@ public class SpeexData extends BlockAudioData {
     }
     
     /**
-     * Creates the transfer thread for data transfer
-     * @return the transfer thread to be used
+     * Creates the transfer task for data transfer
+     * @return the transfer task to be used
      */
-    protected TransferThread getTransferThread() {
-        return new SpeexTransferThread();
+    protected TransferTask getTransferTask() {
+        return new SpeexTransferTask();
     }
     
     /**
-     * Checks whether the current transfer buffer is filled
-     * @param rate the current playback rate
-     * @return true if the transfer buffer is filled
+     * Gets the duration of the data when it has been fully received. The
+     * blocks are created as the pages are received, so the duration is
+     * estimated from the length of the file if it is known.
+     * @return the duration in milliseconds, -1 if it is unknown
      */
-    public synchronized boolean isTransferBuffered(float rate) {
-        if (!isAvailable()) return false;
-        if (!isTransferInProgress()) return true;
+    public long getExpectedDuration() {
+        if (!isTransferInProgress()) return getDuration();
+        
+        int blocks = getEstimatedBlocks();
+        if (blocks < 0) return -1;
+        return Math.max(getDuration(), (long) ((double) blocks * samplesPerBlock / format.getSampleRate() * 1000D));
+    }
+    
+    /**
+     * Estimates the number of blocks of the data from the length of the file
+     * and the size of the blocks received from the start
+     * @return the number of blocks, -1 if it is unknown
+     */
+    private int getEstimatedBlocks() {
+        RangeSource source = rangeSource;
+        double size = bytesPerBlock;
+        if (source == null || source.getLength() <= 0 || size <= 0) return -1;
+        return Math.max(blockData.size(), (int) ((source.getLength() - dataOffset) / size));
+    }
+    
+    /**
+     * Requests the blocks from the given media time to be downloaded before
+     * the blocks in front of it. The page of the time is located from the
+     * granule positions of the pages, and the blocks skipped by the seek are
+     * received afterwards. The blocks up to the time are added before this
+     * returns, so that the time can be set.
+     * @param time the media time
+     * @return true if the data is being fetched from the time
+     */
+    public synchronized boolean fetch(long time) {
+        if (rangeSource == null || !isFetchEnabled() || !(transferTask instanceof SpeexTransferTask)) return false;
+        
+        int index = (int) ((double) time / 1000D * format.getSampleRate()) / samplesPerBlock;
+        if (index < 0 || isBlockAvailable(index)) return false;
+        
+        SpeexTransferTask task = (SpeexTransferTask) transferTask;
+        if (!task.fetch(index)) return false;
         
-        return (getAvailable() - getTime()) * rate >= 30000;
+        long end = new Date().getTime() + FETCH_TIMEOUT;
+        while (task.isFetchPending() && transferTask == task) {
+            long delay = end - new Date().getTime();
+            if (delay <= 0) break;
+            try {
+                wait(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return true;
     }
     
     /**
-     * The transfer thread for speex data.
+     * The transfer task for speex data. The pages are received in order
+     * until a seek fetches the page of the seek position with a range request,
+     * after which the blocks skipped by the seek are received from the end
+     * of the received page before them.
      */
-    protected class SpeexTransferThread extends TransferThread {
+    protected class SpeexTransferTask extends TransferTask {
         
         private long lastUpdatedTime = 0;
         
         /**
-         * Starts the transfer of the speex data
+         * The index of the received pages, each holding the start and end
+         * offsets of the page and the first and end indices of its blocks
          */
-        public void run() {
-            super.run();
-
-            OggHeader oggHeader;
+        private Vector pages = new Vector();
+        
+        /**
+         * The block of a seek position to be fetched, -1 if there is no request
+         */
+        private volatile int fetchRequest = -1;
+        
+        /**
+         * The block following the last page, -1 if the current page has been located by a seek
+         */
+        private volatile int expected = -1;
+        
+        /**
+         * True while the pages are received in order from the start
+         */
+        private boolean inOrder = true;
+        
+        /**
+         * True if the end of the data has been received
+         */
+        private boolean ended = false;
+        
+        /**
+         * The offset from which the blocks skipped by a seek were last received
+         */
+        private long lastResume = -1;
+        
+        /**
+         * Transfers the speex data
+         */
+        protected void transfer() {
+            OggPageReader reader = getPageReader(in);
+            boolean located = false;
+            int attempt = 0;
+            expected = blockData.size();
             
             try {
                 while (inProgress) {
-                    // Read the page header
-                    oggHeader = receiveOggHeaderFromStream(in);
-                    if (oggHeader.headerType != OggHeader.NONE && oggHeader.headerType != OggHeader.EOS) break;
-                    
-                    int length = 0;
-                    for (int index = 0; index < oggHeader.segments; index++) length += oggHeader.segmentSize[index];
-                    byte[] buffer = new byte[length];
-                    receiveByteArrayFromStream(in, buffer, 0, length);
-
-                    int offset = 0;
-                    for (int index = 0; index < oggHeader.segments; index++) {
-                        SpeexBlock block = new SpeexBlock(samplesPerBlock);
-                        if (out == null)
-                            block.setEncodedData(buffer, offset, oggHeader.segmentSize[index]);
-                        else {
-                            out.write(buffer, offset, oggHeader.segmentSize[index]);
-                            block.setCache(cacheSize, oggHeader.segmentSize[index]);
-                            cacheSize += oggHeader.segmentSize[index];
+                    // Move to the page of a seek position
+                    if (fetchRequest >= 0) {
+                        OggPageReader found = locatePage(fetchRequest);
+                        if (found != null) {
+                            reader = found;
+                            located = (expected < 0);
                         }
-                        offset += oggHeader.segmentSize[index];
-
-                        blockData.add(block);
-                        availableBlocks++;
-                        
-                        if (listener != null) {
-                            long time = new Date().getTime();
-                            if (lastUpdatedTime == 0 || lastUpdatedTime + UPDATE_INTERVAL < time) {
-                                listener.received(SpeexData.this, getAvailable());
-                                lastUpdatedTime = time;
+                    }
+                    
+                    // Read the page, resuming from the last complete page
+                    if (!located) {
+                        try {
+                            reader.readPage();
+                        } catch (IOException e) {
+                            if (!inProgress) break;
+                            
+                            // The read has been aborted by a seek
+                            if (fetchRequest >= 0) continue;
+                            
+                            long position = reader.getPosition();
+                            if (e instanceof EOFException && isEndOfStream(position)) {
+                                ended = true;
+                                reader = resumeSkipped();
+                                if (reader == null) break;
+                                continue;
                             }
+                            setInputStream(resumeStream(position, e, ++attempt));
+                            reader.setStream(in, position);
+                            continue;
                         }
                     }
+                    located = false;
+                    attempt = 0;
+                    int headerType = reader.getHeaderType() & ~OggPageReader.CONTINUE;
+                    if (headerType != OggPageReader.NONE && headerType != OggPageReader.EOS) break;
+                    
+                    int first = getFirstBlock(reader, expected);
+                    int packets = reader.getPacketCount();
+                    if (!inOrder && expected >= 0 && packets > 0 && blockData.nextUnavailable(first) >= first + packets) {
+                        // The following blocks have been received from a seek position
+                        reader = resumeSkipped();
+                        if (reader == null) break;
+                        continue;
+                    }
+                    
+                    markLost(expected, first);
+                    int received = receivePage(reader, out, first);
+                    addPage(reader, first);
                     
-                    if (oggHeader.headerType == OggHeader.EOS) break;
+                    if (received > 0 && listener != null) {
+                        long time = new Date().getTime();
+                        if (lastUpdatedTime == 0 || lastUpdatedTime + UPDATE_INTERVAL < time) {
+                            listener.received(SpeexData.this, getAvailable());
+                            lastUpdatedTime = time;
+                        }
+                    }
+                    
+                    if ((headerType & OggPageReader.EOS) != 0) {
+                        ended = true;
+                        reader = resumeSkipped();
+                        if (reader == null) break;
+                    }
                 }
             } catch (Throwable t) {}
             
-            if (listener != null) listener.finish(SpeexData.this, getAvailable());
+            // Release a seek waiting for the transfer
+            releaseFetch();
             
-            transferThread = null;
+            if (listener != null) listener.finish(SpeexData.this, getAvailable());
         }
         
-    }
-    
-    /**
-     * The class stores an Ogg header.
-     */
-    protected class OggHeader {
-        
-        /**
-         * Header type - none
-         */
-        public static final int NONE = 0;
-        
-        /**
-         * Header type - continue
-         */
-        public static final int CONTINUE = 1;
-        
-        /**
-         * Header type - begin of stream
-         */
-        public static final int BOS = 2;
-        
         /**
-         * Header type - end of stream
+         * Adds a received page to the index of the pages
+         * @param reader the Ogg page reader holding the page
+         * @param first the index of the block of the first packet
          */
-        public static final int EOS = 4;
+        private void addPage(OggPageReader reader, int first) {
+            long end = reader.getPosition();
+            long start = end - reader.getBodyOffset() - reader.getBodyLength();
+            expected = first + reader.getPacketCount();
+            pages.add(new long[] { start, end, first, expected });
+            
+            if (inOrder && expected > 0) bytesPerBlock = (double) (end - dataOffset) / expected;
+        }
         
         /**
-         * Header type
+         * Checks whether the end of a stream is the end of the file
+         * @param position the byte offset of the end of the stream
+         * @return true if the end of the file has been reached
          */
-        public int headerType = NONE;
+        private boolean isEndOfStream(long position) {
+            RangeSource source = rangeSource;
+            return (source == null || source.getLength() < 0 || position >= source.getLength());
+        }
         
         /**
-         * Granule position
+         * Requests a block to be received before the others, unless it will
+         * soon be received by the transfer
+         * @param index the block index
+         * @return true if the block is being fetched
          */
-        public long granulePos;
+        protected boolean fetch(int index) {
+            if (granuleBase == Long.MIN_VALUE || getEstimatedBlocks() < 0) return false;
+            
+            int next = expected;
+            int distance = (int) (FETCH_DISTANCE / 1000D * format.getSampleRate()) / samplesPerBlock;
+            if (next >= 0 && index >= next && index - next < distance) return false;
+            
+            fetchRequest = index;
+            abortRead();
+            return true;
+        }
         
         /**
-         * Stream serial
+         * Checks whether a seek is waiting for the blocks of its position to be added
+         * @return true if the fetch request has not been taken
          */
-        public int serial;
+        protected boolean isFetchPending() {
+            return (fetchRequest >= 0);
+        }
         
         /**
-         * Sequence number
+         * Takes the fetch request and wakes the seek waiting for it
          */
-        public int sequence;
+        private void releaseFetch() {
+            fetchRequest = -1;
+            synchronized (SpeexData.this) {
+                SpeexData.this.notifyAll();
+            }
+        }
         
         /**
-         * Page checksum
+         * Opens the stream of the transfer from a byte offset with a range request
+         * @param offset the byte offset
+         * @return the Ogg page reader of the stream
+         * @throws java.io.IOException failed to open the stream
          */
-        public int checksum;
+        private OggPageReader openStream(long offset) throws IOException {
+            setInputStream(new BufferedInputStream(rangeSource.open(offset)));
+            return openPageReader(in, offset);
+        }
         
         /**
-         * Page segment number
+         * Locates the page of a seek position. The offset of the page is
+         * interpolated between the received pages around the position and the
+         * pages read at the interpolated offsets, until a page is found at or
+         * shortly before the position.
+         * @param target the block index of the seek position
+         * @return the Ogg page reader holding the page, or positioned before it
+         *         if expected is set, null if the page cannot be located
          */
-        public int segments;
+        private OggPageReader locatePage(int target) {
+            // The blocks up to the seek position are added for the seek to set its position
+            int blocks = getEstimatedBlocks();
+            if (target >= blocks) target = blocks - 1;
+            addBlocks(target + 1);
+            releaseFetch();
+            inOrder = false;
+            
+            long lowOffset = dataOffset;
+            int lowBlock = 0;
+            long highOffset = rangeSource.getLength();
+            int highBlock = blocks;
+            for (Enumeration e = pages.elements(); e.hasMoreElements();) {
+                long[] page = (long[]) e.nextElement();
+                if (page[3] <= target && page[3] >= lowBlock) {
+                    lowOffset = page[1];
+                    lowBlock = (int) page[3];
+                }
+                if (page[2] > target && page[2] < highBlock) {
+                    highOffset = page[0];
+                    highBlock = (int) page[2];
+                }
+            }
+            
+            int distance = (int) (FETCH_DISTANCE / 1000D * format.getSampleRate()) / samplesPerBlock;
+            try {
+                for (int probe = 0; probe < MAX_FETCH_PROBES && target - lowBlock >= distance && highOffset > lowOffset && highBlock > lowBlock; probe++) {
+                    // The page of the seek position starts before it, so half of the distance before it is aimed at
+                    int aim = Math.max(lowBlock, target - distance / 2);
+                    long offset = lowOffset + (long) ((double) (highOffset - lowOffset) * (aim - lowBlock) / (highBlock - lowBlock));
+                    OggPageReader reader = openStream(offset);
+                    
+                    // Skip the pages which do not complete a packet
+                    try {
+                        do {
+                            reader.readPage();
+                        } while (reader.getPacketCount() == 0);
+                    } catch (EOFException e) {
+                        highOffset = offset;
+                        continue;
+                    }
+                    
+                    int first = getGranuleBlock(reader);
+                    if (first < 0) break;
+                    if (first > target) {
+                        // No page starts between the offset and the page read
+                        highOffset = offset;
+                        highBlock = first;
+                        continue;
+                    }
+                    if (first + reader.getPacketCount() > target || target - first < distance) {
+                        expected = -1;
+                        return reader;
+                    }
+                    lowOffset = reader.getPosition();
+                    lowBlock = first + reader.getPacketCount();
+                }
+                
+                // Read the pages from the last position before the seek position
+                OggPageReader reader = openStream(lowOffset);
+                expected = lowBlock;
+                return reader;
+            } catch (Exception e) {
+                return null;
+            }
+        }
         
         /**
-         * Segment size
+         * Continues with the first blocks which have not been received, e.g.
+         * the ones skipped by a seek, from the end of the received page before them
+         * @return the Ogg page reader, null if all the blocks have been received
+         * @throws java.io.IOException failed to open the stream
          */
-        public byte[] segmentSize;
+        private OggPageReader resumeSkipped() throws IOException {
+            int index = blockData.nextUnavailable(0);
+            if (rangeSource == null || index >= blockData.size() && ended) return null;
+            
+            long[] before = null;
+            for (Enumeration e = pages.elements(); e.hasMoreElements();) {
+                long[] page = (long[]) e.nextElement();
+                if (page[3] <= index && (before == null || page[3] > before[3])) before = page;
+            }
+            
+            // No progress has been made since the last time
+            if (before == null || before[1] == lastResume) return null;
+            lastResume = before[1];
+            
+            OggPageReader reader = openStream(before[1]);
+            expected = (int) before[3];
+            return reader;
+        }
         
     }
     
@@ -574,11 +1192,37 @@ public class SpeexData extends BlockAudioData {
         protected int cacheLength = 0;
         
         /**
-         * Creates a new instance of SpeexBlock
+         * The offset of the encoded data in the data buffer
+         */
+        protected int dataOffset = 0;
+        
+        /**
+         * The length of the encoded data in the data buffer
+         */
+        protected int dataLength = 0;
+        
+        /**
+         * The index of the block in the audio data, which keys its decoded frame
+         */
+        protected int index;
+        
+        /**
+         * The samples written to the block which have not been encoded
+         */
+        protected short[] pending = null;
+        
+        /**
+         * True if the packet of the block has been lost
+         */
+        protected boolean lost = false;
+        
+        /**
+         * Creates a new instance of SpeexBlock, which is appended to the audio data
          * @param size the size of the block
          */
         public SpeexBlock(int size) {
             super(size);
+            index = blockData.size();
             reset();
         }
         
@@ -593,14 +1237,36 @@ public class SpeexData extends BlockAudioData {
             cacheLength = length;
         }
         
+        /**
+         * Marks the packet of the block as lost, so that the block is decoded
+         * by packet loss concealment
+         */
+        public synchronized void setLost() {
+            lost = true;
+        }
+        
         /**
          * Sets the encoded data in the block
          * @param encData the encoded data
          * @param length the length of the data
          */
         public synchronized void setEncodedData(byte[] encData, int offset, int length) {
-            data = new byte[length];
-            System.arraycopy(encData, offset, data, 0, length);
+            byte[] copy = new byte[length];
+            System.arraycopy(encData, offset, copy, 0, length);
+            shareEncodedData(copy, 0, length);
+        }
+        
+        /**
+         * Sets the encoded data in the block without copying it, so the
+         * buffer must not be changed afterwards
+         * @param encData the buffer holding the encoded data
+         * @param offset the offset of the encoded data
+         * @param length the length of the data
+         */
+        public synchronized void shareEncodedData(byte[] encData, int offset, int length) {
+            data = encData;
+            dataOffset = offset;
+            dataLength = length;
             cacheOffset = -1;
             cacheLength = 0;
         }
@@ -614,43 +1280,78 @@ public class SpeexData extends BlockAudioData {
         public synchronized int read() throws IOException, AudioDataException {
             if (eob()) throw new AudioDataException("Invalid read request.");
             
-            byte[] decodedBuffer = null;
-            if (!decodedData.containsKey(this)) {
-                if (data == null && cacheOffset < 0) throw new AudioDataException("Invalid read request.");
-
-                synchronized (decoder) {
-                    if (data == null) {
-                        byte[] cacheData = new byte[cacheLength];
-                        cacheInputStream.read(cacheData, cacheOffset);
-                        decoder.processData(cacheData, 0, cacheData.length);
-                    }
-                    else
-                        decoder.processData(data, 0, data.length);
-                    decodedBuffer = new byte[decoder.getProcessedDataByteSize()];
-                    decoder.getProcessedData(decodedBuffer, 0);
-                    
-                    decodedData.clear();
-                    decodedData.put(this, decodedBuffer);
-                }
-            } else decodedBuffer = (byte[]) decodedData.get(this);
+            short[] frame = getFrame();
+            return frame[position++];
+        }
+        
+        /**
+         * Reads a set of samples from the block, decoding the frame once
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer
+         * @param length the maximum number of samples to read
+         * @return the number of samples read
+         * @throws java.io.IOException failed to read the samples
+         * @throws gong.audio.AudioDataException Invalid data/request
+         */
+        public synchronized int read(short[] buffer, int offset, int length) throws IOException, AudioDataException {
+            if (length <= 0 || eob()) return 0;
+            
+            short[] frame = getFrame();
             
-            int sample = (int) ((decodedBuffer[2 * position + 1] << 8) | (decodedBuffer[2 * position] & 0xFF));
-            position++;
+            int count = Math.min(size - position, length);
+            System.arraycopy(frame, position, buffer, offset, count);
+            position += count;
             
-            return sample;
+            return count;
         }
         
-        private byte[] getDecodedBuffer() {
-            byte[] decodedBuffer = null;
+        /**
+         * Gets the decoded frame of the block from the frame cache, decoding it if necessary
+         * @return the decoded frame, which must be copied before the next use of the cache
+         * @throws java.io.IOException failed to read the encoded data
+         * @throws gong.audio.AudioDataException Invalid data/request
+         */
+        private short[] getFrame() throws IOException, AudioDataException {
+            // The samples being written are returned as they are
+            if (pending != null) return pending;
             
-            if (!decodedData.containsKey(this)) {
-                decodedBuffer = new byte[2 * size];
-                Arrays.fill(decodedBuffer, (byte) 0);
-                decodedData.clear();
-                decodedData.put(this, decodedBuffer);
-            } else decodedBuffer = (byte[]) decodedData.get(this);
+            short[] frame = frameCache.get(index, this);
+            if (frame != null) return frame;
             
-            return decodedBuffer;
+            if (data == null && cacheOffset < 0 && !lost) throw new AudioDataException("Invalid read request.");
+            
+            // A lost packet is decoded from no data
+            byte[] encodedData = data;
+            int encodedOffset = dataOffset;
+            int encodedLength = dataLength;
+            if (encodedData == null && !lost) {
+                encodedData = new byte[cacheLength];
+                cacheInputStream.read(encodedData, cacheOffset);
+                encodedOffset = 0;
+                encodedLength = cacheLength;
+            }
+            
+            synchronized (decoder) {
+                decoder.processData(encodedData, encodedOffset, encodedLength);
+                frame = frameCache.allocate(Math.max(size, decoder.getProcessedDataByteSize() / 2));
+                decoder.getProcessedData(frame, 0);
+            }
+            frameCache.put(index, this, frame);
+            
+            return frame;
+        }
+        
+        /**
+         * Gets the buffer of the samples being written to the block
+         * @return the sample buffer
+         */
+        private short[] getPendingFrame() {
+            if (pending == null) {
+                pending = frameCache.allocate(size);
+                Arrays.fill(pending, (short) 0);
+                frameCache.remove(index);
+            }
+            return pending;
         }
         
         /**
@@ -659,31 +1360,58 @@ public class SpeexData extends BlockAudioData {
          * @throws gong.audio.AudioDataException failed to write the sample
          */
         public synchronized void write(int sample) throws AudioDataException {
-            byte[] decodedBuffer = getDecodedBuffer();
-            if (decodedBuffer == null) throw new AudioDataException("Invalid write request.");
+            if (eob()) throw new AudioDataException("Invalid write request.");
+            
+            getPendingFrame()[position++] = (short) sample;
+            
+            if (position >= size) queueEncoding(this);
+        }
+        
+        /**
+         * Writes a set of samples to the block
+         * @param buffer the sample buffer
+         * @param offset the offset in the buffer
+         * @param length the number of samples to write
+         * @throws gong.audio.AudioDataException failed to write the samples
+         */
+        public synchronized void write(short[] buffer, int offset, int length) throws AudioDataException {
+            if (length <= 0) return;
+            if (position + length > size) throw new AudioDataException("Invalid write request.");
             
-            decodedBuffer[2 * position] = (byte) (sample & 0xFF);
-            decodedBuffer[2 * position + 1] = (byte) ((sample >> 8) & 0xFF);
-            position++;
+            System.arraycopy(buffer, offset, getPendingFrame(), position, length);
+            position += length;
             
-            if (position >= size) encodeData();
+            if (position >= size) queueEncoding(this);
         }
         
         /**
-         * Encodes the data into the encoded data buffer
+         * Encodes the data into the encoded data buffer, unless the block has
+         * already been encoded
          * @throws gong.audio.AudioDataException failed to encode the data
          */
-        public void encodeData() throws AudioDataException {
-            byte[] decodedBuffer = getDecodedBuffer();
-            if (decodedBuffer == null) throw new AudioDataException("Invalid encoding request.");
+        public synchronized void encodeData() throws AudioDataException {
+            if (pending == null && (data != null || cacheOffset >= 0)) return;
+            
+            short[] frame = getPendingFrame();
             
-            byte[] buffer = new byte[decodedBuffer.length];
+            byte[] buffer = new byte[2 * size];
             synchronized (encoder) {
-                encoder.processData(decodedBuffer, 0, 2 * size);
+                encoder.processData(frame, 0, size);
                 int size = encoder.getProcessedData(buffer, 0);
                 
                 setEncodedData(buffer, 0, size);
             }
+            
+            pending = null;
+            frameCache.recycle(frame);
+        }
+        
+        /**
+         * Checks whether the block has been encoded
+         * @return true if the encoded data is available
+         */
+        public synchronized boolean isEncoded() {
+            return (pending == null && (data != null || cacheOffset >= 0));
         }
         
         /**
@@ -692,9 +1420,11 @@ public class SpeexData extends BlockAudioData {
          */
         public Object clone() {
             SpeexBlock block = new SpeexBlock(size);
-            if (data != null) block.setEncodedData(data, 0, data.length);
+            if (data != null) block.setEncodedData(data, dataOffset, dataLength);
             block.cacheOffset = cacheOffset;
             block.cacheLength = cacheLength;
+            block.lost = lost;
+            block.index = index;
             return block;
         }
         
@@ -715,7 +1445,7 @@ public class SpeexData extends BlockAudioData {
                 writer.writePacket(cacheData, 0, cacheData.length);
             }
             else
-                writer.writePacket(data, 0, data.length);
+                writer.writePacket(data, dataOffset, dataLength);
         }
         
     }
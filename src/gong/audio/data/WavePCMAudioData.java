@@ -79,7 +79,7 @@ public class WavePCMAudioData extends BlockAudioData {
 				super.blockData.add(block);
 				eof = block.readFromStream(ais);
 			}
-			super.availableBlocks = super.blockData.size();
+			super.blockData.setAvailable(super.blockData.size());
 			super.position = getLength();
 		} catch (UnsupportedAudioFileException e) {
 			throw new AudioDataException(e.getMessage());
@@ -103,6 +103,16 @@ public class WavePCMAudioData extends BlockAudioData {
 			return sample;
 		}
 
+		@Override
+		public synchronized int read(short[] buffer, int offset, int length) {
+			int end = Math.min(size, position + length);
+			int count = end - position;
+			for (int dataIndex = position << 1; position < end; position++, dataIndex += 2) {
+				buffer[offset++] = (short) (data[dataIndex] << 8 | data[dataIndex + 1] & 0x00FF);
+			}
+			return count;
+		}
+
 		public synchronized void write(int sample) throws AudioDataException {
 			if (eob())
 				throw new AudioDataException("Invalid write request.");
@@ -116,6 +126,23 @@ public class WavePCMAudioData extends BlockAudioData {
 			position++;
 		}
 
+		@Override
+		public synchronized void write(short[] buffer, int offset, int length) throws AudioDataException {
+			if (position + length > size)
+				throw new AudioDataException("Invalid write request.");
+			if (data == null) {
+				data = new byte[size * 2];
+			}
+
+			int end = offset + length;
+			for (int dataIndex = position << 1; offset < end; offset++, dataIndex += 2) {
+				int sample = buffer[offset];
+				data[dataIndex] = (byte) ((sample >> 8) & 0xFF);
+				data[dataIndex + 1] = (byte) (sample & 0xFF);
+			}
+			position += length;
+		}
+
 		public synchronized void sendToStream(OutputStream stream)
 				throws IOException, AudioDataException {
 			if (data == null)
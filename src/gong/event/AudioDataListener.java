@@ -39,7 +39,8 @@ public interface AudioDataListener {
     public void sent(AudioData audioData, long duration);
 
     /**
-     * Indicates the download is finished for the data
+     * Indicates the download is finished for the data, which is also
+     * called when the download has failed, see AudioData.getTransferError
      * @param duration the duration of the data
      */
     public void finish(AudioData audioData, long duration);
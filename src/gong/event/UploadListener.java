@@ -0,0 +1,34 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.event;
+
+import gong.audio.FormUpload;
+
+/**
+ * This interface defines a listener for the progress of an upload.
+ */
+public interface UploadListener {
+
+    /**
+     * Sent part of the upload to the server
+     * @param upload the upload
+     * @param bytes the number of bytes sent
+     * @param total the total number of bytes, -1 if it is unknown
+     */
+    public void uploaded(FormUpload upload, long bytes, long total);
+
+}
@@ -39,6 +39,7 @@ public class Request extends Message {
         "SetMediaRateRequest",
         "GetMediaRateRequest",
         "GetMediaStatusRequest",
+        "GetMediaBandwidthRequest",
         "GetAudioLevelRequest",
         "MoveToPrevMessageRequest",
         "MoveToNextMessageRequest",
@@ -50,6 +51,7 @@ public class Request extends Message {
         "PostMessageRequest",
         "SaveMessageRequest",
         "PostToFormRequest",
+        "RecordToFormRequest",
         "LoadFromURLRequest",
         "GetCurrentTokenRequest",
         "GetBoardNameRequest",
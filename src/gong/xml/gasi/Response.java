@@ -39,6 +39,7 @@ public class Response extends Message {
         "SetMediaRateResponse",
         "GetMediaRateResponse",
         "GetMediaStatusResponse",
+        "GetMediaBandwidthResponse",
         "GetAudioLevelResponse",
         "MoveToPrevMessageResponse",
         "MoveToNextMessageResponse",
@@ -50,6 +51,7 @@ public class Response extends Message {
         "PostMessageResponse",
         "SaveMessageResponse",
         "PostToFormResponse",
+        "RecordToFormResponse",
         "LoadFromURLResponse",
         "GetCurrentTokenResponse",
         "GetBoardNameResponse",
@@ -215,6 +215,8 @@ public abstract class ScriptHandler {
                 getMediaRate();
             else if (name.equals("GetMediaStatusRequest"))
                 getMediaStatus();
+            else if (name.equals("GetMediaBandwidthRequest"))
+                getMediaBandwidth();
             else if (name.equals("GetAudioLevelRequest"))
                 getAudioLevel();
             else if (name.equals("GetCurrentMessageIdRequest"))
@@ -237,6 +239,8 @@ public abstract class ScriptHandler {
                 saveMessage();
             else if (name.equals("PostToFormRequest"))
                 postToForm();
+            else if (name.equals("RecordToFormRequest"))
+                recordToForm();
             else if (name.equals("LoadFromURLRequest"))
                 loadFromURL();
             else if (name.equals("GetCurrentTokenRequest"))
@@ -323,6 +327,11 @@ public abstract class ScriptHandler {
      * @throws java.lang.Exception failed to get the media status
      */
     protected abstract void getMediaStatus() throws Exception;
+    /**
+     * Gets the estimated bandwidth of the media download
+     * @throws java.lang.Exception failed to get the bandwidth
+     */
+    protected abstract void getMediaBandwidth() throws Exception;
     /**
      * Gets the current audio level
      * @throws java.lang.Exception failed to get the audio level
@@ -378,6 +387,11 @@ public abstract class ScriptHandler {
      * @throws java.lang.Exception failed to post the message to an HTML form
      */
     protected abstract void postToForm() throws Exception;
+    /**
+     * Records a new audio message which is posted to an HTML form while it is being recorded
+     * @throws java.lang.Exception failed to record or post the message
+     */
+    protected abstract void recordToForm() throws Exception;
     /**
      * Loads a audio recording from a absolute or relative url
      * @throws java.lang.Exception failed to load a recording from an url
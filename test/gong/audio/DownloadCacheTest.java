@@ -0,0 +1,211 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * This class tests the download cache against a stub HTTP server, which
+ * answers the revalidation of a file with 304 while its ETag is unchanged.
+ */
+public class DownloadCacheTest {
+
+    private static final int FILE_SIZE = 50000;
+
+    private HttpServer server;
+    private byte[] first = createContent(1);
+    private byte[] second = createContent(2);
+    private String eTag = "\"v1\"";
+    private int downloads = 0;
+    private int revalidations = 0;
+
+    /**
+     * Creates the content of a file
+     * @param seed the seed of the content
+     * @return the content
+     */
+    private static byte[] createContent(int seed) {
+        byte[] content = new byte[FILE_SIZE];
+        for (int index = 0; index < content.length; index++) content[index] = (byte) (index * seed + index / 256);
+        return content;
+    }
+
+    /**
+     * Starts the stub server. The paths starting with "/same" give the same
+     * content as "/a".
+     * @throws java.io.IOException failed to start the server
+     */
+    private void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                byte[] body = (path.startsWith("/a") || path.startsWith("/same"))? first : second;
+
+                exchange.getResponseHeaders().set("ETag", eTag);
+                if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    revalidations++;
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+
+                downloads++;
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Downloads a file through the cache
+     * @param cache the download cache
+     * @param path the path of the file
+     * @return the content
+     * @throws java.io.IOException failed to download the file
+     */
+    private byte[] download(DownloadCache cache, String path) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+        InputStream in = cache.openStream(url.openConnection());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytes;
+        while ((bytes = in.read(buffer)) >= 0) out.write(buffer, 0, bytes);
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a file
+     * @param file the file
+     * @return the content
+     * @throws java.io.IOException failed to read the file
+     */
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) offset += in.read(content, offset, content.length - offset);
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    /**
+     * Removes the files of a directory
+     * @param directory the directory
+     */
+    private static void clearDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (int index = 0; index < files.length; index++) files[index].delete();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new RuntimeException("Failed: " + message);
+        System.out.println("OK: " + message);
+    }
+
+    /**
+     * Runs the test
+     * @throws java.lang.Exception failed to run the test
+     */
+    public void run() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "gong-cache-test");
+        clearDirectory(directory);
+        clearDirectory(new File(directory.getPath() + "-1"));
+        start();
+
+        try {
+            DownloadCache cache = new DownloadCache(directory, 10 * FILE_SIZE);
+            check(cache.isLocked() && cache.getDirectory().equals(directory), "the directory is locked");
+
+            check(Arrays.equals(download(cache, "/a"), first), "a miss gives the downloaded content");
+            check(Arrays.equals(download(cache, "/a"), first), "a hit gives the cached content");
+            check(cache.getHits() == 1 && cache.getMisses() == 1 && downloads == 1 && revalidations == 1, "the hit is revalidated and not downloaded");
+
+            // The hits within the save interval are saved together
+            File index = new File(directory, "index.dat");
+            byte[] saved = readFile(index);
+            download(cache, "/a");
+            check(Arrays.equals(readFile(index), saved), "a hit does not rewrite the index");
+            cache.flush();
+            check(!Arrays.equals(readFile(index), saved), "the access time of the hit is saved by flush");
+
+            // Another virtual machine uses its own directory
+            DownloadCache other = new DownloadCache(directory, 10 * FILE_SIZE);
+            check(other.isLocked() && !other.getDirectory().equals(directory), "a locked directory is not shared");
+            other.close();
+
+            // The content is shared by the URLs giving it
+            download(cache, "/same");
+            check(cache.getCount() == 2 && cache.getFileCount() == 1 && cache.getSize() == FILE_SIZE, "the same content is stored once");
+            download(cache, "/b");
+            check(cache.getCount() == 3 && cache.getFileCount() == 2 && cache.getSize() == 2 * FILE_SIZE, "different content is stored apart");
+
+            // The cache is loaded again after a restart
+            cache.close();
+            cache = new DownloadCache(directory, 10 * FILE_SIZE);
+            check(cache.getDirectory().equals(directory) && cache.getCount() == 3 && cache.getFileCount() == 2, "the index is loaded after a restart");
+            int before = downloads;
+            check(Arrays.equals(download(cache, "/same"), first) && downloads == before, "a reloaded entry is a hit");
+
+            // A changed file is downloaded again and replaces the entry
+            eTag = "\"v2\"";
+            check(Arrays.equals(download(cache, "/b"), second) && downloads == before + 1, "a changed file is downloaded");
+            check(cache.getCount() == 3 && cache.getFileCount() == 2, "the changed file replaces its entry");
+
+            // The least recently used content is removed first
+            cache.setMaximumSize(FILE_SIZE);
+            check(cache.getCount() == 1 && cache.getSize() == FILE_SIZE && cache.getEvictions() > 0, "the least recently used entries are evicted");
+            download(cache, "/b");
+            check(cache.getHits() == 2, "the most recently used entry is kept");
+            cache.close();
+
+            String[] names = directory.list();
+            boolean partial = false;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].endsWith(".part")) partial = true;
+            }
+            check(!partial, "no partial files are left");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new DownloadCacheTest().run();
+    }
+
+}
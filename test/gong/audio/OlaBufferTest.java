@@ -0,0 +1,122 @@
+/*
+ * Copyright 2002-2008 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+import java.util.Arrays;
+import java.util.Random;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * This class tests that the parallel filtering of the OLA buffer gives the
+ * same samples as the sequential filtering, whatever the sizes of the
+ * blocks given to them.
+ */
+public class OlaBufferTest {
+
+    private static final int[] SAMPLE_RATES = { 8000, 16000, 44100 };
+    private static final float[] RATES = { 0.5f, 0.75f, 1.0f, 1.5f, 2.0f };
+
+    /**
+     * Creates a voiced sound with a changing pitch and some noise
+     * @param rate the sample rate
+     * @param seconds the length in seconds
+     * @return the samples
+     */
+    static short[] createVoice(int rate, int seconds) {
+        Random random = new Random(1);
+        short[] samples = new short[rate * seconds];
+        double phase = 0;
+        for (int index = 0; index < samples.length; index++) {
+            double time = (double) index / rate;
+            double pitch = 150 + 60 * Math.sin(2 * Math.PI * 0.7 * time);
+            phase += 2 * Math.PI * pitch / rate;
+
+            double sample = 0;
+            for (int harmonic = 1; harmonic <= 8; harmonic++) sample += Math.sin(harmonic * phase) / harmonic;
+            double envelope = 0.6 + 0.4 * Math.sin(2 * Math.PI * 2.3 * time);
+            samples[index] = (short) (6000 * envelope * sample + random.nextInt(1000) - 500);
+        }
+        return samples;
+    }
+
+    /**
+     * Filters the samples in blocks, sequentially or in parallel
+     * @param buffer the OLA buffer
+     * @param samples the samples
+     * @param size the size of the blocks, 0 for random sizes
+     * @param parallel true to filter in parallel
+     * @return the filtered samples
+     */
+    private static short[] filter(OlaBuffer buffer, short[] samples, int size, boolean parallel) {
+        Random random = new Random(2);
+        short[] block = new short[(size > 0)? size : 4096];
+        short[] output = new short[buffer.getOutputLength(block.length)];
+        short[] filtered = new short[buffer.getOutputLength(samples.length)];
+
+        int total = 0;
+        for (int offset = 0, length; offset < samples.length; offset += length) {
+            length = Math.min((size > 0)? size : 1 + random.nextInt(block.length), samples.length - offset);
+            System.arraycopy(samples, offset, block, 0, length);
+
+            int count = parallel? buffer.processParallel(block, length, output) : buffer.process(block, length, output);
+            System.arraycopy(output, 0, filtered, total, count);
+            total += count;
+        }
+
+        buffer.drain();
+        total += buffer.read(filtered, total, filtered.length - total);
+        return Arrays.copyOf(filtered, total);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new RuntimeException("Failed: " + message);
+        System.out.println("OK: " + message);
+    }
+
+    /**
+     * Runs the test
+     */
+    public void run() {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            int sampleRate = SAMPLE_RATES[i];
+            AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+            short[] samples = createVoice(sampleRate, 10);
+
+            for (int j = 0; j < RATES.length; j++) {
+                for (int fast = 0; fast < 2; fast++) {
+                    OlaBuffer sequential = new OlaBuffer(format, RATES[j]);
+                    sequential.setFastSearch(fast == 1);
+                    short[] expected = filter(sequential, samples, 0, false);
+
+                    boolean equal = true;
+                    int[] sizes = { 262144, 10007, 3 * sampleRate / 20 };
+                    for (int k = 0; k < sizes.length; k++) {
+                        OlaBuffer parallel = new OlaBuffer(format, RATES[j]);
+                        parallel.setFastSearch(fast == 1);
+                        equal &= Arrays.equals(filter(parallel, samples, sizes[k], true), expected);
+                    }
+                    check(equal, sampleRate + " Hz at rate " + RATES[j] + (fast == 1? " with the fast search" : "") + " gives the same " + expected.length + " samples in parallel");
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        new OlaBufferTest().run();
+    }
+
+}
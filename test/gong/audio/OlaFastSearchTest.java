@@ -0,0 +1,117 @@
+/*
+ * Copyright 2002-2008 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * This class tests that the fast search of the OLA buffer finds the
+ * shifting positions of the full search. Every OLA buffer of a voiced
+ * sound is searched both ways, and the positions must be within a few
+ * samples of each other, with a correlation close to the one of the full
+ * search.
+ */
+public class OlaFastSearchTest {
+
+    private static final int[] SAMPLE_RATES = { 8000, 16000, 44100 };
+    private static final float[] RATES = { 0.5f, 0.75f, 1.25f, 1.5f, 2.0f };
+
+    /**
+     * The distance in samples within which the positions are considered the same
+     */
+    private static final int TOLERANCE = 2;
+
+    /**
+     * The minimum fraction of the OLA buffers whose positions are within the tolerance
+     */
+    private static final double MIN_WITHIN_TOLERANCE = 0.95;
+
+    /**
+     * The maximum loss of correlation at the position of the fast search
+     */
+    private static final double MAX_CORRELATION_LOSS = 0.05;
+
+    /**
+     * Finds the shifting position of the current OLA buffer
+     * @param buffer the OLA buffer
+     * @param fast true to use the fast search
+     * @return the number of shifts
+     */
+    private static int findPosition(OlaBuffer buffer, boolean fast) {
+        buffer.setFastSearch(fast);
+        return (buffer.sampleShift > 0)? buffer.findStretchPosition() : buffer.findShrinkPosition();
+    }
+
+    /**
+     * Finds the correlation at a shifting position of the current OLA buffer
+     * @param buffer the OLA buffer
+     * @param shift the number of shifts
+     * @return the correlation value
+     */
+    private static double findCorrelation(OlaBuffer buffer, int shift) {
+        int offset = (buffer.sampleShift > 0)? 0 : buffer.bufferSize - buffer.overlapSize;
+        return buffer.findCorrelation(offset, offset + shift, buffer.overlapSize);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new RuntimeException("Failed: " + message);
+        System.out.println("OK: " + message);
+    }
+
+    /**
+     * Runs the test
+     */
+    public void run() {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            int sampleRate = SAMPLE_RATES[i];
+            short[] samples = OlaBufferTest.createVoice(sampleRate, 30);
+
+            for (int j = 0; j < RATES.length; j++) {
+                OlaBuffer buffer = new OlaBuffer(new AudioFormat(sampleRate, 16, 1, true, false), RATES[j]);
+
+                int frames = 0, same = 0, within = 0;
+                double worstLoss = 0;
+                for (int start = 0; start + buffer.bufferSize <= samples.length; start += buffer.bufferSize) {
+                    for (int index = 0; index < buffer.bufferSize; index++) buffer.buffer[index] = samples[start + index];
+
+                    int full = findPosition(buffer, false);
+                    int fast = findPosition(buffer, true);
+                    frames++;
+                    if (full == fast) same++;
+                    if (Math.abs(full - fast) <= TOLERANCE) within++;
+
+                    // The fast search may stop at another accepted position
+                    double expected = Math.min(findCorrelation(buffer, full), OlaBuffer.CORRELATION_ACCEPTANCE);
+                    worstLoss = Math.max(worstLoss, expected - findCorrelation(buffer, fast));
+                }
+
+                String name = sampleRate + " Hz at rate " + RATES[j] + ": ";
+                check((double) within / frames >= MIN_WITHIN_TOLERANCE, name + percent(same, frames) + " the same, " + percent(within, frames) + " within " + TOLERANCE + " samples");
+                check(worstLoss <= MAX_CORRELATION_LOSS, name + "correlation loss at most " + Math.round(worstLoss * 1000) / 1000.0);
+            }
+        }
+    }
+
+    private static String percent(int count, int total) {
+        return Math.round(1000.0 * count / total) / 10.0 + "%";
+    }
+
+    public static void main(String[] args) {
+        new OlaFastSearchTest().run();
+    }
+
+}
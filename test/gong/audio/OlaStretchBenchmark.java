@@ -0,0 +1,104 @@
+/*
+ * Copyright 2002-2008 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * This class measures the time-stretching of a recording as a recording
+ * is saved at another speed, sequentially and in parallel.
+ */
+public class OlaStretchBenchmark {
+
+    /**
+     * The length of the recording in seconds
+     */
+    private static final int SECONDS = 5 * 60;
+
+    /**
+     * The sample rate of the recording
+     */
+    private static final int SAMPLE_RATE = 16000;
+
+    /**
+     * The number of samples filtered by each call, as a recording is saved
+     */
+    private static final int BUFFER_SIZE = 262144;
+
+    private static final float[] RATES = { 0.5f, 1.5f };
+
+    private short[] samples;
+    private short[] output;
+
+    /**
+     * Stretches the recording
+     * @param rate the playback rate
+     * @param parallel true to filter in parallel
+     * @return the time in nanoseconds
+     */
+    private long stretch(float rate, boolean parallel) {
+        OlaBuffer buffer = new OlaBuffer(new AudioFormat(SAMPLE_RATE, 16, 1, true, false), rate);
+        short[] block = new short[BUFFER_SIZE];
+        if (output == null) output = new short[buffer.getOutputLength(BUFFER_SIZE)];
+
+        long start = System.nanoTime();
+        for (int offset = 0, length; offset < samples.length; offset += length) {
+            length = Math.min(BUFFER_SIZE, samples.length - offset);
+            System.arraycopy(samples, offset, block, 0, length);
+            if (parallel)
+                buffer.processParallel(block, length, output);
+            else
+                buffer.process(block, length, output);
+        }
+        buffer.drain();
+        buffer.read(output, 0, output.length);
+        return System.nanoTime() - start;
+    }
+
+    private static String format(long time) {
+        return (time / 1000000) + " ms, " + Math.round(SECONDS / (time / 1e9)) + " times real-time";
+    }
+
+    /**
+     * Runs the benchmark
+     */
+    public void run() {
+        samples = OlaBufferTest.createVoice(SAMPLE_RATE, SECONDS);
+        System.out.println("Stretching " + SECONDS / 60 + " minutes at " + SAMPLE_RATE + " Hz with " + Runtime.getRuntime().availableProcessors() + " processors");
+
+        for (int index = 0; index < RATES.length; index++) {
+            float rate = RATES[index];
+
+            // The best of a few runs after the warm-up
+            stretch(rate, false);
+            stretch(rate, true);
+            long sequential = Long.MAX_VALUE, parallel = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                sequential = Math.min(sequential, stretch(rate, false));
+                parallel = Math.min(parallel, stretch(rate, true));
+            }
+
+            System.out.println("Rate " + rate + " sequential: " + format(sequential));
+            System.out.println("Rate " + rate + " parallel: " + format(parallel) + ", " + Math.round(10.0 * sequential / parallel) / 10.0 + " times the sequential");
+        }
+    }
+
+    public static void main(String[] args) {
+        new OlaStretchBenchmark().run();
+    }
+
+}
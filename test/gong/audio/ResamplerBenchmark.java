@@ -0,0 +1,92 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+/**
+ * This class measures the throughput of the resampler on one thread, as the
+ * number of seconds of sound converted in one second of processing time.
+ */
+public class ResamplerBenchmark {
+
+    /**
+     * The pairs of sample rates measured, the input rate followed by the output rate
+     */
+    private static final int[][] RATES = {
+        { 8000, 44100 }, { 16000, 44100 }, { 22050, 44100 }, { 44100, 16000 }, { 48000, 8000 }
+    };
+
+    /**
+     * The length of the sound in seconds
+     */
+    private static final int SECONDS = 60;
+
+    /**
+     * The number of samples given to each call, as a player gives them
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Converts a sound
+     * @param samples the sound
+     * @param resampler the resampler
+     * @param output the output buffer
+     * @return the number of output samples
+     */
+    private static long convert(short[] samples, Resampler resampler, short[] output) {
+        long count = 0;
+        for (int offset = 0; offset < samples.length; offset += BLOCK_SIZE) {
+            count += resampler.process(samples, offset, Math.min(BLOCK_SIZE, samples.length - offset), output, 0);
+        }
+        return count + resampler.drain(output, 0);
+    }
+
+    /**
+     * Runs the benchmark
+     */
+    public void run() {
+        for (int pair = 0; pair < RATES.length; pair++) {
+            int input = RATES[pair][0];
+            int output = RATES[pair][1];
+
+            short[] samples = new short[SECONDS * input];
+            for (int index = 0; index < samples.length; index++) samples[index] = (short) (8000 * Math.sin(index * 0.05) + 4000 * Math.sin(index * 0.31));
+
+            Resampler resampler = new Resampler(input, output);
+            short[] result = new short[resampler.getOutputLength(BLOCK_SIZE) + resampler.getOutputLength(0)];
+
+            // Warm up the compiler before the measurement
+            for (int run = 0; run < 3; run++) convert(samples, resampler, result);
+
+            int runs = 5;
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < runs; run++) {
+                long start = System.nanoTime();
+                convert(samples, resampler, result);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+
+            double seconds = best / 1e9;
+            System.out.println(input + " to " + output + " Hz: " + Math.round(SECONDS / seconds) + " times real-time, "
+                + Math.round(samples.length / seconds / 1e6 * 10) / 10.0 + " M input samples/s");
+        }
+    }
+
+    public static void main(String[] args) {
+        new ResamplerBenchmark().run();
+    }
+
+}
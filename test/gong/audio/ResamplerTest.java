@@ -0,0 +1,169 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio;
+
+/**
+ * This class tests the frequency response of the resampler. A tone in the
+ * passband must keep its level and come out without images or aliases,
+ * while a tone above the output Nyquist frequency must be removed.
+ */
+public class ResamplerTest {
+
+    /**
+     * The pairs of sample rates tested, the input rate followed by the output rate
+     */
+    private static final int[][] RATES = {
+        { 8000, 44100 }, { 16000, 44100 }, { 22050, 44100 }, { 16000, 48000 },
+        { 44100, 16000 }, { 48000, 8000 }, { 44100, 22050 }, { 11025, 8000 }
+    };
+
+    /**
+     * The amplitude of the test tones
+     */
+    private static final double AMPLITUDE = 16000;
+
+    /**
+     * The maximum change of level in the passband in dB
+     */
+    private static final double MAX_PASSBAND_RIPPLE = 0.5;
+
+    /**
+     * The minimum ratio of a passband tone to everything else in the output in dB
+     */
+    private static final double MIN_SIGNAL_TO_DISTORTION = 60;
+
+    /**
+     * The minimum attenuation of a tone above the output Nyquist frequency in dB
+     */
+    private static final double MIN_STOPBAND_ATTENUATION = 60;
+
+    /**
+     * Resamples a tone
+     * @param input the input rate
+     * @param output the output rate
+     * @param frequency the frequency of the tone
+     * @return the output samples, without the start and the end of the filter
+     */
+    private static double[] resample(int input, int output, double frequency) {
+        int length = input;
+        short[] samples = new short[length];
+        for (int index = 0; index < length; index++) samples[index] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * index / input));
+
+        // The tone is given in blocks of different sizes
+        Resampler resampler = new Resampler(input, output);
+        short[] result = new short[resampler.getOutputLength(length) + resampler.getOutputLength(0)];
+        int count = 0;
+        for (int offset = 0, block = 100; offset < length; offset += block, block = block * 3 % 997 + 1) {
+            count += resampler.process(samples, offset, Math.min(block, length - offset), result, count);
+        }
+        count += resampler.drain(result, count);
+
+        long expected = (long) length * output / input;
+        if (Math.abs(count - expected) > 2) throw new RuntimeException("Failed: " + input + " to " + output + " gives " + count + " samples instead of " + expected);
+
+        // Skip a tenth of a second at both ends
+        int skip = output / 10;
+        double[] steady = new double[count - 2 * skip];
+        for (int index = 0; index < steady.length; index++) steady[index] = result[skip + index];
+        return steady;
+    }
+
+    /**
+     * Gets the level of the samples relative to the test tone
+     * @param samples the samples
+     * @return the level in dB
+     */
+    private static double getLevel(double[] samples) {
+        double sum = 0;
+        for (int index = 0; index < samples.length; index++) sum += samples[index] * samples[index];
+        return 10 * Math.log10(sum / samples.length / (AMPLITUDE * AMPLITUDE / 2));
+    }
+
+    /**
+     * Removes the best fitting tone of a frequency from the samples
+     * @param samples the samples
+     * @param frequency the frequency of the tone
+     * @param rate the sample rate
+     * @return the samples other than the tone
+     */
+    private static double[] removeTone(double[] samples, double frequency, int rate) {
+        double sine = 0, cosine = 0;
+        for (int index = 0; index < samples.length; index++) {
+            double angle = 2 * Math.PI * frequency * index / rate;
+            sine += samples[index] * Math.sin(angle);
+            cosine += samples[index] * Math.cos(angle);
+        }
+        sine *= 2.0 / samples.length;
+        cosine *= 2.0 / samples.length;
+
+        double[] residue = new double[samples.length];
+        for (int index = 0; index < samples.length; index++) {
+            double angle = 2 * Math.PI * frequency * index / rate;
+            residue[index] = samples[index] - sine * Math.sin(angle) - cosine * Math.cos(angle);
+        }
+        return residue;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new RuntimeException("Failed: " + message);
+        System.out.println("OK: " + message);
+    }
+
+    /**
+     * Runs the test
+     */
+    public void run() {
+        for (int pair = 0; pair < RATES.length; pair++) {
+            int input = RATES[pair][0];
+            int output = RATES[pair][1];
+            int nyquist = Math.min(input, output) / 2;
+            String name = input + " to " + output + " Hz";
+
+            // Tones from 5% to 75% of the Nyquist frequency, within the passband
+            double worstRipple = 0, worstDistortion = Double.MAX_VALUE;
+            for (int step = 0; step < 8; step++) {
+                double frequency = Math.round((0.05 + 0.1 * step) * nyquist);
+                double[] samples = resample(input, output, frequency);
+                double ripple = Math.abs(getLevel(samples));
+                double distortion = -getLevel(removeTone(samples, frequency, output));
+                worstRipple = Math.max(worstRipple, ripple);
+                worstDistortion = Math.min(worstDistortion, distortion);
+            }
+            check(worstRipple <= MAX_PASSBAND_RIPPLE, name + " passband ripple " + format(worstRipple) + " dB");
+            check(worstDistortion >= MIN_SIGNAL_TO_DISTORTION, name + " images and aliases " + format(worstDistortion) + " dB below the tone");
+
+            // Tones from 105% of the output Nyquist frequency, which would alias when the rate is reduced
+            if (output < input) {
+                double worstAttenuation = Double.MAX_VALUE;
+                for (int step = 0; (1.05 + 0.2 * step) * output < 0.95 * input; step++) {
+                    double attenuation = -getLevel(resample(input, output, Math.round((1.05 + 0.2 * step) * output / 2)));
+                    worstAttenuation = Math.min(worstAttenuation, attenuation);
+                }
+                check(worstAttenuation >= MIN_STOPBAND_ATTENUATION, name + " stopband attenuation " + format(worstAttenuation) + " dB");
+            }
+        }
+    }
+
+    private static String format(double value) {
+        return String.valueOf(Math.round(value * 100) / 100.0);
+    }
+
+    public static void main(String[] args) {
+        new ResamplerTest().run();
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio.data;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class tests that the table-driven 4-bit codec of the ADPCM data is
+ * bit-exact with the scalar codec, which computes every delta code from
+ * the step size. The delta codes, the samples and the codec state after
+ * every run must be the same, from any nibble position.
+ */
+public class ImaADPCMCodecTest {
+
+    /**
+     * The number of samples of each test signal
+     */
+    private static final int LENGTH = 40000;
+
+    /**
+     * The code size of the table-driven codec
+     */
+    private static final int CODE_SIZE = 4;
+
+    private final ImaADPCMData data = new ImaADPCMData();
+
+    /**
+     * Decodes a delta code with the scalar codec
+     * @param deltaCode the delta code
+     * @param state the codec state, which is updated after decoding
+     * @return the decoded sample
+     */
+    private static int decode(int deltaCode, int[] state) {
+        int step = ImaADPCMData.stepsizeTable[state[1]];
+
+        // Construct difference
+        int diff = step >> (CODE_SIZE - 1);
+        int mask = 1 << (CODE_SIZE - 2);
+        for (int index = 0; index < CODE_SIZE - 1; index++, mask >>= 1) {
+            if ((deltaCode & mask) != 0) diff += step >> index;
+        }
+        mask = 1 << (CODE_SIZE - 1);
+        if ((deltaCode & mask) != 0) diff = -diff;
+
+        // Build new sample
+        state[0] += diff;
+        if (state[0] > 32767) state[0] = 32767;
+        else if (state[0] < -32768) state[0] = -32768;
+
+        // Update step
+        state[1] += ImaADPCMData.indexTable[CODE_SIZE - 2][deltaCode & ~mask];
+        if (state[1] < 0) state[1] = 0;
+        else if (state[1] > 88) state[1] = 88;
+
+        return state[0];
+    }
+
+    /**
+     * Encodes a sample with the scalar codec
+     * @param sample the sample
+     * @param state the codec state, which is updated after encoding
+     * @return the delta code
+     */
+    private static int encode(int sample, int[] state) {
+        int diff = sample - state[0];
+        int step = ImaADPCMData.stepsizeTable[state[1]];
+        int deltaCode = 0;
+
+        // Set sign bit
+        if (diff < 0) {
+            deltaCode = 1 << (CODE_SIZE - 1);
+            diff = -diff;
+        }
+
+        for (int index = CODE_SIZE - 2; index >= 0; index--, step >>= 1) {
+            if (diff >= step) {
+                deltaCode |= 1 << index;
+                diff -= step;
+            }
+        }
+
+        decode(deltaCode, state);
+        return deltaCode;
+    }
+
+    /**
+     * Creates the test signals, which go from silence to clipping
+     * @return the signals
+     */
+    private static short[][] createSignals() {
+        Random random = new Random(1);
+        short[][] signals = new short[5][LENGTH];
+        for (int index = 0; index < LENGTH; index++) {
+            signals[1][index] = (short) (12000 * Math.sin(2 * Math.PI * 440 * index / 8000.0) + random.nextInt(200) - 100);
+            signals[2][index] = (short) (random.nextInt(65536) - 32768);
+            signals[3][index] = (short) (((index / 50) % 2 == 0)? 32767 : -32768);
+            signals[4][index] = (short) (random.nextInt(10) < 9? random.nextInt(64) - 32 : random.nextInt(65536) - 32768);
+        }
+        return signals;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new RuntimeException("Failed: " + message);
+        System.out.println("OK: " + message);
+    }
+
+    /**
+     * Tests the decoding of every delta code at every step index
+     */
+    private void testTables() {
+        boolean equal = true;
+        int[] values = { -32768, -20000, -1, 0, 1, 20000, 32767 };
+        for (int index = 0; index <= 88; index++) {
+            for (int code = 0; code < 16; code++) {
+                for (int k = 0; k < values.length; k++) {
+                    int[] expected = { values[k], index };
+                    int sample = decode(code, expected);
+
+                    short[] buffer = new short[1];
+                    ImaADPCMData.ADPCMState state = data.new ADPCMState(values[k], index);
+                    ImaADPCMData.decodeNibbles(new byte[] { (byte) code }, 0, 1, buffer, 0, state);
+                    equal &= buffer[0] == sample && state.previousValue == expected[0] && state.index == expected[1];
+                }
+            }
+        }
+        check(equal, "every delta code at every step index decodes the same");
+    }
+
+    /**
+     * Tests the encoding and decoding of runs of samples from every nibble position
+     * @param signal the samples
+     * @param name the name of the signal
+     */
+    private void testRuns(short[] signal, String name) {
+        Random random = new Random(2);
+        boolean encoded = true, decoded = true, skipped = true;
+
+        for (int run = 0; run < 200; run++) {
+            int nibble = random.nextInt(4);
+            int count = (run < 8)? run : 1 + random.nextInt(2000);
+            int offset = random.nextInt(LENGTH - count);
+            int value = (run % 3 == 0)? 0 : signal[offset];
+            int stepIndex = random.nextInt(89);
+
+            // The scalar codec, one delta code at a time
+            int[] state = { value, stepIndex };
+            byte[] codes = new byte[(nibble + count + 1) / 2];
+            for (int index = 0; index < count; index++) {
+                int code = encode(signal[offset + index], state);
+                int position = nibble + index;
+                codes[position >> 1] |= (byte) (((position & 1) == 0)? code : code << 4);
+            }
+            int[] end = (int[]) state.clone();
+
+            state = new int[] { value, stepIndex };
+            short[] samples = new short[count];
+            for (int index = 0; index < count; index++) {
+                int position = nibble + index;
+                samples[index] = (short) decode((codes[position >> 1] >> (((position & 1) == 0)? 0 : 4)) & 0xF, state);
+            }
+
+            // The table-driven codec
+            byte[] target = new byte[codes.length];
+            ImaADPCMData.ADPCMState tableState = data.new ADPCMState(value, stepIndex);
+            ImaADPCMData.encodeNibbles(signal, offset, count, target, nibble, tableState);
+            encoded &= Arrays.equals(target, codes) && tableState.previousValue == end[0] && tableState.index == end[1];
+
+            short[] buffer = new short[count + 2];
+            tableState = data.new ADPCMState(value, stepIndex);
+            ImaADPCMData.decodeNibbles(codes, nibble, count, buffer, 1, tableState);
+            decoded &= Arrays.equals(Arrays.copyOfRange(buffer, 1, count + 1), samples) && buffer[0] == 0 && buffer[count + 1] == 0;
+            decoded &= tableState.previousValue == state[0] && tableState.index == state[1];
+
+            tableState = data.new ADPCMState(value, stepIndex);
+            ImaADPCMData.decodeNibbles(codes, nibble, count, null, 0, tableState);
+            skipped &= tableState.previousValue == state[0] && tableState.index == state[1];
+        }
+
+        check(encoded, name + " encodes to the same delta codes and state");
+        check(decoded, name + " decodes to the same samples and state");
+        check(skipped, name + " skips to the same state");
+    }
+
+    /**
+     * Runs the test
+     */
+    public void run() {
+        testTables();
+
+        short[][] signals = createSignals();
+        String[] names = { "Silence", "A noisy tone", "Noise", "A clipping square wave", "Bursts of noise" };
+        for (int index = 0; index < signals.length; index++) testRuns(signals[index], names[index]);
+    }
+
+    public static void main(String[] args) {
+        new ImaADPCMCodecTest().run();
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio.data;
+
+import java.util.Arrays;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * This class measures the whole-file decoding of a 20 minute ADPCM
+ * recording, the longest one allowed, one sample at a time, in blocks of
+ * samples and in parallel. The parallel result must be the same as the
+ * sequential one.
+ */
+public class ImaADPCMDecodeBenchmark {
+
+    /**
+     * The length of the recording in seconds
+     */
+    private static final int SECONDS = 20 * 60;
+
+    /**
+     * The sample rate of the recording
+     */
+    private static final float SAMPLE_RATE = 16000f;
+
+    /**
+     * The number of samples read by each call, as a whole-file operation reads them
+     */
+    private static final int BUFFER_SIZE = 262144;
+
+    private ImaADPCMData data;
+    private short[] result;
+
+    /**
+     * Creates the recording
+     * @throws java.lang.Exception failed to create the recording
+     */
+    private void record() throws Exception {
+        data = new ImaADPCMData(new AudioFormat(SAMPLE_RATE, 16, 1, true, false));
+
+        short[] buffer = new short[BUFFER_SIZE];
+        int samples = (int) (SECONDS * SAMPLE_RATE);
+        for (int start = 0; start < samples; start += buffer.length) {
+            int length = Math.min(buffer.length, samples - start);
+            for (int index = 0; index < length; index++) {
+                double time = (start + index) / SAMPLE_RATE;
+                buffer[index] = (short) (8000 * Math.sin(2 * Math.PI * 220 * time) * Math.sin(Math.PI * time) + 2000 * Math.sin(2 * Math.PI * 1800 * time));
+            }
+            data.write(buffer, 0, length);
+        }
+        data.close();
+        result = new short[data.getLength()];
+    }
+
+    /**
+     * Decodes the recording one sample at a time
+     * @return the time in nanoseconds
+     * @throws java.lang.Exception failed to decode the recording
+     */
+    private long decodeSamples() throws Exception {
+        long start = System.nanoTime();
+        data.reset();
+        for (int index = 0; index < result.length; index++) result[index] = (short) data.read();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Decodes the recording in blocks of samples on one thread
+     * @return the time in nanoseconds
+     * @throws java.lang.Exception failed to decode the recording
+     */
+    private long decodeBlocks() throws Exception {
+        long start = System.nanoTime();
+        data.reset();
+        for (int offset = 0, count; offset < result.length; offset += count) {
+            count = data.read(result, offset, Math.min(BUFFER_SIZE, result.length - offset));
+            if (count <= 0) break;
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Decodes the recording in blocks of samples in parallel
+     * @return the time in nanoseconds
+     * @throws java.lang.Exception failed to decode the recording
+     */
+    private long decodeParallel() throws Exception {
+        long start = System.nanoTime();
+        data.reset();
+        for (int offset = 0, count; offset < result.length; offset += count) {
+            count = data.readParallel(result, offset, Math.min(BUFFER_SIZE, result.length - offset));
+            if (count <= 0) break;
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static String format(long time) {
+        return (time / 1000000) + " ms, " + Math.round(SECONDS / (time / 1e9)) + " times real-time";
+    }
+
+    /**
+     * Runs the benchmark
+     * @throws java.lang.Exception failed to run the benchmark
+     */
+    public void run() throws Exception {
+        record();
+
+        decodeBlocks();
+        short[] expected = (short[]) result.clone();
+        decodeParallel();
+        if (!Arrays.equals(result, expected)) throw new RuntimeException("Failed: the parallel decoding is not the same as the sequential one");
+
+        // The best of a few runs after the warm-up
+        long samples = Long.MAX_VALUE, blocks = Long.MAX_VALUE, parallel = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            samples = Math.min(samples, decodeSamples());
+            blocks = Math.min(blocks, decodeBlocks());
+            parallel = Math.min(parallel, decodeParallel());
+        }
+
+        System.out.println("Decoding " + SECONDS / 60 + " minutes at " + (int) SAMPLE_RATE + " Hz with " + Runtime.getRuntime().availableProcessors() + " processors");
+        System.out.println("One sample at a time: " + format(samples));
+        System.out.println("Blocks of samples: " + format(blocks));
+        System.out.println("Parallel: " + format(parallel) + ", " + Math.round(10.0 * blocks / parallel) / 10.0 + " times the blocks of samples");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ImaADPCMDecodeBenchmark().run();
+    }
+
+}
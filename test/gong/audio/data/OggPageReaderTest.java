@@ -0,0 +1,218 @@
+/*
+ * Copyright 2002-2011 The Gong Project (http://gong.ust.hk)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gong.audio.data;
+
+import gong.audio.AudioDataException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+import org.xiph.speex.OggCrc;
+
+/**
+ * This class tests the Ogg page reader on a stream of packets which are
+ * continued across pages. The checksum of a damaged page must be caught,
+ * and with resynchronisation the reader must skip the page, or the bytes
+ * between two pages, and go on with the packets of the next page.
+ */
+public class OggPageReaderTest {
+
+    /**
+     * The number of packets in the stream
+     */
+    private static final int PACKETS = 300;
+
+    /**
+     * The maximum number of segments in each page, small so that most packets are continued
+     */
+    private static final int PAGE_SEGMENTS = 6;
+
+    private Vector packets = new Vector();
+    private ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    private int sequence = 0;
+
+    /**
+     * Writes a page to the stream
+     * @param headerType the header type
+     * @param granulePos the number of packets completed at the end of the page
+     * @param lacing the lacing values
+     * @param body the page body
+     */
+    private void writePage(int headerType, long granulePos, Vector lacing, ByteArrayOutputStream body) {
+        byte[] page = new byte[OggPageReader.HEADER_SIZE + lacing.size() + body.size()];
+        page[0] = 'O';
+        page[1] = 'g';
+        page[2] = 'g';
+        page[3] = 'S';
+        page[5] = (byte) headerType;
+        for (int index = 0; index < 8; index++) page[6 + index] = (byte) (granulePos >>> (8 * index));
+        for (int index = 0; index < 4; index++) page[18 + index] = (byte) (sequence >>> (8 * index));
+        page[26] = (byte) lacing.size();
+        for (int index = 0; index < lacing.size(); index++) page[OggPageReader.HEADER_SIZE + index] = (byte) ((Integer) lacing.elementAt(index)).intValue();
+        System.arraycopy(body.toByteArray(), 0, page, OggPageReader.HEADER_SIZE + lacing.size(), body.size());
+
+        int checksum = OggCrc.checksum(0, page, 0, page.length);
+        for (int index = 0; index < 4; index++) page[22 + index] = (byte) (checksum >>> (8 * index));
+        stream.write(page, 0, page.length);
+        sequence++;
+    }
+
+    /**
+     * Creates the stream of random packets
+     */
+    private void createStream() {
+        Random random = new Random(1);
+        Vector lacing = new Vector();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        boolean continued = false;
+        long completed = 0;
+
+        for (int count = 0; count < PACKETS; count++) {
+            byte[] packet = new byte[50 + random.nextInt(900)];
+            random.nextBytes(packet);
+            packets.addElement(packet);
+
+            for (int offset = 0; ; ) {
+                if (lacing.size() == PAGE_SEGMENTS) {
+                    writePage((sequence == 0)? OggPageReader.BOS : (continued? OggPageReader.CONTINUE : OggPageReader.NONE), completed, lacing, body);
+                    continued = offset > 0;
+                    lacing.removeAllElements();
+                    body.reset();
+                }
+
+                int segment = Math.min(255, packet.length - offset);
+                lacing.addElement(new Integer(segment));
+                body.write(packet, offset, segment);
+                offset += segment;
+                if (segment < 255) break;
+            }
+            completed++;
+        }
+        writePage(OggPageReader.EOS | (continued? OggPageReader.CONTINUE : OggPageReader.NONE), completed, lacing, body);
+    }
+
+    /**
+     * Finds the start of a page in the stream
+     * @param data the stream
+     * @param page the index of the page
+     * @return the byte offset
+     */
+    private static int findPage(byte[] data, int page) {
+        for (int index = 0, count = 0; index < data.length - 3; index++) {
+            if (data[index] == 'O' && data[index + 1] == 'g' && data[index + 2] == 'g' && data[index + 3] == 'S' && count++ == page) return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads all the packets of a stream with resynchronisation
+     * @param data the stream
+     * @param name the name of the stream
+     * @param lost the number of packets which may be lost
+     * @param corrupt the number of corrupted pages
+     * @throws java.lang.Exception failed to read the stream
+     */
+    private void readStream(byte[] data, String name, int lost, int corrupt) throws Exception {
+        OggPageReader reader = new OggPageReader(new ByteArrayInputStream(data));
+        reader.setResync(true);
+
+        int received = 0, mismatched = 0, joined = 0;
+        boolean continued = false;
+        long last = 0;
+        try {
+            while (true) {
+                reader.readPage();
+                long granulePos = reader.getGranulePosition();
+                int count = reader.getPacketCount();
+                // The first packet completes the one continued from the previous page
+                if (continued && count > 0) joined++;
+                continued = reader.isContinued();
+                for (int index = 0; index < count; index++) {
+                    // The granule position counts the packets completed at the end of the page
+                    byte[] expected = (byte[]) packets.elementAt((int) (granulePos - count + index));
+                    int offset = reader.getPacketOffset(index);
+                    byte[] packet = Arrays.copyOfRange(reader.getPacketBuffer(index), offset, offset + reader.getPacketLength(index));
+                    if (!Arrays.equals(packet, expected)) mismatched++;
+                    received++;
+                }
+                last = granulePos;
+            }
+        }
+        catch (EOFException e) {
+        }
+
+        check(mismatched == 0 && last == PACKETS && joined > 0, name + " gives the packets in order to the end of the stream, " + joined + " of them joined across pages");
+        check(received >= PACKETS - lost, name + " gives " + received + " of " + PACKETS + " packets");
+        check(reader.getCorruptPages() == corrupt, name + " counts " + reader.getCorruptPages() + " corrupted pages");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new RuntimeException("Failed: " + message);
+        System.out.println("OK: " + message);
+    }
+
+    /**
+     * Runs the test
+     * @throws java.lang.Exception failed to read a stream
+     */
+    public void run() throws Exception {
+        createStream();
+        byte[] data = stream.toByteArray();
+
+        readStream(data, "The clean stream", 0, 0);
+
+        // A damaged page body loses the packets ending on it and the one continued from it
+        int page = findPage(data, 10);
+        byte[] damaged = (byte[]) data.clone();
+        damaged[page + 40] ^= 0x55;
+        readStream(damaged, "A damaged page", PAGE_SEGMENTS + 1, 1);
+
+        // A damaged capture pattern is found as the bytes before the next page
+        damaged = (byte[]) data.clone();
+        damaged[findPage(data, 30)] = 'o';
+        readStream(damaged, "A damaged capture pattern", PAGE_SEGMENTS + 1, 1);
+
+        // Garbage between two pages, with false capture patterns, loses nothing
+        page = findPage(data, 20);
+        ByteArrayOutputStream garbage = new ByteArrayOutputStream();
+        garbage.write(data, 0, page);
+        for (int index = 0; index < 500; index++) garbage.write((index % 7 == 0)? 'O' : (index % 11 == 0)? 'g' : 'x');
+        garbage.write("OggSxxxxxxxxxxxxxxxxxxxxxxxxxxxx".getBytes());
+        garbage.write(data, page, data.length - page);
+        readStream(garbage.toByteArray(), "Garbage between two pages", 0, 1);
+
+        // Without resynchronisation the damaged checksum is reported
+        damaged = (byte[]) data.clone();
+        damaged[findPage(data, 10) + 40] ^= 0x55;
+        OggPageReader reader = new OggPageReader(new ByteArrayInputStream(damaged));
+        String message = null;
+        try {
+            for (int index = 0; index <= 10; index++) reader.readPage();
+        }
+        catch (AudioDataException e) {
+            message = e.getMessage();
+        }
+        check(message != null && message.indexOf("checksum") >= 0, "A damaged page without resynchronisation throws \"" + message + "\"");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new OggPageReaderTest().run();
+    }
+
+}